@@ -0,0 +1,43 @@
+package io.github.jimmyhmiller;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import javax.json.JsonObject;
+import javax.json.JsonValue;
+
+@State(Scope.Benchmark)
+public class AddBenchmark {
+
+    @Param({"10", "2000", "100000"})
+    public int width;
+
+    private JsonObject object;
+
+    @Setup
+    public void setup() {
+        object = Documents.wideObject(width);
+    }
+
+    @Benchmark
+    public JsonValue addOne() {
+        return new JsonTransformer(object).add("added", "value").toJson();
+    }
+
+    @Benchmark
+    public JsonValue addTen() {
+        JsonTransformer transformer = new JsonTransformer(object);
+        for (int i = 0; i < 10; i++) {
+            transformer = transformer.add("added" + i, i);
+        }
+        return transformer.toJson();
+    }
+
+    @Benchmark
+    public JsonValue replaceExisting() {
+        return new JsonTransformer(object).add("key0", true).toJson();
+    }
+}
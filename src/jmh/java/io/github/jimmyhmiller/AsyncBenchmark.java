@@ -0,0 +1,58 @@
+package io.github.jimmyhmiller;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonValue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Resolving 200 ids against a stub service that answers after 1ms, one at a time vs. async.
+@State(Scope.Benchmark)
+public class AsyncBenchmark {
+
+    private JsonValue json;
+    private ScheduledExecutorService service;
+
+    @Setup
+    public void setup() {
+        JsonArrayBuilder ids = Json.createArrayBuilder();
+        for (int i = 0; i < 200; i++) {
+            ids.add(Json.createObjectBuilder().add("user", "id" + i));
+        }
+        json = ids.build();
+        service = Executors.newScheduledThreadPool(2);
+    }
+
+    @TearDown
+    public void tearDown() {
+        service.shutdown();
+    }
+
+    private CompletableFuture<String> lookup(String id) {
+        CompletableFuture<String> name = new CompletableFuture<>();
+        service.schedule(() -> name.complete("name of " + id), 1, TimeUnit.MILLISECONDS);
+        return name;
+    }
+
+    @Benchmark
+    public JsonValue oneAtATime() {
+        return new JsonTransformer(json)
+                .mapRecursive((String id) -> lookup(id).join())
+                .toJson();
+    }
+
+    @Benchmark
+    public JsonValue async() {
+        return new JsonTransformer(json)
+                .mapRecursiveAsync((String id) -> lookup(id))
+                .toJson();
+    }
+}
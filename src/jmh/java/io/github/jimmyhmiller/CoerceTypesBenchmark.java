@@ -0,0 +1,51 @@
+package io.github.jimmyhmiller;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import javax.json.Json;
+import javax.json.JsonValue;
+
+@State(Scope.Benchmark)
+public class CoerceTypesBenchmark {
+
+    private Object string;
+    private Object integer;
+    private Object bool;
+    private Object json;
+
+    @Setup
+    public void setup() {
+        string = "value";
+        integer = 42;
+        bool = true;
+        json = Json.createArrayBuilder().add(1).build();
+    }
+
+    @Benchmark
+    public JsonValue string() {
+        return JsonTransformer.coerceTypes(string);
+    }
+
+    @Benchmark
+    public JsonValue integer() {
+        return JsonTransformer.coerceTypes(integer);
+    }
+
+    @Benchmark
+    public JsonValue bool() {
+        return JsonTransformer.coerceTypes(bool);
+    }
+
+    @Benchmark
+    public JsonValue jsonValue() {
+        return JsonTransformer.coerceTypes(json);
+    }
+
+    @Benchmark
+    public JsonValue objectBuilder() {
+        return JsonTransformer.coerceTypes(Json.createObjectBuilder().add("key", 1));
+    }
+}
@@ -0,0 +1,37 @@
+package io.github.jimmyhmiller;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import javax.json.JsonValue;
+
+// A fused chain of stages that each take a single type, so most stages have nothing to do for any one node.
+// Every node should only ever reach the stages of its own type.
+@State(Scope.Benchmark)
+public class DispatchBenchmark {
+
+    private JsonValue json;
+    private JsonPipeline mixed;
+
+    @Setup
+    public void setup() {
+        json = Documents.tree(6, 8);
+        JsonTransformer transformer = new JsonTransformer();
+        for (int i = 0; i < 4; i++) {
+            transformer = transformer
+                    .mapRecursive((String s) -> s)
+                    .mapRecursive((long n) -> n)
+                    .mapRecursive((Boolean b) -> b)
+                    .map((String key, String s) -> s)
+                    .filter((double d) -> true);
+        }
+        mixed = transformer.compile();
+    }
+
+    @Benchmark
+    public JsonValue mixedTypes() {
+        return mixed.apply(json);
+    }
+}
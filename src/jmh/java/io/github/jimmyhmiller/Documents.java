@@ -0,0 +1,69 @@
+package io.github.jimmyhmiller;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonValue;
+
+/*
+* Deterministic documents for the benchmarks, so runs can be compared with each other.
+* Leaves cycle through strings, numbers, booleans and nulls.
+* */
+final class Documents {
+
+    private Documents() {}
+
+    // Objects and arrays alternate on each level, every container has fanout children.
+    static JsonValue tree(int depth, int fanout) {
+        return tree(depth, fanout, 0);
+    }
+
+    static JsonObject wideObject(int width) {
+        JsonObjectBuilder builder = Json.createObjectBuilder();
+        for (int i = 0; i < width; i++) {
+            builder.add("key" + i, leaf(i));
+        }
+        return builder.build();
+    }
+
+    static JsonArray longArray(int length) {
+        JsonArrayBuilder builder = Json.createArrayBuilder();
+        for (int i = 0; i < length; i++) {
+            builder.add(leaf(i));
+        }
+        return builder.build();
+    }
+
+    private static JsonValue tree(int depth, int fanout, int seed) {
+        if (depth == 0) {
+            return leaf(seed);
+        }
+        if (depth % 2 == 0) {
+            JsonObjectBuilder builder = Json.createObjectBuilder();
+            for (int i = 0; i < fanout; i++) {
+                builder.add("key" + i, tree(depth - 1, fanout, seed * fanout + i));
+            }
+            return builder.build();
+        }
+        JsonArrayBuilder builder = Json.createArrayBuilder();
+        for (int i = 0; i < fanout; i++) {
+            builder.add(tree(depth - 1, fanout, seed * fanout + i));
+        }
+        return builder.build();
+    }
+
+    private static JsonValue leaf(int seed) {
+        switch (seed % 4) {
+            case 0:
+                return JsonTransformer.createJsonString("value" + seed);
+            case 1:
+                return JsonTransformer.createJsonNumber(seed);
+            case 2:
+                return seed % 8 == 2 ? JsonValue.TRUE : JsonValue.FALSE;
+            default:
+                return JsonValue.NULL;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package io.github.jimmyhmiller;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+import javax.json.JsonValue;
+
+// Dropping big debug blocks from a list of responses before transforming the rest, vs. cleaning them up afterwards.
+@State(Scope.Benchmark)
+public class FilterBenchmark {
+
+    private JsonValue json;
+
+    @Setup
+    public void setup() {
+        JsonArrayBuilder responses = Json.createArrayBuilder();
+        for (int i = 0; i < 100; i++) {
+            responses.add(Json.createObjectBuilder()
+                    .add("id", i)
+                    .add("body", Documents.wideObject(10))
+                    .add("debug", Documents.tree(4, 6)));
+        }
+        json = responses.build();
+    }
+
+    @Benchmark
+    public JsonValue pruneFirst() {
+        return new JsonTransformer(json)
+                .removeRecursive("debug")
+                .mapRecursive((String s) -> s.toUpperCase())
+                .toJson();
+    }
+
+    @Benchmark
+    public JsonValue cleanUpAfterwards() {
+        return new JsonTransformer(json)
+                .mapRecursive((String s) -> s.toUpperCase())
+                .mapRecursive((JsonObject o) -> o.containsKey("debug")
+                        ? Json.createObjectBuilder().add("id", o.get("id")).add("body", o.get("body")).build()
+                        : o)
+                .toJson();
+    }
+}
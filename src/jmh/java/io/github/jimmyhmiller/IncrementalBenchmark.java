@@ -0,0 +1,73 @@
+package io.github.jimmyhmiller;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+import javax.json.JsonValue;
+
+// A catalogue of 100k products where one price changes at a time, run again whole and incrementally.
+// The incremental run should only cost as much as the containers on the way down to the price, persistent ones
+// aren't even copied.
+@State(Scope.Benchmark)
+public class IncrementalBenchmark {
+
+    private JsonPipeline pipeline;
+    private IncrementalTransform catalogue;
+    private IncrementalTransform persistentCatalogue;
+    private int next;
+
+    @Setup
+    public void setup() {
+        JsonArrayBuilder products = Json.createArrayBuilder();
+        for (int i = 0; i < 100000; i++) {
+            products.add(Json.createObjectBuilder()
+                    .add("id", i)
+                    .add("name", " product " + i + " ")
+                    .add("price", i * 0.25)
+                    .add("tags", Json.createArrayBuilder().add("a").add("b")));
+        }
+        JsonObject json = Json.createObjectBuilder().add("products", products).add("version", 1).build();
+        JsonTransformer transformer = new JsonTransformer()
+                .mapRecursive((String s) -> s.trim())
+                .mapRecursive((double price) -> price * 1.2);
+        pipeline = transformer.compile();
+        catalogue = pipeline.incremental(json);
+        persistentCatalogue = transformer.persistent().compile().incremental(json);
+    }
+
+    private JsonArray patch() {
+        next = (next + 7919) % 100000;
+        return Json.createArrayBuilder()
+                .add(Json.createObjectBuilder().add("op", "replace").add("path", "/products/" + next + "/price").add("value", next))
+                .build();
+    }
+
+    @Benchmark
+    public JsonValue full() {
+        return pipeline.apply(JsonPatches.apply(catalogue.input(), patch(), false));
+    }
+
+    @Benchmark
+    public JsonValue incremental() {
+        catalogue = catalogue.apply(patch());
+        return catalogue.output();
+    }
+
+    @Benchmark
+    public JsonValue incrementalPersistent() {
+        persistentCatalogue = persistentCatalogue.apply(patch());
+        return persistentCatalogue.output();
+    }
+
+    @Benchmark
+    public JsonArray incrementalWithPatch() {
+        catalogue = catalogue.apply(patch());
+        return catalogue.outputPatch();
+    }
+}
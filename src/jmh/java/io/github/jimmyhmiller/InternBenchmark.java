@@ -0,0 +1,55 @@
+package io.github.jimmyhmiller;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonReader;
+import javax.json.JsonValue;
+import java.io.StringReader;
+
+// Rebuilding a parsed array of records with the same 30 keys, with and without interning. Run with -prof gc to see allocation.
+@State(Scope.Benchmark)
+public class InternBenchmark {
+
+    private static final String[] STATUSES = {"active", "pending", "closed"};
+
+    private JsonValue json;
+    private JsonPipeline plain;
+    private JsonPipeline interned;
+
+    @Setup
+    public void setup() {
+        JsonArrayBuilder records = Json.createArrayBuilder();
+        for (int i = 0; i < 10000; i++) {
+            JsonObjectBuilder record = Json.createObjectBuilder();
+            for (int k = 0; k < 29; k++) {
+                record.add("field" + k, i * 31 + k);
+            }
+            records.add(record.add("status", STATUSES[i % STATUSES.length]));
+        }
+        // Parsed, so every record has its own copies of the keys like it would coming off the wire.
+        try (JsonReader reader = Json.createReader(new StringReader(records.build().toString()))) {
+            json = reader.read();
+        }
+        JsonTransformer transformer = new JsonTransformer()
+                .mapRecursive((long n) -> n + 1)
+                .mapRecursive((String s) -> s.toUpperCase());
+        plain = transformer.compile();
+        interned = transformer.intern().compile();
+    }
+
+    @Benchmark
+    public JsonValue plain() {
+        return plain.apply(json);
+    }
+
+    @Benchmark
+    public JsonValue interned() {
+        return interned.apply(json);
+    }
+}
@@ -0,0 +1,48 @@
+package io.github.jimmyhmiller;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+@State(Scope.Benchmark)
+public class JsonLinesBenchmark {
+
+    @Param({"1", "2", "4", "8"})
+    public int threads;
+
+    @Param({"true", "false"})
+    public boolean ordered;
+
+    private byte[] input;
+    private JsonLines lines;
+
+    @Setup
+    public void setup() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            builder.append(Documents.tree(2, 6)).append('\n');
+        }
+        input = builder.toString().getBytes(StandardCharsets.UTF_8);
+
+        JsonPipeline pipeline = new JsonTransformer()
+                .mapRecursive((String s) -> s.toUpperCase())
+                .mapRecursive((Integer i) -> i + 1)
+                .compile();
+        JsonLines configured = new JsonLines(pipeline).threads(threads);
+        lines = ordered ? configured : configured.unordered();
+    }
+
+    @Benchmark
+    public int transform() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(input.length);
+        lines.transform(new ByteArrayInputStream(input), out);
+        return out.size();
+    }
+}
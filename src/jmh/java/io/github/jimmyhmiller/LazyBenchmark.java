@@ -0,0 +1,62 @@
+package io.github.jimmyhmiller;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import javax.json.JsonArray;
+import javax.json.JsonObject;
+import javax.json.JsonValue;
+
+// A handler that only reads one field of a big transformed document, eager vs. lazy, and what laziness costs when everything gets read.
+@State(Scope.Benchmark)
+public class LazyBenchmark {
+
+    private JsonValue json;
+    private JsonPipeline eager;
+    private JsonPipeline lazy;
+
+    @Setup
+    public void setup() {
+        json = Documents.tree(5, 8);
+        JsonTransformer transformer = new JsonTransformer()
+                .mapRecursive((String s) -> s.toUpperCase())
+                .mapRecursive((long n) -> n + 1);
+        eager = transformer.compile();
+        lazy = transformer.lazy().compile();
+    }
+
+    @Benchmark
+    public JsonValue readOneEager() {
+        return readOne(eager.apply(json));
+    }
+
+    @Benchmark
+    public JsonValue readOneLazy() {
+        return readOne(lazy.apply(json));
+    }
+
+    @Benchmark
+    public String readAllEager() {
+        return eager.apply(json).toString();
+    }
+
+    @Benchmark
+    public String readAllLazy() {
+        return lazy.apply(json).toString();
+    }
+
+    private static JsonValue readOne(JsonValue result) {
+        JsonValue current = result;
+        while (true) {
+            if (current instanceof JsonObject) {
+                current = ((JsonObject) current).get("key0");
+            } else if (current instanceof JsonArray) {
+                current = ((JsonArray) current).get(0);
+            } else {
+                return current;
+            }
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package io.github.jimmyhmiller;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import javax.json.JsonArray;
+import javax.json.JsonObject;
+import javax.json.JsonValue;
+
+// Shallow maps over wide objects and long arrays.
+@State(Scope.Benchmark)
+public class MapBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    public int width;
+
+    private JsonObject object;
+    private JsonArray array;
+
+    @Setup
+    public void setup() {
+        object = Documents.wideObject(width);
+        array = Documents.longArray(width);
+    }
+
+    @Benchmark
+    public JsonValue mapObject() {
+        return new JsonTransformer(object).map((String key, String value) -> key + value).toJson();
+    }
+
+    @Benchmark
+    public JsonValue mapIfObject() {
+        return new JsonTransformer(object).mapIf((String key, Integer value) -> value % 2 == 0, (String key, Integer value) -> value / 2).toJson();
+    }
+
+    @Benchmark
+    public JsonValue mapArray() {
+        return new JsonTransformer(array).map((Integer i) -> i + 1).toJson();
+    }
+
+    @Benchmark
+    public JsonValue mapIfArray() {
+        return new JsonTransformer(array).mapIf((Integer i) -> i % 2 == 0, (Integer i) -> i / 2).toJson();
+    }
+}
@@ -0,0 +1,65 @@
+package io.github.jimmyhmiller;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import javax.json.JsonArray;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonValue;
+
+@State(Scope.Benchmark)
+public class MapRecursiveBenchmark {
+
+    @Param({"2", "4", "6"})
+    public int depth;
+
+    @Param({"4", "8"})
+    public int fanout;
+
+    private JsonValue json;
+
+    @Setup
+    public void setup() {
+        json = Documents.tree(depth, fanout);
+    }
+
+    @Benchmark
+    public JsonValue string() {
+        return new JsonTransformer(json).mapRecursive((String s) -> s + "!").toJson();
+    }
+
+    @Benchmark
+    public JsonValue integer() {
+        return new JsonTransformer(json).mapRecursive((Integer i) -> i + 1).toJson();
+    }
+
+    @Benchmark
+    public JsonValue bool() {
+        return new JsonTransformer(json).mapRecursive((Boolean b) -> !b).toJson();
+    }
+
+    @Benchmark
+    public JsonValue jsonObject() {
+        return new JsonTransformer(json).mapRecursive((JsonObject o) -> o.size() > 2 ? o : JsonValue.NULL).toJson();
+    }
+
+    @Benchmark
+    public JsonValue jsonObjectBuilder() {
+        return new JsonTransformer(json).mapRecursive((JsonObjectBuilder o) -> o.add("visited", true)).toJson();
+    }
+
+    @Benchmark
+    public JsonValue jsonArray() {
+        return new JsonTransformer(json).mapRecursive((JsonArray a) -> a.isEmpty() ? JsonValue.NULL : a).toJson();
+    }
+
+    // Returns its input, measures the cost of a traversal that ends up changing nothing.
+    @Benchmark
+    public JsonValue identity() {
+        return new JsonTransformer(json).mapRecursive((String s) -> s).toJson();
+    }
+}
@@ -0,0 +1,54 @@
+package io.github.jimmyhmiller;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonValue;
+import java.util.regex.Pattern;
+
+// A regex normalization over 50k records that only hold a thousand distinct values, with and without a cache in front of it.
+@State(Scope.Benchmark)
+public class MemoizeBenchmark {
+
+    private static final Pattern SEPARATORS = Pattern.compile("[\\s_\\-]+");
+
+    private JsonValue json;
+    private JsonPipeline plain;
+    private JsonPipeline memoized;
+
+    @Setup
+    public void setup() {
+        JsonArrayBuilder records = Json.createArrayBuilder();
+        for (int i = 0; i < 50000; i++) {
+            records.add(Json.createObjectBuilder()
+                    .add("category", "Product_category - " + (i % 1000))
+                    .add("region", "north-east " + (i % 7)));
+        }
+        json = records.build();
+        plain = new JsonTransformer()
+                .mapRecursive((String s) -> normalize(s))
+                .compile();
+        memoized = new JsonTransformer()
+                .mapRecursive((String s) -> normalize(s))
+                .memoize(4096)
+                .compile();
+    }
+
+    private static String normalize(String s) {
+        return SEPARATORS.matcher(s.trim().toLowerCase()).replaceAll(" ");
+    }
+
+    @Benchmark
+    public JsonValue plain() {
+        return plain.apply(json);
+    }
+
+    @Benchmark
+    public JsonValue memoized() {
+        return memoized.apply(json);
+    }
+}
@@ -0,0 +1,39 @@
+package io.github.jimmyhmiller;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import javax.json.JsonValue;
+
+// The same pipeline with and without a listener attached, what recording metrics costs.
+@State(Scope.Benchmark)
+public class MetricsBenchmark {
+
+    private JsonValue json;
+    private JsonPipeline plain;
+    private JsonPipeline recorded;
+    private PipelineMetrics last;
+
+    @Setup
+    public void setup() {
+        json = Documents.tree(5, 8);
+        JsonTransformer transformer = new JsonTransformer()
+                .mapRecursive((String s) -> s + "!")
+                .mapRecursive((long l) -> l + 1)
+                .add("version", 2);
+        plain = transformer.compile();
+        recorded = transformer.listener(metrics -> last = metrics).compile();
+    }
+
+    @Benchmark
+    public JsonValue plain() {
+        return plain.apply(json);
+    }
+
+    @Benchmark
+    public JsonValue recorded() {
+        return recorded.apply(json);
+    }
+}
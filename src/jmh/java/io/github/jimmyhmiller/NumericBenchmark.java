@@ -0,0 +1,54 @@
+package io.github.jimmyhmiller;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonValue;
+import java.math.BigDecimal;
+
+// Telemetry shaped documents, arrays of samples that are nothing but numbers.
+@State(Scope.Benchmark)
+public class NumericBenchmark {
+
+    @Param({"1000", "100000"})
+    public int samples;
+
+    private JsonValue json;
+
+    @Setup
+    public void setup() {
+        JsonArrayBuilder builder = Json.createArrayBuilder();
+        for (int i = 0; i < samples; i++) {
+            builder.add(Json.createObjectBuilder()
+                    .add("timestamp", 1500000000000L + i)
+                    .add("value", i * 0.5)
+                    .add("count", i));
+        }
+        json = builder.build();
+    }
+
+    @Benchmark
+    public JsonValue integer() {
+        return new JsonTransformer(json).mapRecursive((Integer i) -> i + 1).toJson();
+    }
+
+    @Benchmark
+    public JsonValue primitiveLong() {
+        return new JsonTransformer(json).mapRecursive((long l) -> l + 1).toJson();
+    }
+
+    @Benchmark
+    public JsonValue primitiveDouble() {
+        return new JsonTransformer(json).mapRecursive((double d) -> d * 2).toJson();
+    }
+
+    @Benchmark
+    public JsonValue bigDecimal() {
+        return new JsonTransformer(json).mapRecursive((BigDecimal d) -> d.add(BigDecimal.ONE)).toJson();
+    }
+}
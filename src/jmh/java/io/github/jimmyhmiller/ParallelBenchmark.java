@@ -0,0 +1,36 @@
+package io.github.jimmyhmiller;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import javax.json.JsonValue;
+
+@State(Scope.Benchmark)
+public class ParallelBenchmark {
+
+    @Param({"5", "6"})
+    public int depth;
+
+    @Param({"10"})
+    public int fanout;
+
+    private JsonValue json;
+
+    @Setup
+    public void setup() {
+        json = Documents.tree(depth, fanout);
+    }
+
+    @Benchmark
+    public JsonValue sequential() {
+        return new JsonTransformer(json).mapRecursive((String s) -> s.toUpperCase()).toJson();
+    }
+
+    @Benchmark
+    public JsonValue parallel() {
+        return new JsonTransformer(json).mapRecursive((String s) -> s.toUpperCase()).parallel().toJson();
+    }
+}
@@ -0,0 +1,49 @@
+package io.github.jimmyhmiller;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonValue;
+
+// Rewriting one field per item, by path and by visiting every node, in orders that carry a lot of other data.
+@State(Scope.Benchmark)
+public class PathBenchmark {
+
+    @Param({"10", "1000"})
+    public int orders;
+
+    private JsonValue json;
+
+    @Setup
+    public void setup() {
+        JsonArrayBuilder list = Json.createArrayBuilder();
+        for (int i = 0; i < orders; i++) {
+            JsonArrayBuilder items = Json.createArrayBuilder();
+            for (int j = 0; j < 5; j++) {
+                items.add(Json.createObjectBuilder().add("price", i + j).add("details", Documents.tree(2, 4)));
+            }
+            list.add(Json.createObjectBuilder().add("items", items).add("customer", Documents.wideObject(20)));
+        }
+        JsonObjectBuilder root = Json.createObjectBuilder().add("orders", list);
+        json = root.build();
+    }
+
+    @Benchmark
+    public JsonValue mapAt() {
+        return new JsonTransformer(json).mapAt("$.orders[*].items[*].price", (long p) -> p + 1).toJson();
+    }
+
+    @Benchmark
+    public JsonValue mapRecursive() {
+        return new JsonTransformer(json).mapRecursive((JsonObject o) -> o.containsKey("price")
+                ? JsonTransformer.jsonObjectToBuilder(o).add("price", o.getInt("price") + 1).build()
+                : o).toJson();
+    }
+}
@@ -0,0 +1,45 @@
+package io.github.jimmyhmiller;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import javax.json.JsonObject;
+import javax.json.JsonValue;
+
+// Adding a few keys, one transformation at a time, to a wide config object. Copying vs. persistent updates.
+@State(Scope.Benchmark)
+public class PersistentBenchmark {
+
+    @Param({"20", "2000"})
+    public int width;
+
+    private JsonObject json;
+    private JsonObject persistentJson;
+
+    @Setup
+    public void setup() {
+        json = Documents.wideObject(width);
+        persistentJson = PersistentJsonObject.of(json);
+    }
+
+    @Benchmark
+    public JsonValue copying() {
+        JsonValue result = json;
+        for (int i = 0; i < 10; i++) {
+            result = new JsonTransformer(result).add("added" + i, i).toJson();
+        }
+        return result;
+    }
+
+    @Benchmark
+    public JsonValue persistent() {
+        JsonValue result = persistentJson;
+        for (int i = 0; i < 10; i++) {
+            result = new JsonTransformer(result).persistent().add("added" + i, i).toJson();
+        }
+        return result;
+    }
+}
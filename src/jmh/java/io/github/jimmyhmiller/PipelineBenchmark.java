@@ -0,0 +1,59 @@
+package io.github.jimmyhmiller;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import javax.json.JsonObject;
+import javax.json.JsonValue;
+
+// toJson over chains of stages, the shape our production pipelines have.
+@State(Scope.Benchmark)
+public class PipelineBenchmark {
+
+    @Param({"1", "5", "10"})
+    public int stages;
+
+    @Param({"4", "6"})
+    public int depth;
+
+    @Param({"8"})
+    public int fanout;
+
+    private JsonValue json;
+
+    @Setup
+    public void setup() {
+        json = Documents.tree(depth, fanout);
+    }
+
+    @Benchmark
+    public JsonValue primitiveStages() {
+        JsonTransformer transformer = new JsonTransformer(json);
+        for (int i = 0; i < stages; i++) {
+            if (i % 3 == 0) {
+                transformer = transformer.mapRecursive((String s) -> s.length() > 12 ? s : s + "-");
+            } else if (i % 3 == 1) {
+                transformer = transformer.mapRecursive((Integer n) -> n + 1);
+            } else {
+                transformer = transformer.mapRecursive((Boolean b) -> !b);
+            }
+        }
+        return transformer.toJson();
+    }
+
+    @Benchmark
+    public JsonValue mixedStages() {
+        JsonTransformer transformer = new JsonTransformer(json);
+        for (int i = 0; i < stages; i++) {
+            if (i % 2 == 0) {
+                transformer = transformer.mapRecursive((Integer n) -> n * 2);
+            } else {
+                transformer = transformer.mapRecursive((JsonObject o) -> o.containsKey("key0") ? o : JsonValue.NULL);
+            }
+        }
+        return transformer.add("done", true).toJson();
+    }
+}
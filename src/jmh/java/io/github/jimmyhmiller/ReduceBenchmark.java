@@ -0,0 +1,39 @@
+package io.github.jimmyhmiller;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import javax.json.JsonValue;
+
+// Summing every number in a document, by folding over it vs. the old way of a mapRecursive with a side effect.
+@State(Scope.Benchmark)
+public class ReduceBenchmark {
+
+    @Param({"4", "6"})
+    public int depth;
+
+    private JsonValue json;
+
+    @Setup
+    public void setup() {
+        json = Documents.tree(depth, 8);
+    }
+
+    @Benchmark
+    public long reduceRecursive() {
+        return new JsonTransformer(json).reduceRecursive(0L, (long sum, long n) -> sum + n);
+    }
+
+    @Benchmark
+    public long mapRecursive() {
+        long[] sum = {0};
+        new JsonTransformer(json).mapRecursive((long n) -> {
+            sum[0] += n;
+            return n;
+        }).toJson();
+        return sum[0];
+    }
+}
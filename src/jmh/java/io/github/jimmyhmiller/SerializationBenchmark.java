@@ -0,0 +1,62 @@
+package io.github.jimmyhmiller;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import javax.json.JsonValue;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+@State(Scope.Benchmark)
+public class SerializationBenchmark {
+
+    @Param({"4", "6"})
+    public int depth;
+
+    @Param({"8"})
+    public int fanout;
+
+    private JsonValue json;
+    private PrintStream out;
+    private OutputStream discard;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        json = Documents.tree(depth, fanout);
+        // pprint writes to stdout, we only want to measure the work not the console.
+        out = System.out;
+        discard = new OutputStream() {
+            @Override
+            public void write(int b) {}
+
+            @Override
+            public void write(byte[] b, int off, int len) {}
+        };
+        System.setOut(new PrintStream(discard));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.setOut(out);
+    }
+
+    @Benchmark
+    public String serialize() {
+        return new JsonTransformer(json).toJson().toString();
+    }
+
+    @Benchmark
+    public void writeTo() {
+        new JsonTransformer(json).writeTo(discard, false);
+    }
+
+    @Benchmark
+    public JsonTransformer pprint() {
+        return new JsonTransformer(json).pprint();
+    }
+}
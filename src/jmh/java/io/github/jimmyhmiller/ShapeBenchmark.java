@@ -0,0 +1,73 @@
+package io.github.jimmyhmiller;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonValue;
+
+// Trim the strings of 100k records that are mostly numbers, few of which need it, walking everything and with a shape
+// inferred from the first ten, over a javax.json tree and over a tape. About 1.3 times as fast on the tree, 5 times on the tape.
+@State(Scope.Benchmark)
+public class ShapeBenchmark {
+
+    private JsonValue tree;
+    private JsonValue tape;
+    private JsonPipeline plain;
+    private JsonPipeline shaped;
+
+    @Setup
+    public void setup() {
+        JsonArrayBuilder records = Json.createArrayBuilder();
+        JsonArrayBuilder samples = Json.createArrayBuilder();
+        for (int i = 0; i < 100000; i++) {
+            JsonArrayBuilder readings = Json.createArrayBuilder();
+            for (int j = 0; j < 20; j++) {
+                readings.add(i * 0.5 + j);
+            }
+            JsonValue record = Json.createObjectBuilder()
+                    .add("id", i)
+                    .add("name", i % 100 == 0 ? " sensor " + i + " " : "sensor " + i)
+                    .add("readings", readings)
+                    .add("location", Json.createObjectBuilder().add("lat", i % 90).add("lng", i % 180))
+                    .add("flags", Json.createArrayBuilder().add(i % 2 == 0).add(true))
+                    .build();
+            records.add(record);
+            if (i < 10) {
+                samples.add(record);
+            }
+        }
+        tree = records.build();
+        tape = JsonTape.of(tree).root();
+        plain = new JsonTransformer()
+                .mapRecursive((String s) -> s.trim())
+                .compile();
+        shaped = new JsonTransformer()
+                .mapRecursive((String s) -> s.trim())
+                .shape(Shape.infer(samples.build()))
+                .compile();
+    }
+
+    @Benchmark
+    public JsonValue plainTree() {
+        return plain.apply(tree);
+    }
+
+    @Benchmark
+    public JsonValue shapedTree() {
+        return shaped.apply(tree);
+    }
+
+    @Benchmark
+    public JsonValue plainTape() {
+        return plain.apply(tape);
+    }
+
+    @Benchmark
+    public JsonValue shapedTape() {
+        return shaped.apply(tape);
+    }
+}
@@ -0,0 +1,70 @@
+package io.github.jimmyhmiller;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+import java.util.function.Function;
+
+// The work stack walk against the recursive walk it replaced, on bushy and on deep narrow documents.
+@State(Scope.Benchmark)
+public class TraversalBenchmark {
+
+    @Param({"bushy", "deep"})
+    public String shape;
+
+    private JsonValue json;
+    private Function<JsonValue, JsonValue> upperCase;
+
+    @Setup
+    public void setup() {
+        if (shape.equals("bushy")) {
+            json = Documents.tree(6, 8);
+        } else {
+            // Deep enough to be interesting, shallow enough that the recursive version survives it.
+            JsonValue nested = JsonTransformer.createJsonString("value");
+            for (int i = 0; i < 500; i++) {
+                nested = Json.createArrayBuilder().add(nested).add(i).build();
+            }
+            json = nested;
+        }
+        upperCase = j -> j.getValueType() == JsonValue.ValueType.STRING
+                ? JsonTransformer.createJsonString(((JsonString) j).getString().toUpperCase())
+                : j;
+    }
+
+    @Benchmark
+    public JsonValue workStack() {
+        return new JsonTransformer(json).mapRecursive((String s) -> s.toUpperCase()).toJson();
+    }
+
+    @Benchmark
+    public JsonValue recursive() {
+        return mapRecursive(json, upperCase);
+    }
+
+    // The recursive walk as it used to be, kept here only to compare against.
+    private static JsonValue mapRecursive(JsonValue json, Function<JsonValue, JsonValue> f) {
+        JsonValue applied = f.apply(json);
+        if (applied.getValueType() == JsonValue.ValueType.OBJECT) {
+            JsonObjectBuilder builder = Json.createObjectBuilder();
+            ((JsonObject) applied).forEach((k, v) -> builder.add(k, mapRecursive(v, f)));
+            return builder.build();
+        }
+        else if (applied.getValueType() == JsonValue.ValueType.ARRAY) {
+            JsonArrayBuilder builder = Json.createArrayBuilder();
+            ((JsonArray) applied).forEach(v -> builder.add(mapRecursive(v, f)));
+            return builder.build();
+        }
+        return applied;
+    }
+}
@@ -0,0 +1,297 @@
+package io.github.jimmyhmiller;
+
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonException;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonValue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/*
+* A pass for an async stage, mapRecursiveAsync or mapAsync.
+*
+* Lambdas that call out to a service spend their time waiting, so rather than one node after another we find every
+* value the lambda takes first, start the lambda for up to maxConcurrency of them at once on the executor and start
+* the next one whenever a result comes in. Once all of them are in, the results are put back where their values were,
+* in document order. Nothing is blocked while waiting unless the caller asks for the result with toJson.
+*
+* What a lambda completes with is final, it isn't walked again the way the result of mapRecursive is.
+* There is no way to know how deep that would go before the results are in.
+* */
+final class AsyncMap {
+
+    // Virtual threads where the JVM has them (21 and up), otherwise a pool of daemon threads that grows as needed.
+    // maxConcurrency keeps either from starting more threads than there are lambdas waiting.
+    static final Executor DEFAULT_EXECUTOR = defaultExecutor();
+
+    private AsyncMap() {}
+
+    private static Executor defaultExecutor() {
+        try {
+            return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "json-transformer-async");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    static CompletableFuture<JsonValue> apply(JsonValue json, Stage stage, Options options, Executor executor) {
+        List<JsonValue> values = new ArrayList<>();
+        Consumer<JsonValue> found = value -> {
+            if (stage.handles(value.getValueType())) {
+                values.add(value);
+            }
+        };
+        if (!stage.elementsOnly) {
+            Scan.recursive(json, options.maxDepth, found);
+        } else if (json.getValueType() == JsonValue.ValueType.ARRAY) {
+            Scan.children(json, found);
+        }
+        if (values.isEmpty()) {
+            return CompletableFuture.completedFuture(json);
+        }
+        Launcher launcher = new Launcher(values.toArray(new JsonValue[values.size()]), stage.asyncFn, executor);
+        launcher.start(options.maxConcurrency);
+        if (stage.elementsOnly) {
+            return launcher.done.thenApply(results -> substituteElements((JsonArray) json, stage, options, results));
+        }
+        return launcher.done.thenApply(results -> substitute(json, stage, options, results));
+    }
+
+    // For toJson and streaming, which have to hand back the result itself.
+    static JsonValue join(CompletableFuture<JsonValue> result) {
+        try {
+            return result.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new JsonException("An async lambda failed", cause);
+        }
+    }
+
+    /*
+    * Keeps up to limit lambdas running. Each result that comes in starts the next value, until every value has had its turn.
+    * The first failure fails the whole run, values that haven't been started by then never are.
+    *
+    * Launches go through a trampoline. With an executor that runs tasks right away and lambdas that complete right away,
+    * every result would otherwise start the next value one frame deeper on the stack.
+    * */
+    private static final class Launcher {
+        private final JsonValue[] values;
+        private final JsonValue[] results;
+        private final Function<JsonValue, CompletionStage<JsonValue>> fn;
+        private final Executor executor;
+        private final AtomicInteger next = new AtomicInteger();
+        // Launches asked for and not yet made. Whoever takes it from 0 makes them, everyone else only adds to it.
+        private final AtomicInteger launches = new AtomicInteger();
+        // Counting down to the last result makes every earlier write to results visible to whoever completes done.
+        private final AtomicInteger remaining;
+        final CompletableFuture<JsonValue[]> done = new CompletableFuture<>();
+
+        Launcher(JsonValue[] values, Function<JsonValue, CompletionStage<JsonValue>> fn, Executor executor) {
+            this.values = values;
+            this.results = new JsonValue[values.length];
+            this.fn = fn;
+            this.executor = executor;
+            this.remaining = new AtomicInteger(values.length);
+        }
+
+        void start(int limit) {
+            for (int i = 0; i < Math.min(limit, values.length); i++) {
+                launchNext();
+            }
+        }
+
+        private void launchNext() {
+            if (launches.getAndIncrement() != 0) {
+                return;
+            }
+            do {
+                launch();
+            } while (launches.decrementAndGet() != 0);
+        }
+
+        private void launch() {
+            int k = next.getAndIncrement();
+            if (k >= values.length || done.isDone()) {
+                return;
+            }
+            try {
+                executor.execute(() -> {
+                    CompletionStage<JsonValue> result;
+                    try {
+                        result = fn.apply(values[k]);
+                    } catch (Throwable e) {
+                        done.completeExceptionally(e);
+                        return;
+                    }
+                    result.whenComplete((value, error) -> {
+                        if (error != null) {
+                            done.completeExceptionally(error);
+                            return;
+                        }
+                        results[k] = value;
+                        if (remaining.decrementAndGet() == 0) {
+                            done.complete(results);
+                        } else {
+                            launchNext();
+                        }
+                    });
+                });
+            } catch (RuntimeException e) {
+                done.completeExceptionally(e);
+            }
+        }
+    }
+
+    /*
+    * Puts the results in place of the values they came from. Values are taken in the same order Scan.recursive found them,
+    * with the same explicit stack. A container nothing was replaced in is kept as it is, the others are rebuilt
+    * the way FusedPass rebuilds them, persistent and pooled when the options say so.
+    * */
+    private static JsonValue substitute(JsonValue json, Stage stage, Options options, JsonValue[] results) {
+        if (!isContainer(json)) {
+            return results[0];
+        }
+        int next = 0;
+        ArrayDeque<Level> stack = new ArrayDeque<>();
+        stack.push(new Level(json, options));
+        while (true) {
+            Level top = stack.peek();
+            if (top.hasNext()) {
+                JsonValue child = top.next();
+                if (isContainer(child)) {
+                    stack.push(new Level(child, options));
+                } else {
+                    top.accept(stage.handles(child.getValueType()) ? results[next++] : child);
+                }
+            } else {
+                stack.pop();
+                JsonValue done = top.finish();
+                if (stack.isEmpty()) {
+                    return done;
+                }
+                stack.peek().accept(done);
+            }
+        }
+    }
+
+    // For mapAsync, only the elements of the root array were looked up.
+    private static JsonValue substituteElements(JsonArray json, Stage stage, Options options, JsonValue[] results) {
+        Level level = new Level(json, options);
+        int next = 0;
+        while (level.hasNext()) {
+            JsonValue element = level.next();
+            level.accept(stage.handles(element.getValueType()) ? results[next++] : element);
+        }
+        return level.finish();
+    }
+
+    private static final class Level {
+        private final JsonValue container;
+        private final boolean persistent;
+        private final Interner interner;
+        private final Iterator<Map.Entry<String, JsonValue>> entries;
+        private final Iterator<JsonValue> elements;
+        private final List<String> keys = new ArrayList<>();
+        private final List<JsonValue> children = new ArrayList<>();
+        private final List<JsonValue> originals = new ArrayList<>();
+        private boolean changed;
+        private String key;
+        private JsonValue original;
+
+        Level(JsonValue container, Options options) {
+            this.container = container;
+            this.persistent = options.persistent;
+            this.interner = options.interner;
+            boolean object = container.getValueType() == JsonValue.ValueType.OBJECT;
+            this.entries = object ? ((JsonObject) container).entrySet().iterator() : null;
+            this.elements = object ? null : ((JsonArray) container).iterator();
+        }
+
+        boolean hasNext() {
+            return entries != null ? entries.hasNext() : elements.hasNext();
+        }
+
+        JsonValue next() {
+            if (entries != null) {
+                Map.Entry<String, JsonValue> entry = entries.next();
+                key = entry.getKey();
+                original = entry.getValue();
+            } else {
+                original = elements.next();
+            }
+            return original;
+        }
+
+        void accept(JsonValue child) {
+            changed |= child != original;
+            keys.add(key);
+            children.add(child);
+            originals.add(original);
+        }
+
+        JsonValue finish() {
+            if (!changed) {
+                return container;
+            }
+            // Persistent containers only set what changed, like a persistent FusedPass frame.
+            if (entries != null && persistent) {
+                PersistentJsonObject result = PersistentJsonObject.of((JsonObject) container);
+                for (int i = 0; i < children.size(); i++) {
+                    if (children.get(i) != originals.get(i)) {
+                        result = result.with(FusedPass.key(interner, keys.get(i)), FusedPass.value(interner, children.get(i)));
+                    }
+                }
+                return result;
+            }
+            if (persistent) {
+                PersistentJsonArray result = PersistentJsonArray.of((JsonArray) container);
+                for (int i = 0; i < children.size(); i++) {
+                    if (children.get(i) != originals.get(i)) {
+                        result = result.with(i, FusedPass.value(interner, children.get(i)));
+                    }
+                }
+                return result;
+            }
+            if (entries != null) {
+                JsonObjectBuilder builder = JsonTransformer.BUILDERS.createObjectBuilder();
+                for (int i = 0; i < children.size(); i++) {
+                    builder.add(FusedPass.key(interner, keys.get(i)), FusedPass.value(interner, children.get(i)));
+                }
+                return builder.build();
+            }
+            JsonArrayBuilder builder = JsonTransformer.BUILDERS.createArrayBuilder();
+            for (JsonValue child : children) {
+                builder.add(FusedPass.value(interner, child));
+            }
+            return builder.build();
+        }
+    }
+
+    private static boolean isContainer(JsonValue json) {
+        JsonValue.ValueType type = json.getValueType();
+        return type == JsonValue.ValueType.OBJECT || type == JsonValue.ValueType.ARRAY;
+    }
+}
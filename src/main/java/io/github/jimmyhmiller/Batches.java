@@ -0,0 +1,126 @@
+package io.github.jimmyhmiller;
+
+import javax.json.JsonException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/*
+* The bounded read, transform, write pipeline behind JsonLines and JsonArrayFile.
+*
+* A reader thread cuts the input into batches, worker threads turn each batch into a finished piece of output
+* and the calling thread writes those pieces. A semaphore keeps only a few batches per worker in flight,
+* the reader blocks until the writer catches up, so memory depends on the batch size and not on the input.
+* Ordered, pieces are written in the order their batches were cut. Unordered, as soon as they are done.
+* */
+final class Batches {
+
+    // Batches in flight per worker, enough to keep workers busy while the writer catches up.
+    private static final int BATCHES_PER_THREAD = 2;
+
+    private Batches() {}
+
+    interface Source<B> {
+        void cut(Submitter<B> submitter) throws IOException, InterruptedException;
+    }
+
+    interface Submitter<B> {
+        void submit(B batch) throws InterruptedException;
+    }
+
+    interface Output {
+        void write(String piece) throws IOException;
+    }
+
+    static <B> void run(String name, int threads, boolean ordered, Source<B> source, Function<B, String> work, Output output) throws IOException {
+        ExecutorService workers = Executors.newFixedThreadPool(threads, daemonThreads(name + "-worker"));
+        int maxInFlight = threads * BATCHES_PER_THREAD;
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        BlockingQueue<Future<String>> finished = new LinkedBlockingQueue<>();
+        Future<String> end = CompletableFuture.completedFuture(null);
+
+        // Ordered, futures are queued as they are submitted so they get written in that order.
+        // Unordered, the completion service queues them as they finish.
+        ExecutorCompletionService<String> completions = ordered ? null : new ExecutorCompletionService<>(workers, finished);
+        Submitter<B> submitter = batch -> {
+            inFlight.acquire();
+            if (completions != null) {
+                completions.submit(() -> work.apply(batch));
+            } else {
+                finished.put(workers.submit(() -> work.apply(batch)));
+            }
+        };
+
+        Thread reader = daemonThreads(name + "-reader").newThread(() -> {
+            try {
+                source.cut(submitter);
+                // Every permit back means every batch has been written.
+                inFlight.acquire(maxInFlight);
+                finished.put(end);
+            } catch (InterruptedException e) {
+                // The writer gave up, nothing left to do.
+            } catch (IOException e) {
+                finished.add(failed(new UncheckedIOException(e)));
+            } catch (RuntimeException | Error e) {
+                // Anything else, an OutOfMemoryError cutting a huge batch included, still has to reach the writer or it waits forever.
+                finished.add(failed(e));
+            }
+        });
+
+        reader.start();
+        try {
+            while (true) {
+                Future<String> next = finished.take();
+                if (next == end) {
+                    break;
+                }
+                output.write(next.get());
+                inFlight.release();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new JsonException("Interrupted while transforming " + name, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause();
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new JsonException(cause.getMessage(), cause);
+        } finally {
+            reader.interrupt();
+            workers.shutdownNow();
+        }
+    }
+
+    private static Future<String> failed(Throwable e) {
+        CompletableFuture<String> future = new CompletableFuture<>();
+        future.completeExceptionally(e);
+        return future;
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
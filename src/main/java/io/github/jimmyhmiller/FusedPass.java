@@ -0,0 +1,1034 @@
+package io.github.jimmyhmiller;
+
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonValue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/*
+* ## The Heart
+* This is the fundamental piece that drives the application.
+* It recurses the json tree applying our functions to each element in the tree.
+*
+* A pass is a run of stages that can be computed in a single traversal.
+* Applying mapRecursive(f) and then mapRecursive(g) is the same as visiting each node once
+* and applying f and then g, as long as g leaves objects and arrays alone. If f produces a
+* container we descend into it with both functions, if it produces a primitive we hand that
+* primitive to g (which may in turn produce a container we then descend into with g alone).
+* A function that looks at containers has to see the finished result of the stages before it,
+* so it always starts a new pass.
+*
+* Shallow stages (map on keys/values, map on array elements, add) only ever look at the
+* children of the root. They are applied while the root is being rebuilt rather than copying it again.
+*
+* Path stages (mapAt, addAt) don't walk the tree at all, they follow their path down to what it matches.
+* Each one is a pass of its own. So is each async stage, see AsyncMap.
+*
+* Filters are stages whose function hands back null for a value that should be dropped. Functions run on a
+* node before we descend into it, so a dropped subtree is never walked or copied. The root itself can't be dropped,
+* there is nothing to drop it from. An add after a filter starts a new pass, a key that was dropped and added
+* back again moves to the end of the object and that only comes out right if the filter has already run.
+* */
+final class FusedPass implements Function<JsonValue, JsonValue> {
+
+    // Incremental updates recurse, a container deeper than this is walked instead.
+    private static final int MAX_UPDATE_DEPTH = 256;
+
+    // Only ever added to while fusing, a pass is never changed once it has been handed out.
+    private final List<Stage> chain = new ArrayList<>();
+    private final List<Stage> rootStages = new ArrayList<>();
+    private final Options options;
+    // A path or async stage, each of which is a pass of its own. null for passes that walk the tree.
+    private final Stage single;
+    // Only set when the run is recorded for a listener.
+    private final Recording.PassCounters counters;
+    // dispatch[i][type] is the first stage of the chain from i onwards that is called with values of the type,
+    // chain.size() when there is none. Set once fusing is done, for passes that walk the tree.
+    private int[][] dispatch;
+    // handled[i] is the types any stage of the chain from i onwards is called with, as bits by ValueType ordinal.
+    private int[] handled;
+
+    private FusedPass(Options options, Stage single, boolean counted) {
+        this.options = options;
+        this.single = single;
+        this.counters = counted ? new Recording.PassCounters() : null;
+    }
+
+    static List<FusedPass> fuse(List<Stage> stages, Options options, boolean counted) {
+        List<FusedPass> passes = new ArrayList<>();
+        FusedPass current = null;
+        for (Stage stage : stages) {
+            if (stage.kind == Stage.Kind.PATH || stage.kind == Stage.Kind.ASYNC) {
+                current = new FusedPass(options, stage, counted);
+                passes.add(current);
+            } else if (stage.isRecursive()) {
+                if (current == null || current.chain.isEmpty() || !current.rootStages.isEmpty() || stage.touchesContainers()) {
+                    current = new FusedPass(options, null, counted);
+                    passes.add(current);
+                }
+                current.chain.add(stage);
+            } else {
+                if (current == null || current.single != null || (stage.kind == Stage.Kind.ADD && current.drops())) {
+                    current = new FusedPass(options, null, counted);
+                    passes.add(current);
+                }
+                current.rootStages.add(stage);
+            }
+        }
+        for (FusedPass pass : passes) {
+            if (pass.single == null) {
+                pass.dispatch = pass.dispatchTable();
+                pass.handled = pass.handledTypes();
+            }
+        }
+        return passes;
+    }
+
+    /*
+    * Each node of the walk only goes to the stages that take its type. Rather than ask every stage of the chain in turn,
+    * the next one for each type is looked up in a table built once for the pass, so a string goes from one string stage
+    * straight to the next and never past the number or object stages in between. The last row is past the end of the chain.
+    * */
+    private int[][] dispatchTable() {
+        JsonValue.ValueType[] types = JsonValue.ValueType.values();
+        int[][] table = new int[chain.size() + 1][types.length];
+        Arrays.fill(table[chain.size()], chain.size());
+        for (int i = chain.size() - 1; i >= 0; i--) {
+            for (JsonValue.ValueType type : types) {
+                table[i][type.ordinal()] = chain.get(i).handles(type) ? i : table[i + 1][type.ordinal()];
+            }
+        }
+        return table;
+    }
+
+    private int[] handledTypes() {
+        int[] types = new int[chain.size() + 1];
+        for (int i = 0; i < chain.size(); i++) {
+            for (JsonValue.ValueType type : JsonValue.ValueType.values()) {
+                types[i] |= dispatch[i][type.ordinal()] < chain.size() ? Shape.bit(type) : 0;
+            }
+        }
+        return types;
+    }
+
+    boolean drops() {
+        for (Stage stage : chain) {
+            if (stage.drops) {
+                return true;
+            }
+        }
+        for (Stage stage : rootStages) {
+            if (stage.drops) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public JsonValue apply(JsonValue json) {
+        if (isAsync()) {
+            return AsyncMap.join(applyAsync(json, AsyncMap.DEFAULT_EXECUTOR));
+        }
+        if (single != null) {
+            return single.path.update(json, single::apply, options.persistent, options.interner, counters);
+        }
+        if (chain.isEmpty() && onlyKeyStages() && json.getValueType() == JsonValue.ValueType.OBJECT) {
+            return addAll((JsonObject) json);
+        }
+        if (options.isParallel()) {
+            return options.pool.invoke(ForkJoinTask.adapt(() -> fused(0, json, rootStages, 0, null, null)));
+        }
+        return fused(0, json, rootStages, 0, null, null);
+    }
+
+    boolean isAsync() {
+        return single != null && single.kind == Stage.Kind.ASYNC;
+    }
+
+    // Only for async passes, the others are done as soon as apply returns.
+    CompletableFuture<JsonValue> applyAsync(JsonValue json, Executor executor) {
+        return AsyncMap.apply(json, single, options, executor);
+    }
+
+    // A node below the root, shallow stages don't apply to it. null when a filter drops it.
+    JsonValue applyChild(JsonValue json, int depth) {
+        return fused(0, json, Collections.<Stage>emptyList(), depth, null, null);
+    }
+
+    // How many of the stages handed to fuse ended up in this pass.
+    int stageCount() {
+        return chain.size() + rootStages.size() + (single == null ? 0 : 1);
+    }
+
+    Recording.PassCounters counters() {
+        return counters;
+    }
+
+    // For containers streamed through as events, which never go through the walk.
+    void countVisit() {
+        if (counters != null) {
+            counters.visited.increment();
+        }
+    }
+
+    int maxDepth() {
+        return options.maxDepth;
+    }
+
+    // What a child of the root object ends up as once the shallow stages have run over it.
+    JsonValue applyRootEntry(String key, JsonValue child) {
+        return applyEntryStages(rootStages, 0, key, child);
+    }
+
+    JsonValue applyRootElement(JsonValue child) {
+        return applyElementStages(rootStages, child);
+    }
+
+    boolean replacesRootKey(String key) {
+        return lastAdd(key) >= 0;
+    }
+
+    // Whether the key is removed from the root object whatever its value, so streaming can skip it unread.
+    boolean removesRootKey(String key) {
+        for (Stage stage : rootStages) {
+            if (stage.kind == Stage.Kind.REMOVE && stage.key.equals(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // The value an add gives to a key that already exists, regardless of what it was before.
+    JsonValue rootReplacement(String key) {
+        int j = lastAdd(key);
+        return applyEntryStages(rootStages, j + 1, key, rootStages.get(j).value);
+    }
+
+    boolean hasAdditions() {
+        for (Stage stage : rootStages) {
+            if (stage.kind == Stage.Kind.ADD) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Keys added to the root object that weren't there before, in the order they are added.
+    void forEachAddition(Set<String> present, BiConsumer<String, JsonValue> consumer) {
+        forEachAddition(rootStages, present, consumer);
+    }
+
+    static void forEachAddition(List<Stage> stages, Set<String> present, BiConsumer<String, JsonValue> consumer) {
+        Set<String> added = new HashSet<>();
+        for (int j = 0; j < stages.size(); j++) {
+            Stage stage = stages.get(j);
+            if (stage.kind == Stage.Kind.ADD && !present.contains(stage.key) && added.add(stage.key)) {
+                JsonValue value = applyEntryStages(stages, j + 1, stage.key, stage.value);
+                if (value != null) {
+                    consumer.accept(stage.key, value);
+                }
+            }
+        }
+    }
+
+    // Whether the first function of the pass looks at containers of this type, it then needs the whole subtree.
+    // Path and async passes only ever see the root as a whole, so streaming buffers the document for them.
+    boolean needsSubtree(JsonValue.ValueType type) {
+        return single != null || (!chain.isEmpty() && chain.get(0).types.contains(type));
+    }
+
+    boolean rootStagesNeedSubtree(boolean rootIsObject, JsonValue.ValueType type) {
+        Stage.Kind kind = rootIsObject ? Stage.Kind.MAP_OBJECT : Stage.Kind.MAP_ARRAY;
+        for (Stage stage : rootStages) {
+            if (stage.kind == kind && stage.types.contains(type)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean onlyKeyStages() {
+        for (Stage stage : rootStages) {
+            if (stage.kind != Stage.Kind.ADD && stage.kind != Stage.Kind.REMOVE) {
+                return false;
+            }
+        }
+        return !rootStages.isEmpty();
+    }
+
+    // Nothing but adds and removes on an object, so there is no need to walk its children.
+    // Persistent objects make this O(stages * log n).
+    private JsonObject addAll(JsonObject json) {
+        JsonObject result;
+        if (options.persistent) {
+            PersistentJsonObject changed = PersistentJsonObject.of(json);
+            for (Stage stage : rootStages) {
+                changed = stage.kind == Stage.Kind.ADD ? changed.with(stage.key, stage.value) : changed.without(stage.key);
+            }
+            result = changed;
+        } else if (!drops()) {
+            JsonObjectBuilder builder = JsonTransformer.jsonObjectToBuilder(json);
+            for (Stage stage : rootStages) {
+                builder.add(stage.key, stage.value);
+            }
+            result = builder.build();
+        } else {
+            result = removeAll(json);
+        }
+        if (counters != null && result != json) {
+            counters.rebuilt.increment();
+        }
+        return result;
+    }
+
+    // Builders can't remove keys, so we only copy the entries that survive. Adds never follow a remove in one pass.
+    private JsonObject removeAll(JsonObject json) {
+        JsonObjectBuilder builder = null;
+        int position = 0;
+        for (Map.Entry<String, JsonValue> entry : json.entrySet()) {
+            JsonValue value = applyEntryStages(rootStages, 0, entry.getKey(), entry.getValue());
+            if (builder == null && value != entry.getValue()) {
+                builder = copyEntries(json, position, options.interner);
+            }
+            if (builder != null && value != null) {
+                builder.add(key(options.interner, entry.getKey()), value(options.interner, value));
+            }
+            position++;
+        }
+        for (int j = 0; j < rootStages.size(); j++) {
+            Stage stage = rootStages.get(j);
+            if (stage.kind == Stage.Kind.ADD && !json.containsKey(stage.key)) {
+                JsonValue value = applyEntryStages(rootStages, j + 1, stage.key, stage.value);
+                if (value != null) {
+                    if (builder == null) {
+                        builder = copyEntries(json, position, options.interner);
+                    }
+                    builder.add(stage.key, value);
+                }
+            }
+        }
+        return builder == null ? json : builder.build();
+    }
+
+    private int lastAdd(String key) {
+        for (int j = rootStages.size() - 1; j >= 0; j--) {
+            Stage stage = rootStages.get(j);
+            if (stage.kind == Stage.Kind.ADD && stage.key.equals(key)) {
+                return j;
+            }
+        }
+        return -1;
+    }
+
+    /*
+    * ## The Walk
+    * The tree is walked with an explicit stack of frames rather than on the Java stack,
+    * so however deeply a document is nested we never run out of stack.
+    * Each frame is a container we are part way through. We take its next child, run the chain over it and
+    * either get a finished value straight away (primitives) or a new frame to push. When a frame runs out of children
+    * it is popped and its result handed to the frame below.
+    *
+    * Incremental runs hand in a cache and what json replaced, see Incremental below.
+    *
+    * With a shape, frames know what their children are expected to look like. A child whose shape has nothing anywhere
+    * in it of a type the rest of the chain takes is handed back as it is, once Scan.none has made sure, rather than walked.
+    * The shape is only followed where the document still is the input, and stops being trusted below a child it was wrong about.
+    * */
+    private JsonValue fused(int i, JsonValue json, List<Stage> stages, int depth, IncrementalTransform.Cache cache,
+                            JsonValue previous) {
+        Object first = descend(i, json, stages, depth, false);
+        if (!(first instanceof Frame)) {
+            return (JsonValue) first;
+        }
+        ArrayDeque<Frame> stack = new ArrayDeque<>();
+        stack.push((Frame) first);
+        ((Frame) first).previous = previous;
+        if (options.shape != null && cache == null && depth == 0 && ((Frame) first).container() == json) {
+            ((Frame) first).shape = options.shape;
+        }
+        while (true) {
+            Frame top = stack.peek();
+            if (top.hasNext()) {
+                JsonValue original = top.next();
+                JsonValue child;
+                Shape shape = top.shape == null ? null : top.childShape();
+                boolean skip = shape != null && (shape.reach & handled[top.i]) == 0;
+                if (top.forked != null) {
+                    child = top.forked[top.index - 1];
+                } else if (skip && Scan.none(original, handled[top.i], top.depth + 1, options.maxDepth)) {
+                    child = original;
+                } else {
+                    boolean cached = cache != null && isContainer(original);
+                    JsonValue before = cached ? top.previousChild() : null;
+                    Object next = cached ? reuse(before, original, top.i, top.depth + 1, cache) : IncrementalTransform.Cache.MISSING;
+                    if (next == IncrementalTransform.Cache.MISSING) {
+                        next = descend(top.i, original, Collections.<Stage>emptyList(), top.depth + 1, false);
+                        if (next instanceof Frame) {
+                            Frame frame = (Frame) next;
+                            if (cached) {
+                                frame.source = original;
+                                frame.from = top.i;
+                                frame.previous = before;
+                            }
+                            if (shape != null && !skip && frame.container() == original) {
+                                frame.shape = shape;
+                            }
+                            stack.push(frame);
+                            continue;
+                        }
+                        if (cached) {
+                            cache.put(original, top.i, top.depth + 1, (JsonValue) next);
+                        }
+                    }
+                    child = (JsonValue) next;
+                }
+                top.accept(child);
+            } else {
+                stack.pop();
+                JsonValue done = top.finish();
+                if (counters != null && top.rebuilt()) {
+                    counters.rebuilt.increment();
+                }
+                if (top.source != null) {
+                    if (top.previous != null) {
+                        cache.remove(top.previous, top.from, top.depth);
+                    }
+                    cache.put(top.source, top.from, top.depth, done);
+                }
+                if (stack.isEmpty()) {
+                    return done;
+                }
+                stack.peek().accept(done);
+            }
+        }
+    }
+
+    // Runs the chain over a node until it is either a finished value or a container we have to walk,
+    // in which case we hand back the Frame for it, or a view of it when lazy.
+    private Object descend(int i, JsonValue json, List<Stage> stages, int depth, boolean lazy) {
+        if (counters != null) {
+            counters.visited.increment();
+        }
+        JsonValue current = json;
+        int end = chain.size();
+        // A container the stage at i doesn't take is walked with the chain from i, as it would be had that stage handed it back.
+        if (i < end && isContainer(current) && !chain.get(i).handles(current.getValueType())) {
+            return lazy ? view(current, i, stages, depth) : open(current, i, stages, depth);
+        }
+        for (i = dispatch[i][current.getValueType().ordinal()]; i < end; i = dispatch[i + 1][current.getValueType().ordinal()]) {
+            JsonValue applied = chain.get(i).fn.apply(current);
+            if (applied == null) {
+                if (depth > 0) {
+                    return null;
+                }
+                applied = current;
+            }
+            if (isContainer(applied)) {
+                return lazy ? view(applied, i, stages, depth) : open(applied, i, stages, depth);
+            }
+            current = applied;
+        }
+        if (!stages.isEmpty() && isContainer(current)) {
+            return lazy ? view(current, i, stages, depth) : open(current, i, stages, depth);
+        }
+        return current;
+    }
+
+    private Frame open(JsonValue container, int i, List<Stage> stages, int depth) {
+        checkDepth(depth);
+        if (container.getValueType() == JsonValue.ValueType.OBJECT) {
+            JsonObject json = (JsonObject) container;
+            return new ObjectFrame(json, i, stages, depth, fork(json.values(), i, depth), options.persistent, options.interner);
+        }
+        JsonArray json = (JsonArray) container;
+        return new ArrayFrame(json, i, stages, depth, fork(json, i, depth), options.persistent, options.interner);
+    }
+
+    private void checkDepth(int depth) {
+        if (depth >= options.maxDepth) {
+            throw new JsonDepthException(options.maxDepth);
+        }
+    }
+
+    /*
+    * ## Lazy
+    * A lazy pass runs the chain over the root and hands back a view of the container it ends up with instead of walking it.
+    * The view finishes the pass for a child the first time that child is read, see LazyJsonObject and LazyJsonArray.
+    * Children that come out as containers are views in turn, so nothing that is never read gets transformed.
+    * The pass after a lazy one reads its views, which makes a whole pipeline lazy.
+    * Path passes follow their path through the views and copy what they change the same way they always do.
+    * Async passes have to find every value their lambda takes before they start, so they read the views they are given.
+    * */
+    JsonValue applyLazily(JsonValue json) {
+        if (single != null) {
+            return apply(json);
+        }
+        return (JsonValue) descend(0, json, rootStages, 0, true);
+    }
+
+    // A child of a view, picking the chain up at i. null when a filter drops it.
+    JsonValue applyLazily(int i, JsonValue json, int depth) {
+        return (JsonValue) descend(i, json, Collections.<Stage>emptyList(), depth, true);
+    }
+
+    private JsonValue view(JsonValue container, int i, List<Stage> stages, int depth) {
+        checkDepth(depth);
+        if (container.getValueType() == JsonValue.ValueType.OBJECT) {
+            return new LazyJsonObject(this, (JsonObject) container, i, stages, depth);
+        }
+        return new LazyJsonArray(this, (JsonArray) container, i, stages, depth);
+    }
+
+    /*
+    * ## Incremental
+    * An incremental run (see IncrementalTransform) gets what the root replaced and what that came out as, and a cache of
+    * what every container below the root came out as, by the container it was, the index of the chain and the depth.
+    *
+    * A container the cache has a result for is handed that result. One that replaced a container the cache has a result
+    * for, and that no stage of the chain from its index takes, is updated rather than walked: its children are compared
+    * with those of the one it replaced, and only those that aren't the very same value are done again, by the same means.
+    * Their results are put into the old result, with with and without when that is persistent or the pass is.
+    * That only works as long as the result is still in the same order as it would be walked. Children that are still
+    * there have to be in the order they were, ahead of new ones, an array has to keep its size and nothing in it can be
+    * dropped or come back. A container that doesn't qualify is walked, the containers in it still get every chance.
+    * The root is updated the same way when there are no shallow stages. Either way the container that was replaced
+    * leaves the cache.
+    * */
+    JsonValue applyIncrementally(JsonValue json, JsonValue previous, JsonValue previousResult, IncrementalTransform.Cache cache) {
+        if (single != null || (chain.isEmpty() && onlyKeyStages() && json.getValueType() == JsonValue.ValueType.OBJECT)) {
+            return apply(json);
+        }
+        if (previous != null && rootStages.isEmpty() && isContainer(json)) {
+            Object updated = update(previous, json, previousResult, 0, 0, cache);
+            if (updated != IncrementalTransform.Cache.MISSING) {
+                return (JsonValue) updated;
+            }
+        }
+        return fused(0, json, rootStages, 0, cache, previous);
+    }
+
+    // What a container comes out as without walking it, MISSING when it has to be walked.
+    private Object reuse(JsonValue before, JsonValue after, int i, int depth, IncrementalTransform.Cache cache) {
+        if (!isContainer(after)) {
+            return IncrementalTransform.Cache.MISSING;
+        }
+        Object cached = cache.get(after, i, depth);
+        if (cached != IncrementalTransform.Cache.MISSING || before == null) {
+            return cached;
+        }
+        Object earlier = cache.get(before, i, depth);
+        if (earlier == IncrementalTransform.Cache.MISSING || earlier == null) {
+            return IncrementalTransform.Cache.MISSING;
+        }
+        Object updated = update(before, after, (JsonValue) earlier, i, depth, cache);
+        if (updated != IncrementalTransform.Cache.MISSING) {
+            cache.remove(before, i, depth);
+            cache.put(after, i, depth, (JsonValue) updated);
+        }
+        return updated;
+    }
+
+    private Object update(JsonValue before, JsonValue after, JsonValue result, int i, int depth, IncrementalTransform.Cache cache) {
+        JsonValue.ValueType type = after.getValueType();
+        if (depth > MAX_UPDATE_DEPTH || options.interner != null || before.getValueType() != type
+                || result.getValueType() != type || (i < chain.size() && chain.get(i).handles(type))) {
+            return IncrementalTransform.Cache.MISSING;
+        }
+        if (i == chain.size()) {
+            return after;
+        }
+        if (type == JsonValue.ValueType.OBJECT) {
+            return updateObject((JsonObject) before, (JsonObject) after, (JsonObject) result, i, depth, cache);
+        }
+        return updateArray((JsonArray) before, (JsonArray) after, (JsonArray) result, i, depth, cache);
+    }
+
+    private Object updateObject(JsonObject before, JsonObject after, JsonObject result, int i, int depth,
+                                IncrementalTransform.Cache cache) {
+        // New values by key, null for a key that has to go. Keys result doesn't have yet come last.
+        Map<String, JsonValue> changes = new LinkedHashMap<>();
+        Iterator<String> keys = before.keySet().iterator();
+        boolean added = false;
+        for (Map.Entry<String, JsonValue> entry : after.entrySet()) {
+            String key = entry.getKey();
+            JsonValue was = before.get(key);
+            if (was == null) {
+                added = true;
+                JsonValue child = updateChild(null, entry.getValue(), i, depth + 1, cache);
+                if (child != null) {
+                    changes.put(key, child);
+                }
+                continue;
+            }
+            String next = keys.next();
+            while (!after.containsKey(next)) {
+                changes.put(next, null);
+                next = keys.next();
+            }
+            if (added || !next.equals(key)) {
+                return IncrementalTransform.Cache.MISSING;
+            }
+            if (was == entry.getValue()) {
+                continue;
+            }
+            JsonValue child = updateChild(was, entry.getValue(), i, depth + 1, cache);
+            if (!result.containsKey(key)) {
+                if (child != null) {
+                    return IncrementalTransform.Cache.MISSING;
+                }
+            } else if (child != result.get(key)) {
+                changes.put(key, child);
+            }
+        }
+        while (keys.hasNext()) {
+            changes.put(keys.next(), null);
+        }
+        if (changes.isEmpty()) {
+            return result;
+        }
+        if (options.persistent || result instanceof PersistentJsonObject) {
+            PersistentJsonObject changed = PersistentJsonObject.of(result);
+            for (Map.Entry<String, JsonValue> change : changes.entrySet()) {
+                changed = change.getValue() == null ? changed.without(change.getKey()) : changed.with(change.getKey(), change.getValue());
+            }
+            return changed;
+        }
+        JsonObjectBuilder builder = JsonTransformer.BUILDERS.createObjectBuilder();
+        for (Map.Entry<String, JsonValue> entry : result.entrySet()) {
+            JsonValue child = changes.containsKey(entry.getKey()) ? changes.get(entry.getKey()) : entry.getValue();
+            if (child != null) {
+                builder.add(entry.getKey(), child);
+            }
+        }
+        for (Map.Entry<String, JsonValue> change : changes.entrySet()) {
+            if (change.getValue() != null && !result.containsKey(change.getKey())) {
+                builder.add(change.getKey(), change.getValue());
+            }
+        }
+        return builder.build();
+    }
+
+    private Object updateArray(JsonArray before, JsonArray after, JsonArray result, int i, int depth,
+                               IncrementalTransform.Cache cache) {
+        if (after.size() != before.size() || result.size() != before.size()) {
+            return IncrementalTransform.Cache.MISSING;
+        }
+        List<Integer> indexes = new ArrayList<>();
+        List<JsonValue> children = new ArrayList<>();
+        Iterator<JsonValue> earlier = before.iterator();
+        int k = 0;
+        for (JsonValue element : after) {
+            JsonValue was = earlier.next();
+            if (was != element) {
+                JsonValue child = updateChild(was, element, i, depth + 1, cache);
+                if (child == null) {
+                    return IncrementalTransform.Cache.MISSING;
+                }
+                if (child != result.get(k)) {
+                    indexes.add(k);
+                    children.add(child);
+                }
+            }
+            k++;
+        }
+        if (indexes.isEmpty()) {
+            return result;
+        }
+        if (options.persistent || result instanceof PersistentJsonArray) {
+            PersistentJsonArray changed = PersistentJsonArray.of(result);
+            for (int j = 0; j < indexes.size(); j++) {
+                changed = changed.with(indexes.get(j), children.get(j));
+            }
+            return changed;
+        }
+        JsonArrayBuilder builder = JsonTransformer.BUILDERS.createArrayBuilder();
+        int next = 0;
+        for (int j = 0; j < result.size(); j++) {
+            if (next < indexes.size() && indexes.get(next) == j) {
+                builder.add(children.get(next++));
+            } else {
+                builder.add(result.get(j));
+            }
+        }
+        return builder.build();
+    }
+
+    // A child of a container being updated, null when a filter drops it.
+    private JsonValue updateChild(JsonValue before, JsonValue after, int i, int depth, IncrementalTransform.Cache cache) {
+        Object reused = reuse(before, after, i, depth, cache);
+        if (reused != IncrementalTransform.Cache.MISSING) {
+            return (JsonValue) reused;
+        }
+        JsonValue result = fused(i, after, Collections.<Stage>emptyList(), depth, cache, before);
+        if (isContainer(after)) {
+            if (before != null) {
+                cache.remove(before, i, depth);
+            }
+            cache.put(after, i, depth, result);
+        }
+        return result;
+    }
+
+    /*
+    * Rebuilding is copy on write. As long as every child comes back as the very same value we keep going
+    * without a builder, the first time one differs we copy the children we already passed over and carry on.
+    * If nothing changed the original container is returned as is, so untouched subtrees are shared.
+    * Persistent frames don't copy at all, they start from a persistent version of the original and set only what changed.
+    * With an interner the keys and short strings that go into a rebuilt container come from its pools.
+    * */
+    private abstract static class Frame {
+        final int i;
+        final List<Stage> stages;
+        final int depth;
+        final JsonValue[] forked;
+        final boolean persistent;
+        final Interner interner;
+        int index = 0;
+        // In an incremental run, the container this frame came from, the index of the chain it was handed to
+        // and what that container replaced, if anything.
+        JsonValue source;
+        int from;
+        JsonValue previous;
+        // What the children are expected to look like, when there is a shape to go by.
+        Shape shape;
+
+        Frame(int i, List<Stage> stages, int depth, JsonValue[] forked, boolean persistent, Interner interner) {
+            this.i = i;
+            this.stages = stages;
+            this.depth = depth;
+            this.forked = forked;
+            this.persistent = persistent;
+            this.interner = interner;
+        }
+
+        abstract boolean hasNext();
+        abstract JsonValue next();
+        abstract void accept(JsonValue child);
+        abstract JsonValue finish();
+        // The child of previous in the place of the one next handed out last, if there is one.
+        abstract JsonValue previousChild();
+        abstract JsonValue container();
+        // The shape of the child next handed out last.
+        abstract Shape childShape();
+        // Only meaningful once finished.
+        abstract boolean rebuilt();
+    }
+
+    private static final class ObjectFrame extends Frame {
+        private final JsonObject json;
+        private final Iterator<Map.Entry<String, JsonValue>> entries;
+        private String key;
+        private JsonValue original;
+        private JsonObjectBuilder builder;
+        private PersistentJsonObject changed;
+
+        ObjectFrame(JsonObject json, int i, List<Stage> stages, int depth, JsonValue[] forked, boolean persistent,
+                    Interner interner) {
+            super(i, stages, depth, forked, persistent, interner);
+            this.json = json;
+            this.entries = json.entrySet().iterator();
+        }
+
+        @Override
+        boolean hasNext() {
+            return entries.hasNext();
+        }
+
+        @Override
+        JsonValue next() {
+            Map.Entry<String, JsonValue> entry = entries.next();
+            key = entry.getKey();
+            original = entry.getValue();
+            index++;
+            return original;
+        }
+
+        @Override
+        void accept(JsonValue transformed) {
+            JsonValue child = transformed == null ? null : applyEntryStages(stages, 0, key, transformed);
+            if (persistent) {
+                if (child != original) {
+                    PersistentJsonObject from = changed == null ? PersistentJsonObject.of(json) : changed;
+                    changed = child == null ? from.without(key) : from.with(key(interner, key), value(interner, child));
+                }
+                return;
+            }
+            if (builder == null && child != original) {
+                builder = copyEntries(json, index - 1, interner);
+            }
+            if (builder != null && child != null) {
+                builder.add(key(interner, key), value(interner, child));
+            }
+        }
+
+        @Override
+        JsonValue finish() {
+            Set<String> added = stages.isEmpty() ? Collections.<String>emptySet() : new HashSet<>();
+            for (int j = 0; j < stages.size(); j++) {
+                Stage stage = stages.get(j);
+                if (stage.kind == Stage.Kind.ADD && !json.containsKey(stage.key) && added.add(stage.key)) {
+                    JsonValue value = applyEntryStages(stages, j + 1, stage.key, stage.value);
+                    if (value == null) {
+                        continue;
+                    }
+                    value = value(interner, value);
+                    if (persistent) {
+                        changed = (changed == null ? PersistentJsonObject.of(json) : changed).with(stage.key, value);
+                        continue;
+                    }
+                    if (builder == null) {
+                        builder = copyEntries(json, index, interner);
+                    }
+                    builder.add(stage.key, value);
+                }
+            }
+            if (changed != null) {
+                return changed;
+            }
+            return builder == null ? json : builder.build();
+        }
+
+        @Override
+        boolean rebuilt() {
+            return builder != null || changed != null;
+        }
+
+        @Override
+        JsonValue previousChild() {
+            return previous instanceof JsonObject ? ((JsonObject) previous).get(key) : null;
+        }
+
+        @Override
+        JsonValue container() {
+            return json;
+        }
+
+        @Override
+        Shape childShape() {
+            return shape.property(key);
+        }
+    }
+
+    private static final class ArrayFrame extends Frame {
+        private final JsonArray json;
+        private final Iterator<JsonValue> elements;
+        private JsonValue original;
+        private JsonArrayBuilder builder;
+        private PersistentJsonArray changed;
+
+        ArrayFrame(JsonArray json, int i, List<Stage> stages, int depth, JsonValue[] forked, boolean persistent,
+                    Interner interner) {
+            super(i, stages, depth, forked, persistent, interner);
+            this.json = json;
+            this.elements = json.iterator();
+        }
+
+        @Override
+        boolean hasNext() {
+            return elements.hasNext();
+        }
+
+        @Override
+        JsonValue next() {
+            original = elements.next();
+            index++;
+            return original;
+        }
+
+        @Override
+        void accept(JsonValue transformed) {
+            JsonValue child = transformed == null ? null : applyElementStages(stages, transformed);
+            // Dropping an element shifts everything after it, so persistent frames fall back to a builder from then on.
+            if (persistent && builder == null && child != null) {
+                if (child != original) {
+                    changed = (changed == null ? PersistentJsonArray.of(json) : changed).with(index - 1, value(interner, child));
+                }
+                return;
+            }
+            if (builder == null && child != original) {
+                builder = copyElements(changed == null ? json : changed, index - 1, interner);
+            }
+            if (builder != null && child != null) {
+                builder.add(value(interner, child));
+            }
+        }
+
+        @Override
+        JsonValue finish() {
+            if (builder != null) {
+                return persistent ? PersistentJsonArray.of(builder.build()) : builder.build();
+            }
+            return changed == null ? json : changed;
+        }
+
+        @Override
+        boolean rebuilt() {
+            return builder != null || changed != null;
+        }
+
+        // Once elements were added or removed, the one in the same place is mostly one that moved, and still there.
+        @Override
+        JsonValue previousChild() {
+            if (!(previous instanceof JsonArray) || ((JsonArray) previous).size() != json.size()) {
+                return null;
+            }
+            return ((JsonArray) previous).get(index - 1);
+        }
+
+        @Override
+        JsonValue container() {
+            return json;
+        }
+
+        @Override
+        Shape childShape() {
+            return shape.items();
+        }
+    }
+
+    /*
+    * ## Parallel
+    * When running in parallel, big containers near the top of the document have their children transformed
+    * as fork/join tasks. The results come back in an array in the original order and are assembled exactly
+    * as they would have been sequentially. Returns null when the container should be done sequentially.
+    * How big a container is gets estimated from its children and grandchildren, which we can count without walking them.
+    * */
+    private JsonValue[] fork(Collection<JsonValue> children, int i, int depth) {
+        if (!options.isParallel() || depth > options.parallelDepth || children.size() < 2
+                || !ForkJoinTask.inForkJoinPool() || estimateSize(children) < options.parallelThreshold) {
+            return null;
+        }
+        JsonValue[] in = children.toArray(new JsonValue[children.size()]);
+        JsonValue[] out = new JsonValue[in.length];
+        int grain = Math.max(1, in.length / (options.pool.getParallelism() * 4));
+        new ChildrenTask(in, out, 0, in.length, grain, i, depth + 1).invoke();
+        return out;
+    }
+
+    private int estimateSize(Collection<JsonValue> children) {
+        int size = 0;
+        for (JsonValue child : children) {
+            size += 1;
+            if (child.getValueType() == JsonValue.ValueType.OBJECT) {
+                size += ((JsonObject) child).size();
+            } else if (child.getValueType() == JsonValue.ValueType.ARRAY) {
+                size += ((JsonArray) child).size();
+            }
+            if (size >= options.parallelThreshold) {
+                return size;
+            }
+        }
+        return size;
+    }
+
+    private final class ChildrenTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final JsonValue[] in;
+        private final JsonValue[] out;
+        private final int from;
+        private final int to;
+        private final int grain;
+        private final int i;
+        private final int depth;
+
+        ChildrenTask(JsonValue[] in, JsonValue[] out, int from, int to, int grain, int i, int depth) {
+            this.in = in;
+            this.out = out;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+            this.i = i;
+            this.depth = depth;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= grain) {
+                for (int k = from; k < to; k++) {
+                    out[k] = fused(i, in[k], Collections.<Stage>emptyList(), depth, null, null);
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new ChildrenTask(in, out, from, middle, grain, i, depth),
+                      new ChildrenTask(in, out, middle, to, grain, i, depth));
+        }
+    }
+
+    private static JsonObjectBuilder copyEntries(JsonObject json, int count, Interner interner) {
+        JsonObjectBuilder builder = JsonTransformer.BUILDERS.createObjectBuilder();
+        Iterator<Map.Entry<String, JsonValue>> entries = json.entrySet().iterator();
+        for (int i = 0; i < count; i++) {
+            Map.Entry<String, JsonValue> entry = entries.next();
+            builder.add(key(interner, entry.getKey()), value(interner, entry.getValue()));
+        }
+        return builder;
+    }
+
+    private static JsonArrayBuilder copyElements(JsonArray json, int count, Interner interner) {
+        JsonArrayBuilder builder = JsonTransformer.BUILDERS.createArrayBuilder();
+        for (int i = 0; i < count; i++) {
+            builder.add(value(interner, json.get(i)));
+        }
+        return builder;
+    }
+
+    // Also how async and path passes pool what goes into the containers they rebuild.
+    static String key(Interner interner, String key) {
+        return interner == null ? key : interner.key(key);
+    }
+
+    static JsonValue value(Interner interner, JsonValue value) {
+        return interner == null ? value : interner.value(value);
+    }
+
+    // Runs the shallow stages from index `from` onwards over a single entry of the root object. null once it is dropped.
+    static JsonValue applyEntryStages(List<Stage> stages, int from, String key, JsonValue value) {
+        for (int j = from; j < stages.size() && value != null; j++) {
+            Stage stage = stages.get(j);
+            if (stage.kind == Stage.Kind.MAP_OBJECT) {
+                value = stage.apply(key, value);
+            } else if (stage.kind == Stage.Kind.ADD && stage.key.equals(key)) {
+                value = stage.value;
+            } else if (stage.kind == Stage.Kind.REMOVE && stage.key.equals(key)) {
+                value = null;
+            }
+        }
+        return value;
+    }
+
+    static JsonValue applyElementStages(List<Stage> stages, JsonValue value) {
+        for (int j = 0; j < stages.size() && value != null; j++) {
+            Stage stage = stages.get(j);
+            if (stage.kind == Stage.Kind.MAP_ARRAY) {
+                value = stage.apply(value);
+            }
+        }
+        return value;
+    }
+
+    private static boolean isContainer(JsonValue json) {
+        JsonValue.ValueType type = json.getValueType();
+        return type == JsonValue.ValueType.OBJECT || type == JsonValue.ValueType.ARRAY;
+    }
+}
@@ -0,0 +1,201 @@
+package io.github.jimmyhmiller;
+
+/*
+* A persistent hash array mapped trie from String keys to values, the index behind PersistentJsonObject.
+*
+* Each level of the trie uses 5 bits of the key's hash to pick one of 32 slots. A node only stores the slots
+* it uses, a bitmap says which those are. Lookups, puts and removes are O(log32 n) and copy just the nodes on
+* the way down to the key. Keys whose whole hash collides share a CollisionNode.
+*
+* A null node is the empty trie. Every operation takes and hands back a root node.
+* */
+final class Hamt {
+
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+
+    private Hamt() {}
+
+    static Object get(Node root, String key) {
+        return root == null ? null : root.get(key, key.hashCode(), 0);
+    }
+
+    static Node put(Node root, String key, Object value) {
+        int hash = key.hashCode();
+        if (root == null) {
+            return new BitmapNode(bit(hash, 0), new Object[]{key, value});
+        }
+        return root.put(key, hash, value, 0);
+    }
+
+    static Node remove(Node root, String key) {
+        return root == null ? null : root.remove(key, key.hashCode(), 0);
+    }
+
+    private static int bit(int hash, int shift) {
+        return 1 << ((hash >>> shift) & MASK);
+    }
+
+    abstract static class Node {
+        abstract Object get(String key, int hash, int shift);
+        abstract Node put(String key, int hash, Object value, int shift);
+        // null when the node ends up empty.
+        abstract Node remove(String key, int hash, int shift);
+    }
+
+    // Slots come in pairs, a key and its value, or null and the node for everything below that slot.
+    private static final class BitmapNode extends Node {
+        private final int bitmap;
+        private final Object[] slots;
+
+        BitmapNode(int bitmap, Object[] slots) {
+            this.bitmap = bitmap;
+            this.slots = slots;
+        }
+
+        @Override
+        Object get(String key, int hash, int shift) {
+            int bit = bit(hash, shift);
+            if ((bitmap & bit) == 0) {
+                return null;
+            }
+            int at = 2 * Integer.bitCount(bitmap & (bit - 1));
+            Object k = slots[at];
+            if (k == null) {
+                return ((Node) slots[at + 1]).get(key, hash, shift + BITS);
+            }
+            return key.equals(k) ? slots[at + 1] : null;
+        }
+
+        @Override
+        Node put(String key, int hash, Object value, int shift) {
+            int bit = bit(hash, shift);
+            int at = 2 * Integer.bitCount(bitmap & (bit - 1));
+            if ((bitmap & bit) == 0) {
+                Object[] copy = new Object[slots.length + 2];
+                System.arraycopy(slots, 0, copy, 0, at);
+                copy[at] = key;
+                copy[at + 1] = value;
+                System.arraycopy(slots, at, copy, at + 2, slots.length - at);
+                return new BitmapNode(bitmap | bit, copy);
+            }
+            Object k = slots[at];
+            Object v = slots[at + 1];
+            if (k == null) {
+                Node child = ((Node) v).put(key, hash, value, shift + BITS);
+                return child == v ? this : with(at, null, child);
+            }
+            if (key.equals(k)) {
+                return v == value ? this : with(at, k, value);
+            }
+            // Another key already sits in this slot, both move down a level.
+            return with(at, null, node((String) k, v, key, hash, value, shift + BITS));
+        }
+
+        @Override
+        Node remove(String key, int hash, int shift) {
+            int bit = bit(hash, shift);
+            if ((bitmap & bit) == 0) {
+                return this;
+            }
+            int at = 2 * Integer.bitCount(bitmap & (bit - 1));
+            Object k = slots[at];
+            if (k == null) {
+                Node child = (Node) slots[at + 1];
+                Node removed = child.remove(key, hash, shift + BITS);
+                if (removed == child) {
+                    return this;
+                }
+                if (removed != null) {
+                    return with(at, null, removed);
+                }
+            } else if (!key.equals(k)) {
+                return this;
+            }
+            if (bitmap == bit) {
+                return null;
+            }
+            Object[] copy = new Object[slots.length - 2];
+            System.arraycopy(slots, 0, copy, 0, at);
+            System.arraycopy(slots, at + 2, copy, at, slots.length - at - 2);
+            return new BitmapNode(bitmap & ~bit, copy);
+        }
+
+        private BitmapNode with(int at, Object key, Object value) {
+            Object[] copy = slots.clone();
+            copy[at] = key;
+            copy[at + 1] = value;
+            return new BitmapNode(bitmap, copy);
+        }
+
+        private static Node node(String k1, Object v1, String k2, int h2, Object v2, int shift) {
+            int h1 = k1.hashCode();
+            if (h1 == h2) {
+                return new CollisionNode(h1, new Object[]{k1, v1, k2, v2});
+            }
+            return new BitmapNode(bit(h1, shift), new Object[]{k1, v1}).put(k2, h2, v2, shift);
+        }
+    }
+
+    // Keys with the exact same hash, searched one by one.
+    private static final class CollisionNode extends Node {
+        private final int hash;
+        private final Object[] slots;
+
+        CollisionNode(int hash, Object[] slots) {
+            this.hash = hash;
+            this.slots = slots;
+        }
+
+        @Override
+        Object get(String key, int hash, int shift) {
+            int at = find(key);
+            return at < 0 ? null : slots[at + 1];
+        }
+
+        @Override
+        Node put(String key, int hash, Object value, int shift) {
+            if (hash != this.hash) {
+                return new BitmapNode(bit(this.hash, shift), new Object[]{null, this}).put(key, hash, value, shift);
+            }
+            int at = find(key);
+            if (at >= 0) {
+                if (slots[at + 1] == value) {
+                    return this;
+                }
+                Object[] copy = slots.clone();
+                copy[at + 1] = value;
+                return new CollisionNode(hash, copy);
+            }
+            Object[] copy = new Object[slots.length + 2];
+            System.arraycopy(slots, 0, copy, 0, slots.length);
+            copy[slots.length] = key;
+            copy[slots.length + 1] = value;
+            return new CollisionNode(hash, copy);
+        }
+
+        @Override
+        Node remove(String key, int hash, int shift) {
+            int at = find(key);
+            if (at < 0) {
+                return this;
+            }
+            if (slots.length == 2) {
+                return null;
+            }
+            Object[] copy = new Object[slots.length - 2];
+            System.arraycopy(slots, 0, copy, 0, at);
+            System.arraycopy(slots, at + 2, copy, at, slots.length - at - 2);
+            return new CollisionNode(hash, copy);
+        }
+
+        private int find(String key) {
+            for (int i = 0; i < slots.length; i += 2) {
+                if (key.equals(slots[i])) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+}
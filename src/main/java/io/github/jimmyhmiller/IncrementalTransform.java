@@ -0,0 +1,187 @@
+package io.github.jimmyhmiller;
+
+import javax.json.JsonArray;
+import javax.json.JsonValue;
+import java.util.IdentityHashMap;
+
+/*
+* A pipeline kept running over a document that changes a little at a time, a catalogue say, where running the whole
+* pipeline again for every change costs as much as the document is big.
+*
+*   IncrementalTransform catalogue = pipeline.incremental(json);
+*   JsonValue output = catalogue.output();
+*
+*   catalogue = catalogue.apply(patch);
+*   JsonValue updated = catalogue.output();
+*   JsonArray changes = catalogue.outputPatch();
+*
+* apply takes a JSON Patch (RFC 6902) against the input, see JsonPatches. The patch copies only the containers on the way
+* down to what it changes, everything else in the new input is the very same value it was. Every pass remembers what the
+* containers it walked came out as, and a container that replaced one it remembers is updated from that result: only its
+* children that aren't the same value as before are done again, see Incremental in FusedPass. The output shares everything
+* else with the one before, which is what lets the next pass do the same. So a run costs about as much as the patch plus
+* a comparison for each child of the containers above what it changed, rather than as much as the document.
+* With persistent() the patch and the output are changed with with and without rather than copied along the way.
+*
+* That only holds for lambdas that always hand back the same result for the same value, which is what the rest of the
+* library expects of them anyway. Path, async and key only passes don't walk the tree and simply run again when their input
+* changed. Runs aren't lazy and aren't recorded for a listener, whatever the pipeline was configured with, a run has to
+* see every container it might remember. maxDepth is kept, a result is only used at the depth it was worked out at.
+*
+* An IncrementalTransform is immutable, apply hands back a new one and leaves this one as it was. Every one that came
+* from the same call to incremental shares the cache, so apply takes turns across them. A container that replaced another
+* takes its place in the cache, so going from one IncrementalTransform to the next keeps it about the size of the document.
+* Applying several patches to the same one works, each after the first walks the containers the patch copied instead.
+* Containers a patch removed stay in the cache. Once it has grown to twice what a whole run left in it, the next run
+* starts over with an empty cache and walks everything.
+* */
+public final class IncrementalTransform {
+
+    private final FusedPass[] passes;
+    private final Cache[] caches;
+    private final boolean persistent;
+    private final JsonValue input;
+    // What each pass came out as, the last one is the output.
+    private final JsonValue[] outputs;
+    // The output before the patch that led here, null for the first one.
+    private final JsonValue previous;
+    private volatile JsonArray outputPatch;
+
+    private IncrementalTransform(FusedPass[] passes, Cache[] caches, boolean persistent, JsonValue input, IncrementalTransform before) {
+        this.passes = passes;
+        this.caches = caches;
+        this.persistent = persistent;
+        this.input = input;
+        this.outputs = new JsonValue[passes.length];
+        this.previous = before == null ? null : before.output();
+        synchronized (caches) {
+            JsonValue current = input;
+            for (int k = 0; k < passes.length; k++) {
+                // A pass whose input didn't change at all, nothing the patch did reached it.
+                if (before != null && current == before.inputOf(k)) {
+                    current = before.outputs[k];
+                } else {
+                    // A cache that starts over has nothing to update from, everything is walked.
+                    boolean update = caches[k].begin() && before != null;
+                    current = passes[k].applyIncrementally(current, update ? before.inputOf(k) : null,
+                                                           update ? before.outputs[k] : null, caches[k]);
+                    caches[k].end();
+                }
+                outputs[k] = current;
+            }
+        }
+    }
+
+    static IncrementalTransform start(FusedPass[] passes, Options options, JsonValue input) {
+        Cache[] caches = new Cache[passes.length];
+        for (int k = 0; k < passes.length; k++) {
+            caches[k] = new Cache();
+        }
+        return new IncrementalTransform(passes, caches, options.persistent, input, null);
+    }
+
+    // The input with patch applied and the output that goes with it. This one stays as it was, also when the patch fails.
+    public IncrementalTransform apply(JsonArray patch) {
+        return new IncrementalTransform(passes, caches, persistent, JsonPatches.apply(input, patch, persistent), this);
+    }
+
+    public JsonValue input() {
+        return input;
+    }
+
+    public JsonValue output() {
+        return passes.length == 0 ? input : outputs[passes.length - 1];
+    }
+
+    // The JSON Patch from the output before the last apply to this one, empty for the IncrementalTransform incremental hands back.
+    // Worked out the first time it is asked for, by comparing the two outputs wherever they aren't the same value.
+    public JsonArray outputPatch() {
+        JsonArray patch = outputPatch;
+        if (patch == null) {
+            patch = previous == null ? JsonTransformer.BUILDERS.createArrayBuilder().build() : JsonPatches.diff(previous, output());
+            outputPatch = patch;
+        }
+        return patch;
+    }
+
+    private JsonValue inputOf(int pass) {
+        return pass == 0 ? input : outputs[pass - 1];
+    }
+
+    /*
+    * What the containers walked by a pass came out as, by the container they were and where in the pass they were walked:
+    * the index of the chain they were handed to and their depth. A container that was dropped came out as null.
+    * Only ever used by one run at a time.
+    * */
+    static final class Cache {
+
+        // What get hands back for a container that isn't cached, null is a container that was dropped.
+        static final Object MISSING = new Object();
+        // A cache this small isn't worth starting over for.
+        private static final int MIN_SIZE = 4096;
+
+        private final IdentityHashMap<JsonValue, Result> results = new IdentityHashMap<>();
+        // How many results the last run that started over left behind, about what one run needs.
+        private int kept;
+        private boolean emptied = true;
+
+        // false when the cache starts over.
+        boolean begin() {
+            if (results.size() > Math.max(2 * kept, MIN_SIZE)) {
+                results.clear();
+                emptied = true;
+            }
+            return !emptied;
+        }
+
+        void end() {
+            if (emptied) {
+                kept = results.size();
+                emptied = false;
+            }
+        }
+
+        Object get(JsonValue source, int i, int depth) {
+            for (Result result = results.get(source); result != null; result = result.next) {
+                if (result.i == i && result.depth == depth) {
+                    return result.value;
+                }
+            }
+            return MISSING;
+        }
+
+        void put(JsonValue source, int i, int depth, JsonValue value) {
+            results.put(source, new Result(i, depth, value, results.get(source)));
+        }
+
+        // For a container that has been replaced. It may still be somewhere else in the document, then it is worked out again.
+        void remove(JsonValue source, int i, int depth) {
+            Result kept = null;
+            for (Result result = results.get(source); result != null; result = result.next) {
+                if (result.i != i || result.depth != depth) {
+                    kept = new Result(result.i, result.depth, result.value, kept);
+                }
+            }
+            if (kept == null) {
+                results.remove(source);
+            } else {
+                results.put(source, kept);
+            }
+        }
+
+        // Results for the same container, mostly just the one.
+        private static final class Result {
+            final int i;
+            final int depth;
+            final JsonValue value;
+            final Result next;
+
+            Result(int i, int depth, JsonValue value, Result next) {
+                this.i = i;
+                this.depth = depth;
+                this.value = value;
+                this.next = next;
+            }
+        }
+    }
+}
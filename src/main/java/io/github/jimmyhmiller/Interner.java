@@ -0,0 +1,73 @@
+package io.github.jimmyhmiller;
+
+import javax.json.JsonString;
+import javax.json.JsonValue;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+* Pools for the keys and short string values that go into rebuilt containers, so a million records with the same
+* keys and the same handful of enum-like values share one copy of each instead of a million.
+*
+* Both pools are bounded. Once a pool is full nothing new gets in and strings that aren't in it are used as they are,
+* so a document full of unique strings can't grow it without limit, it only stops helping.
+* Strings longer than maxLength are unlikely to repeat and aren't looked up at all.
+* Safe to use from any number of threads, one pool is shared by every run of a pipeline.
+* */
+final class Interner {
+
+    static final int DEFAULT_MAX_ENTRIES = 1 << 16;
+    static final int DEFAULT_MAX_LENGTH = 64;
+
+    private final ConcurrentHashMap<String, String> keys = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, JsonString> strings = new ConcurrentHashMap<>();
+    private final int maxEntries;
+    private final int maxLength;
+
+    Interner(int maxEntries, int maxLength) {
+        if (maxEntries < 1 || maxLength < 1) {
+            throw new IllegalArgumentException("An interner has to hold at least one string of at least one character, was "
+                    + maxEntries + " strings of up to " + maxLength);
+        }
+        this.maxEntries = maxEntries;
+        this.maxLength = maxLength;
+    }
+
+    String key(String key) {
+        if (key.length() > maxLength) {
+            return key;
+        }
+        String pooled = keys.get(key);
+        if (pooled != null) {
+            return pooled;
+        }
+        // Racy, a full pool can end up a few entries over when threads add at once. That is fine for a bound on memory.
+        if (keys.size() >= maxEntries) {
+            return key;
+        }
+        pooled = keys.putIfAbsent(key, key);
+        return pooled == null ? key : pooled;
+    }
+
+    // Anything other than a string is handed back as it is.
+    JsonValue value(JsonValue value) {
+        if (value.getValueType() != JsonValue.ValueType.STRING) {
+            return value;
+        }
+        JsonString string = (JsonString) value;
+        String s = string.getString();
+        if (s.length() > maxLength) {
+            return value;
+        }
+        JsonString pooled = strings.get(s);
+        if (pooled != null) {
+            return pooled;
+        }
+        if (strings.size() >= maxEntries) {
+            return value;
+        }
+        // The pool outlives the document, a string on a tape would keep all of it.
+        JsonString detached = (JsonString) JsonTape.detach(string);
+        pooled = strings.putIfAbsent(s, detached);
+        return pooled == null ? detached : pooled;
+    }
+}
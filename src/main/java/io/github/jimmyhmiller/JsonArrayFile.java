@@ -0,0 +1,296 @@
+package io.github.jimmyhmiller;
+
+import javax.json.JsonArray;
+import javax.json.JsonException;
+import javax.json.JsonReader;
+import javax.json.JsonValue;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.SequenceInputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.function.Function;
+
+/*
+* Runs a transformation over every element of a file holding one huge top-level array, without reading it all in.
+*
+*   new JsonArrayFile(pipeline)
+*       .chunkSize(8 << 20)
+*       .transform(Paths.get("export.json"), out);
+*
+* The file is memory mapped. A single pass over the bytes, tracking only strings and nesting, finds where the
+* top-level elements start and end and cuts runs of whole elements into chunks of roughly chunkSize bytes.
+* Chunks are parsed, transformed and serialized on worker threads (see Batches) and written out as one valid array.
+* The heap holds a handful of chunks at a time, however big the file is.
+*
+* Every element is handed to the transformation as a document of its own, so root stages like add apply to each element.
+* The bytes between the brackets are only checked as far as finding element boundaries needs, the rest is left to the parser.
+* Like everything else here, instances are immutable and every setter hands back a copy.
+* */
+public final class JsonArrayFile {
+
+    private static final int DEFAULT_CHUNK_SIZE = 4 << 20;
+    // How much of the file the boundary scan maps at once.
+    private static final long WINDOW = 64L << 20;
+    private static final byte[] OPEN = {'['};
+    private static final byte[] CLOSE = {']'};
+
+    private final Function<JsonValue, JsonValue> transformation;
+    private final int threads;
+    private final int chunkSize;
+    private final boolean ordered;
+
+    public JsonArrayFile(Function<JsonValue, JsonValue> transformation) {
+        this(transformation, Runtime.getRuntime().availableProcessors(), DEFAULT_CHUNK_SIZE, true);
+    }
+
+    private JsonArrayFile(Function<JsonValue, JsonValue> transformation, int threads, int chunkSize, boolean ordered) {
+        if (transformation == null) {
+            throw new IllegalArgumentException("A transformation is required");
+        }
+        this.transformation = transformation;
+        this.threads = threads;
+        this.chunkSize = chunkSize;
+        this.ordered = ordered;
+    }
+
+    public JsonArrayFile threads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads has to be at least 1, was " + threads);
+        }
+        return new JsonArrayFile(transformation, threads, chunkSize, ordered);
+    }
+
+    // In bytes. A chunk ends at the first element boundary after this many bytes, so it always holds whole elements.
+    public JsonArrayFile chunkSize(int chunkSize) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("chunkSize has to be at least 1, was " + chunkSize);
+        }
+        return new JsonArrayFile(transformation, threads, chunkSize, ordered);
+    }
+
+    public JsonArrayFile unordered() {
+        return new JsonArrayFile(transformation, threads, chunkSize, false);
+    }
+
+    /*
+    * Writes the transformed array to out as UTF-8. out is flushed but not closed.
+    * The input has to be UTF-8 and hold a single array, anything else fails with a JsonException naming the byte offset.
+    * */
+    public void transform(Path in, OutputStream out) throws IOException {
+        try (FileChannel channel = FileChannel.open(in, StandardOpenOption.READ)) {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+            boolean[] empty = {true};
+            writer.write('[');
+            Batches.<Chunk>run("json-array-file", threads, ordered,
+                    submitter -> cut(channel, submitter),
+                    chunk -> transformChunk(channel, chunk),
+                    piece -> {
+                        if (!empty[0]) {
+                            writer.write(',');
+                        }
+                        writer.write(piece);
+                        empty[0] = false;
+                    });
+            writer.write(']');
+            writer.flush();
+        }
+    }
+
+    private static final class Chunk {
+        final long start;
+        final long end;
+
+        Chunk(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    private void cut(FileChannel channel, Batches.Submitter<Chunk> submitter) throws IOException, InterruptedException {
+        long size = channel.size();
+        byte[] buffer = new byte[64 << 10];
+
+        boolean opened = false;
+        boolean closed = false;
+        boolean inString = false;
+        boolean escaped = false;
+        boolean sawComma = false;
+        // Whether the element since the last top-level comma has anything in it.
+        boolean sawValue = false;
+        int depth = 0;
+        long chunkStart = 0;
+
+        for (long position = 0; position < size; position += WINDOW) {
+            MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW, size - position));
+            while (window.hasRemaining()) {
+                long base = position + window.position();
+                int length = Math.min(buffer.length, window.remaining());
+                window.get(buffer, 0, length);
+                for (int i = 0; i < length; i++) {
+                    byte b = buffer[i];
+                    if (inString) {
+                        if (escaped) {
+                            escaped = false;
+                        } else if (b == '\\') {
+                            escaped = true;
+                        } else if (b == '"') {
+                            inString = false;
+                        }
+                        continue;
+                    }
+                    if (closed) {
+                        if (!isWhitespace(b)) {
+                            throw error(base + i, "unexpected content after the top-level array");
+                        }
+                        continue;
+                    }
+                    if (!opened) {
+                        if (b == '[') {
+                            opened = true;
+                            depth = 1;
+                            chunkStart = base + i + 1;
+                        } else if (!isWhitespace(b) && !isByteOrderMark(base + i, b)) {
+                            throw error(base + i, "expected a top-level array");
+                        }
+                        continue;
+                    }
+                    switch (b) {
+                        case '"':
+                            inString = true;
+                            sawValue = true;
+                            break;
+                        case '[':
+                        case '{':
+                            depth++;
+                            sawValue = true;
+                            break;
+                        case ']':
+                        case '}':
+                            depth--;
+                            if (depth > 0) {
+                                break;
+                            }
+                            if (b != ']') {
+                                throw error(base + i, "the top-level array is closed with }");
+                            }
+                            if (sawValue) {
+                                submitter.submit(chunk(chunkStart, base + i));
+                            } else if (sawComma) {
+                                throw error(base + i, "missing array element");
+                            }
+                            closed = true;
+                            break;
+                        case ',':
+                            if (depth > 1) {
+                                break;
+                            }
+                            if (!sawValue) {
+                                throw error(base + i, "missing array element");
+                            }
+                            sawComma = true;
+                            sawValue = false;
+                            if (base + i - chunkStart >= chunkSize) {
+                                submitter.submit(chunk(chunkStart, base + i));
+                                chunkStart = base + i + 1;
+                            }
+                            break;
+                        default:
+                            if (!isWhitespace(b)) {
+                                sawValue = true;
+                            }
+                    }
+                }
+            }
+        }
+        if (!closed) {
+            throw error(size, opened ? "the top-level array is never closed" : "expected a top-level array");
+        }
+    }
+
+    private static Chunk chunk(long start, long end) {
+        if (end - start > Integer.MAX_VALUE) {
+            throw error(start, "an element is larger than 2GB and can't be mapped");
+        }
+        return new Chunk(start, end);
+    }
+
+    private String transformChunk(FileChannel channel, Chunk chunk) {
+        JsonArray elements;
+        try {
+            MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, chunk.start, chunk.end - chunk.start);
+            InputStream in = new SequenceInputStream(Collections.enumeration(Arrays.asList(
+                    new ByteArrayInputStream(OPEN), new ByteBufferInputStream(bytes), new ByteArrayInputStream(CLOSE))));
+            try (JsonReader reader = JsonTransformer.READERS.createReader(in, StandardCharsets.UTF_8)) {
+                elements = reader.readArray();
+            }
+        } catch (IOException e) {
+            throw new JsonException("Failed to map bytes " + chunk.start + " to " + chunk.end, e);
+        } catch (JsonException e) {
+            throw new JsonException("Bytes " + chunk.start + " to " + chunk.end + ": " + e.getMessage(), e);
+        }
+
+        StringBuilder out = new StringBuilder((int) Math.min(Integer.MAX_VALUE, (chunk.end - chunk.start) + 16));
+        for (int i = 0; i < elements.size(); i++) {
+            if (i > 0) {
+                out.append(',');
+            }
+            out.append(transformation.apply(elements.get(i)).toString());
+        }
+        return out.toString();
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+
+    private static boolean isByteOrderMark(long offset, byte b) {
+        return (offset == 0 && b == (byte) 0xEF) || (offset == 1 && b == (byte) 0xBB) || (offset == 2 && b == (byte) 0xBF);
+    }
+
+    private static JsonException error(long offset, String message) {
+        return new JsonException("Byte " + offset + ": " + message);
+    }
+
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
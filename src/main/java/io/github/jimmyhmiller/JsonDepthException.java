@@ -0,0 +1,20 @@
+package io.github.jimmyhmiller;
+
+/*
+* Thrown when a document is nested more deeply than a transformer's maxDepth allows.
+* */
+public class JsonDepthException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int maxDepth;
+
+    public JsonDepthException(int maxDepth) {
+        super("Json is nested more than " + maxDepth + " levels deep, which is the most this transformer allows.");
+        this.maxDepth = maxDepth;
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+}
@@ -0,0 +1,213 @@
+package io.github.jimmyhmiller;
+
+import javax.json.JsonException;
+import javax.json.JsonReader;
+import javax.json.JsonValue;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+/*
+* Runs a transformation over newline delimited JSON (NDJSON, JSON Lines), one document per line.
+*
+*   new JsonLines(pipeline)
+*       .threads(8)
+*       .transform(in, out);
+*
+* Reading, transforming and writing overlap (see Batches). One thread reads lines and hands them out in batches,
+* worker threads parse, transform and serialize a batch at a time and the calling thread writes finished batches.
+* Only a few batches per worker are ever in flight, so memory stays flat no matter how long the input is.
+* Output lines come out in input order unless unordered() is asked for, then batches are written as soon as they are done.
+*
+* Blank lines are skipped. Every other line has to hold an object or an array.
+* Like everything else here, instances are immutable and every setter hands back a copy.
+* */
+public final class JsonLines {
+
+    private static final int DEFAULT_BATCH_SIZE = 256;
+
+    private final Function<JsonValue, JsonValue> transformation;
+    private final int threads;
+    private final int batchSize;
+    private final boolean ordered;
+
+    public JsonLines(Function<JsonValue, JsonValue> transformation) {
+        this(transformation, Runtime.getRuntime().availableProcessors(), DEFAULT_BATCH_SIZE, true);
+    }
+
+    private JsonLines(Function<JsonValue, JsonValue> transformation, int threads, int batchSize, boolean ordered) {
+        if (transformation == null) {
+            throw new IllegalArgumentException("A transformation is required");
+        }
+        this.transformation = transformation;
+        this.threads = threads;
+        this.batchSize = batchSize;
+        this.ordered = ordered;
+    }
+
+    public JsonLines threads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads has to be at least 1, was " + threads);
+        }
+        return new JsonLines(transformation, threads, batchSize, ordered);
+    }
+
+    public JsonLines batchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize has to be at least 1, was " + batchSize);
+        }
+        return new JsonLines(transformation, threads, batchSize, ordered);
+    }
+
+    public JsonLines unordered() {
+        return new JsonLines(transformation, threads, batchSize, false);
+    }
+
+    /*
+    * Reads lines from in until it runs out and writes the results to out as UTF-8, one per line.
+    * Neither stream is closed, out is flushed.
+    * A line that fails to parse or transform stops the whole run, the exception names the line.
+    * */
+    public void transform(InputStream in, OutputStream out) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        Batches.run("json-lines", threads, ordered, submitter -> {
+            int lineNumber = 0;
+            Batch batch = new Batch(1, batchSize);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                batch.lines.add(line);
+                if (batch.lines.size() == batchSize) {
+                    submitter.submit(batch);
+                    batch = new Batch(lineNumber + 1, batchSize);
+                }
+            }
+            if (!batch.lines.isEmpty()) {
+                submitter.submit(batch);
+            }
+        }, this::transformBatch, writer::write);
+        writer.flush();
+    }
+
+    private static final class Batch {
+        final int firstLine;
+        final List<String> lines;
+
+        Batch(int firstLine, int size) {
+            this.firstLine = firstLine;
+            this.lines = new ArrayList<>(size);
+        }
+    }
+
+    private String transformBatch(Batch batch) {
+        List<String> lines = batch.lines;
+        StringBuilder out = new StringBuilder(lines.size() * 64);
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i);
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            try {
+                out.append(transformation.apply(parse(line)).toString()).append('\n');
+            } catch (RuntimeException e) {
+                throw new JsonException("Line " + (batch.firstLine + i) + ": " + e.getMessage(), e);
+            }
+        }
+        return out.toString();
+    }
+
+    private static JsonValue parse(String line) {
+        try (JsonReader reader = JsonTransformer.READERS.createReader(new StringReader(line))) {
+            return reader.read();
+        }
+    }
+
+    /*
+    * java io.github.jimmyhmiller.JsonLines [--threads n] [--batch-size n] [--unordered] [transformation class]
+    *
+    * Transforms NDJSON from stdin to stdout. The transformation class needs a no argument constructor
+    * and has to be a Function<JsonValue, JsonValue>, usually one that hands documents to a compiled JsonPipeline.
+    * Without one lines are only parsed and written back compactly.
+    * */
+    public static void main(String[] args) throws Exception {
+        Integer threads = null;
+        Integer batchSize = null;
+        boolean unordered = false;
+        String className = null;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--threads":
+                        threads = Integer.parseInt(args[++i]);
+                        break;
+                    case "--batch-size":
+                        batchSize = Integer.parseInt(args[++i]);
+                        break;
+                    case "--unordered":
+                        unordered = true;
+                        break;
+                    default:
+                        if (args[i].startsWith("--") || className != null) {
+                            throw new IllegalArgumentException("Unknown argument " + args[i]);
+                        }
+                        className = args[i];
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+            usage(e.getMessage() == null ? "Missing value" : e.getMessage());
+            return;
+        }
+
+        JsonLines lines;
+        // A class that can't be loaded or isn't a Function, and threads or batchSize out of range like --threads 0,
+        // are mistakes in the arguments as much as a malformed one is.
+        try {
+            lines = new JsonLines(loadTransformation(className));
+            if (threads != null) {
+                lines = lines.threads(threads);
+            }
+            if (batchSize != null) {
+                lines = lines.batchSize(batchSize);
+            }
+        } catch (ReflectiveOperationException e) {
+            usage("Could not load " + className + ": " + e);
+            return;
+        } catch (IllegalArgumentException e) {
+            usage(e.getMessage());
+            return;
+        }
+        if (unordered) {
+            lines = lines.unordered();
+        }
+        lines.transform(System.in, System.out);
+    }
+
+    private static void usage(String message) {
+        System.err.println(message);
+        System.err.println("usage: JsonLines [--threads n] [--batch-size n] [--unordered] [transformation class]");
+        System.exit(2);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Function<JsonValue, JsonValue> loadTransformation(String className) throws ReflectiveOperationException {
+        if (className == null) {
+            return Function.identity();
+        }
+        Object instance = Class.forName(className).getDeclaredConstructor().newInstance();
+        if (!(instance instanceof Function)) {
+            throw new IllegalArgumentException(className + " is not a Function<JsonValue, JsonValue>");
+        }
+        return (Function<JsonValue, JsonValue>) instance;
+    }
+}
@@ -0,0 +1,227 @@
+package io.github.jimmyhmiller;
+
+import javax.json.JsonNumber;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
+/*
+* JsonNumbers made directly, instead of putting a number in a throwaway JsonObject and taking it back out.
+*
+* They behave like the ones javax.json makes. Two numbers are equal when their BigDecimal values are,
+* whoever made them, and toString is the same text a parsed or built number would be written as.
+* Long and double numbers keep their primitive value, so a stage that reads one back doesn't go through a BigDecimal.
+* */
+final class JsonNumbers {
+
+    private JsonNumbers() {}
+
+    static JsonNumber of(long value) {
+        return new LongNumber(value);
+    }
+
+    // JSON has no NaN or infinity, same as JsonObjectBuilder.add(String, double) these are refused.
+    static JsonNumber of(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            throw new NumberFormatException(value + " can't be represented in json");
+        }
+        return new DoubleNumber(value);
+    }
+
+    static JsonNumber of(BigDecimal value) {
+        if (value == null) {
+            throw new NullPointerException("A json number can't be null");
+        }
+        return new BigDecimalNumber(value);
+    }
+
+    // Integral numbers, in the JsonNumber sense of written without a fraction or exponent, that fit in a long.
+    // Anything else would be truncated by longValue().
+    static boolean isLong(JsonNumber number) {
+        if (number instanceof LongNumber) {
+            return true;
+        }
+        if (!number.isIntegral()) {
+            return false;
+        }
+        try {
+            number.longValueExact();
+            return true;
+        } catch (ArithmeticException e) {
+            return false;
+        }
+    }
+
+    // Same for int, these are the numbers intValue() gives back exactly.
+    static boolean isInt(JsonNumber number) {
+        if (!number.isIntegral()) {
+            return false;
+        }
+        try {
+            number.intValueExact();
+            return true;
+        } catch (ArithmeticException e) {
+            return false;
+        }
+    }
+
+    private abstract static class Number implements JsonNumber {
+
+        @Override
+        public ValueType getValueType() {
+            return ValueType.NUMBER;
+        }
+
+        @Override
+        public boolean isIntegral() {
+            return bigDecimalValue().scale() == 0;
+        }
+
+        @Override
+        public int intValue() {
+            return bigDecimalValue().intValue();
+        }
+
+        @Override
+        public int intValueExact() {
+            return bigDecimalValue().intValueExact();
+        }
+
+        @Override
+        public long longValue() {
+            return bigDecimalValue().longValue();
+        }
+
+        @Override
+        public long longValueExact() {
+            return bigDecimalValue().longValueExact();
+        }
+
+        @Override
+        public BigInteger bigIntegerValue() {
+            return bigDecimalValue().toBigInteger();
+        }
+
+        @Override
+        public BigInteger bigIntegerValueExact() {
+            return bigDecimalValue().toBigIntegerExact();
+        }
+
+        @Override
+        public double doubleValue() {
+            return bigDecimalValue().doubleValue();
+        }
+
+        @Override
+        public int hashCode() {
+            return bigDecimalValue().hashCode();
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof JsonNumber && bigDecimalValue().equals(((JsonNumber) other).bigDecimalValue());
+        }
+
+        @Override
+        public String toString() {
+            return bigDecimalValue().toString();
+        }
+    }
+
+    private static final class LongNumber extends Number {
+        private final long value;
+
+        LongNumber(long value) {
+            this.value = value;
+        }
+
+        @Override
+        public boolean isIntegral() {
+            return true;
+        }
+
+        @Override
+        public int intValue() {
+            return (int) value;
+        }
+
+        @Override
+        public int intValueExact() {
+            return Math.toIntExact(value);
+        }
+
+        @Override
+        public long longValue() {
+            return value;
+        }
+
+        @Override
+        public long longValueExact() {
+            return value;
+        }
+
+        @Override
+        public BigInteger bigIntegerValue() {
+            return BigInteger.valueOf(value);
+        }
+
+        @Override
+        public BigInteger bigIntegerValueExact() {
+            return BigInteger.valueOf(value);
+        }
+
+        @Override
+        public double doubleValue() {
+            return value;
+        }
+
+        @Override
+        public BigDecimal bigDecimalValue() {
+            return BigDecimal.valueOf(value);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (other instanceof LongNumber) {
+                return value == ((LongNumber) other).value;
+            }
+            return super.equals(other);
+        }
+
+        @Override
+        public String toString() {
+            return Long.toString(value);
+        }
+    }
+
+    private static final class DoubleNumber extends Number {
+        private final double value;
+
+        DoubleNumber(double value) {
+            this.value = value;
+        }
+
+        @Override
+        public double doubleValue() {
+            return value;
+        }
+
+        // The same conversion JsonObjectBuilder.add(String, double) does.
+        @Override
+        public BigDecimal bigDecimalValue() {
+            return BigDecimal.valueOf(value);
+        }
+    }
+
+    private static final class BigDecimalNumber extends Number {
+        private final BigDecimal value;
+
+        BigDecimalNumber(BigDecimal value) {
+            this.value = value;
+        }
+
+        @Override
+        public BigDecimal bigDecimalValue() {
+            return value;
+        }
+    }
+}
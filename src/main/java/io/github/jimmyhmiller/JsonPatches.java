@@ -0,0 +1,514 @@
+package io.github.jimmyhmiller;
+
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonException;
+import javax.json.JsonNumber;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/*
+* JSON Patch (RFC 6902) for IncrementalTransform, javax.json 1.0 doesn't have it.
+*
+*   [{"op": "replace", "path": "/products/3/price", "value": 12.5},
+*    {"op": "remove", "path": "/products/7"}]
+*
+* Paths are JSON Pointers (RFC 6901), "" is the whole document and ~1 and ~0 stand for / and ~ in a key.
+* Every operation is there: add, remove, replace, move, copy and test.
+*
+* Applying a patch copies only the containers on the way down to what it changes, everything else is shared with
+* the document it was applied to. That is what lets IncrementalTransform tell which subtrees are new.
+* Containers that already are persistent, or every container when persistent is set, are changed with with and without.
+* Anything wrong with a patch is a JsonException, the way it is for JsonPatch in later versions of JSON-P.
+* A patch that fails part way leaves the document it was applied to as it was, nothing is changed in place.
+* */
+final class JsonPatches {
+
+    private JsonPatches() {}
+
+    static JsonValue apply(JsonValue json, JsonArray patch, boolean persistent) {
+        JsonValue result = json;
+        for (JsonValue element : patch) {
+            if (element.getValueType() != JsonValue.ValueType.OBJECT) {
+                throw new JsonException("A patch operation has to be an object, was " + element);
+            }
+            JsonObject operation = (JsonObject) element;
+            String op = string(operation, "op");
+            String path = string(operation, "path");
+            switch (op) {
+                case "add":
+                case "replace":
+                    result = change(result, path, op, value(operation), persistent);
+                    break;
+                case "remove":
+                    result = change(result, path, op, null, persistent);
+                    break;
+                case "move": {
+                    String from = string(operation, "from");
+                    if (path.startsWith(from + "/")) {
+                        throw new JsonException("Can't move " + from + " into itself, to " + path);
+                    }
+                    JsonValue moved = get(result, from);
+                    if (!from.equals(path)) {
+                        result = change(result, from, "remove", null, persistent);
+                        result = change(result, path, "add", moved, persistent);
+                    }
+                    break;
+                }
+                case "copy":
+                    result = change(result, path, "add", get(result, string(operation, "from")), persistent);
+                    break;
+                case "test":
+                    if (!equal(get(result, path), value(operation))) {
+                        throw new JsonException("Test failed, " + path + " isn't " + value(operation));
+                    }
+                    break;
+                default:
+                    throw new JsonException("Unknown patch operation " + op);
+            }
+        }
+        return result;
+    }
+
+    // The value pointer points to, which has to be there.
+    static JsonValue get(JsonValue json, String pointer) {
+        JsonValue node = json;
+        for (String token : tokens(pointer)) {
+            node = child(node, token, pointer);
+        }
+        return node;
+    }
+
+    /*
+    * Adds, replaces or removes (value is null) what the last token of the pointer names in its parent.
+    * The containers above it are remembered on the way down and copied with their new child on the way back up,
+    * without recursing, so a pointer can be as long as a document is deep.
+    * */
+    private static JsonValue change(JsonValue json, String pointer, String op, JsonValue value, boolean persistent) {
+        List<String> tokens = tokens(pointer);
+        if (tokens.isEmpty()) {
+            if (value == null) {
+                throw new JsonException("Can't remove the whole document");
+            }
+            return value;
+        }
+        int last = tokens.size() - 1;
+        JsonValue[] parents = new JsonValue[tokens.size()];
+        JsonValue node = json;
+        for (int k = 0; k < last; k++) {
+            parents[k] = node;
+            node = child(node, tokens.get(k), pointer);
+        }
+        JsonValue updated = edit(node, tokens.get(last), op, value, pointer, persistent);
+        for (int k = last - 1; k >= 0; k--) {
+            updated = set(parents[k], tokens.get(k), updated, persistent);
+        }
+        return updated;
+    }
+
+    private static JsonValue edit(JsonValue container, String token, String op, JsonValue value, String pointer,
+                                  boolean persistent) {
+        if (container.getValueType() == JsonValue.ValueType.OBJECT) {
+            JsonObject object = (JsonObject) container;
+            if (!op.equals("add") && !object.containsKey(token)) {
+                throw new JsonException("Nothing to " + op + " at " + pointer);
+            }
+            return value == null ? without(object, token, persistent) : with(object, token, value, persistent);
+        }
+        if (container.getValueType() == JsonValue.ValueType.ARRAY) {
+            JsonArray array = (JsonArray) container;
+            if (op.equals("add")) {
+                return insert(array, token.equals("-") ? array.size() : index(token, array.size() + 1, pointer), value, persistent);
+            }
+            int index = index(token, array.size(), pointer);
+            return value == null ? without(array, index, persistent) : with(array, index, value, persistent);
+        }
+        throw new JsonException("Nothing to " + op + " at " + pointer + ", its parent is a " + container.getValueType());
+    }
+
+    private static JsonValue child(JsonValue node, String token, String pointer) {
+        if (node.getValueType() == JsonValue.ValueType.OBJECT) {
+            JsonValue child = ((JsonObject) node).get(token);
+            if (child == null) {
+                throw new JsonException("Nothing at " + pointer + ", there is no " + token);
+            }
+            return child;
+        }
+        if (node.getValueType() == JsonValue.ValueType.ARRAY) {
+            JsonArray array = (JsonArray) node;
+            return array.get(index(token, array.size(), pointer));
+        }
+        throw new JsonException("Nothing at " + pointer + ", " + token + " is in a " + node.getValueType());
+    }
+
+    // Replaces a child that is known to be there.
+    private static JsonValue set(JsonValue container, String token, JsonValue value, boolean persistent) {
+        if (container.getValueType() == JsonValue.ValueType.OBJECT) {
+            return with((JsonObject) container, token, value, persistent);
+        }
+        return with((JsonArray) container, Integer.parseInt(token), value, persistent);
+    }
+
+    // A token naming an element of an array of size elements, - only means past the end when adding.
+    private static int index(String token, int size, String pointer) {
+        boolean digits = !token.isEmpty() && token.length() <= 9 && (token.length() == 1 || token.charAt(0) != '0');
+        for (int i = 0; digits && i < token.length(); i++) {
+            digits = token.charAt(i) >= '0' && token.charAt(i) <= '9';
+        }
+        if (!digits) {
+            throw new JsonException("Invalid array index " + token + " in " + pointer);
+        }
+        int index = Integer.parseInt(token);
+        if (index >= size) {
+            throw new JsonException("Index " + index + " of " + pointer + " is out of bounds");
+        }
+        return index;
+    }
+
+    static List<String> tokens(String pointer) {
+        List<String> tokens = new ArrayList<>();
+        if (pointer.isEmpty()) {
+            return tokens;
+        }
+        if (pointer.charAt(0) != '/') {
+            throw new JsonException("A JSON Pointer has to be empty or start with /, was " + pointer);
+        }
+        StringBuilder token = new StringBuilder();
+        for (int i = 1; i <= pointer.length(); i++) {
+            char c = i < pointer.length() ? pointer.charAt(i) : '/';
+            if (c == '/') {
+                tokens.add(token.toString());
+                token.setLength(0);
+            } else if (c == '~') {
+                char escaped = i + 1 < pointer.length() ? pointer.charAt(++i) : ' ';
+                if (escaped != '0' && escaped != '1') {
+                    throw new JsonException("Invalid escape in JSON Pointer " + pointer + ", ~ has to be followed by 0 or 1");
+                }
+                token.append(escaped == '0' ? '~' : '/');
+            } else {
+                token.append(c);
+            }
+        }
+        return tokens;
+    }
+
+    static String escape(String key) {
+        return key.indexOf('~') < 0 && key.indexOf('/') < 0 ? key : key.replace("~", "~0").replace("/", "~1");
+    }
+
+    private static String string(JsonObject operation, String name) {
+        JsonValue value = operation.get(name);
+        if (value == null || value.getValueType() != JsonValue.ValueType.STRING) {
+            throw new JsonException("A patch operation needs a string " + name + ", was " + operation);
+        }
+        return ((JsonString) value).getString();
+    }
+
+    private static JsonValue value(JsonObject operation) {
+        JsonValue value = operation.get("value");
+        if (value == null) {
+            throw new JsonException("A patch operation needs a value, was " + operation);
+        }
+        return value;
+    }
+
+    private static JsonObject with(JsonObject object, String key, JsonValue value, boolean persistent) {
+        if (persistent || object instanceof PersistentJsonObject) {
+            return PersistentJsonObject.of(object).with(key, value);
+        }
+        JsonObjectBuilder builder = JsonTransformer.BUILDERS.createObjectBuilder();
+        for (Map.Entry<String, JsonValue> entry : object.entrySet()) {
+            builder.add(entry.getKey(), entry.getKey().equals(key) ? value : entry.getValue());
+        }
+        if (!object.containsKey(key)) {
+            builder.add(key, value);
+        }
+        return builder.build();
+    }
+
+    private static JsonObject without(JsonObject object, String key, boolean persistent) {
+        if (persistent || object instanceof PersistentJsonObject) {
+            return PersistentJsonObject.of(object).without(key);
+        }
+        JsonObjectBuilder builder = JsonTransformer.BUILDERS.createObjectBuilder();
+        for (Map.Entry<String, JsonValue> entry : object.entrySet()) {
+            if (!entry.getKey().equals(key)) {
+                builder.add(entry.getKey(), entry.getValue());
+            }
+        }
+        return builder.build();
+    }
+
+    private static JsonArray with(JsonArray array, int index, JsonValue value, boolean persistent) {
+        if (persistent || array instanceof PersistentJsonArray) {
+            return PersistentJsonArray.of(array).with(index, value);
+        }
+        JsonArrayBuilder builder = JsonTransformer.BUILDERS.createArrayBuilder();
+        for (int i = 0; i < array.size(); i++) {
+            builder.add(i == index ? value : array.get(i));
+        }
+        return builder.build();
+    }
+
+    private static JsonArray without(JsonArray array, int index, boolean persistent) {
+        if (persistent || array instanceof PersistentJsonArray) {
+            return PersistentJsonArray.of(array).without(index);
+        }
+        JsonArrayBuilder builder = JsonTransformer.BUILDERS.createArrayBuilder();
+        for (int i = 0; i < array.size(); i++) {
+            if (i != index) {
+                builder.add(array.get(i));
+            }
+        }
+        return builder.build();
+    }
+
+    private static JsonArray insert(JsonArray array, int index, JsonValue value, boolean persistent) {
+        persistent |= array instanceof PersistentJsonArray;
+        if (persistent && index == array.size()) {
+            return PersistentJsonArray.of(array).plus(value);
+        }
+        JsonArrayBuilder builder = JsonTransformer.BUILDERS.createArrayBuilder();
+        for (int i = 0; i <= array.size(); i++) {
+            if (i == index) {
+                builder.add(value);
+            }
+            if (i < array.size()) {
+                builder.add(array.get(i));
+            }
+        }
+        return persistent ? PersistentJsonArray.of(builder.build()) : builder.build();
+    }
+
+    /*
+    * Equality as test sees it, numbers are equal when their values are, so 1 and 1.0 are.
+    * The two values are compared a pair of children at a time off a stack rather than recursively.
+    * */
+    static boolean equal(JsonValue a, JsonValue b) {
+        ArrayDeque<JsonValue[]> pairs = new ArrayDeque<>();
+        pairs.push(new JsonValue[]{a, b});
+        while (!pairs.isEmpty()) {
+            JsonValue[] pair = pairs.pop();
+            JsonValue x = pair[0];
+            JsonValue y = pair[1];
+            if (x == y) {
+                continue;
+            }
+            if (x.getValueType() != y.getValueType()) {
+                return false;
+            }
+            switch (x.getValueType()) {
+                case NUMBER:
+                    if (((JsonNumber) x).bigDecimalValue().compareTo(((JsonNumber) y).bigDecimalValue()) != 0) {
+                        return false;
+                    }
+                    break;
+                case OBJECT: {
+                    JsonObject left = (JsonObject) x;
+                    JsonObject right = (JsonObject) y;
+                    if (left.size() != right.size()) {
+                        return false;
+                    }
+                    for (Map.Entry<String, JsonValue> entry : left.entrySet()) {
+                        JsonValue other = right.get(entry.getKey());
+                        if (other == null) {
+                            return false;
+                        }
+                        pairs.push(new JsonValue[]{entry.getValue(), other});
+                    }
+                    break;
+                }
+                case ARRAY: {
+                    JsonArray left = (JsonArray) x;
+                    JsonArray right = (JsonArray) y;
+                    if (left.size() != right.size()) {
+                        return false;
+                    }
+                    Iterator<JsonValue> others = right.iterator();
+                    for (JsonValue element : left) {
+                        pairs.push(new JsonValue[]{element, others.next()});
+                    }
+                    break;
+                }
+                default:
+                    if (!x.equals(y)) {
+                        return false;
+                    }
+            }
+        }
+        return true;
+    }
+
+    /*
+    * A patch that turns from into to. Subtrees that are the very same value in both are skipped without looking inside,
+    * so for two documents that share everything but what changed this only costs as much as the change.
+    *
+    * Objects are compared key by key, arrays element by element, see elements.
+    * Pairs are taken off a stack, and what a pair hands back is pushed in reverse, so the operations come out in an
+    * order that applies cleanly one after another.
+    * */
+    static JsonArray diff(JsonValue from, JsonValue to) {
+        JsonArrayBuilder patch = JsonTransformer.BUILDERS.createArrayBuilder();
+        ArrayDeque<Object> work = new ArrayDeque<>();
+        work.push(new Pair("", from, to));
+        while (!work.isEmpty()) {
+            Object next = work.pop();
+            if (next instanceof JsonObject) {
+                patch.add((JsonObject) next);
+                continue;
+            }
+            Pair pair = (Pair) next;
+            if (same(pair.from, pair.to)) {
+                continue;
+            }
+            JsonValue.ValueType type = pair.from.getValueType();
+            List<Object> steps = new ArrayList<>();
+            if (type != pair.to.getValueType() || (type != JsonValue.ValueType.OBJECT && type != JsonValue.ValueType.ARRAY)) {
+                steps.add(operation("replace", pair.path, pair.to));
+            } else if (type == JsonValue.ValueType.OBJECT) {
+                JsonObject left = (JsonObject) pair.from;
+                JsonObject right = (JsonObject) pair.to;
+                for (String key : left.keySet()) {
+                    if (!right.containsKey(key)) {
+                        steps.add(operation("remove", pair.path + "/" + escape(key), null));
+                    }
+                }
+                for (Map.Entry<String, JsonValue> entry : right.entrySet()) {
+                    JsonValue before = left.get(entry.getKey());
+                    String path = pair.path + "/" + escape(entry.getKey());
+                    steps.add(before == null ? operation("add", path, entry.getValue()) : new Pair(path, before, entry.getValue()));
+                }
+            } else {
+                elements((JsonArray) pair.from, (JsonArray) pair.to, pair.path, steps);
+            }
+            for (int k = steps.size() - 1; k >= 0; k--) {
+                work.push(steps.get(k));
+            }
+        }
+        return patch.build();
+    }
+
+    /*
+    * Drops the elements both arrays start and end with, then goes through the ones left in to in order. An element that is
+    * also further along in from has the ones before it removed, one that isn't there at all is compared in place with
+    * the next element of from, unless that element is still to come in to, in which case the new one is added in front of it.
+    * So elements inserted or removed anywhere come out as just that, as long as the rest stayed the same values.
+    * */
+    private static void elements(JsonArray from, JsonArray to, String path, List<Object> steps) {
+        int start = 0;
+        int end = 0;
+        int shorter = Math.min(from.size(), to.size());
+        while (start < shorter && same(from.get(start), to.get(start))) {
+            start++;
+        }
+        while (end < shorter - start && same(from.get(from.size() - 1 - end), to.get(to.size() - 1 - end))) {
+            end++;
+        }
+        int fromEnd = from.size() - end;
+        int toEnd = to.size() - end;
+        Positions inFrom = new Positions(from, start, fromEnd);
+        Positions inTo = new Positions(to, start, toEnd);
+        int i = start;
+        int position = start;
+        for (int j = start; j < toEnd; j++, position++) {
+            JsonValue element = to.get(j);
+            int found = inFrom.next(element, i);
+            if (found >= 0) {
+                for (; i < found; i++) {
+                    steps.add(operation("remove", path + "/" + position, null));
+                }
+                i++;
+            } else if (i < fromEnd && inTo.next(from.get(i), j) < 0) {
+                steps.add(new Pair(path + "/" + position, from.get(i++), element));
+            } else {
+                steps.add(operation("add", path + "/" + position, element));
+            }
+        }
+        for (; i < fromEnd; i++) {
+            steps.add(operation("remove", path + "/" + position, null));
+        }
+    }
+
+    // Where in part of an array each element is, by the very value for containers and by equality for primitives.
+    private static final class Positions {
+        private final Map<Object, ArrayDeque<Integer>> positions = new HashMap<>();
+
+        Positions(JsonArray array, int from, int to) {
+            for (int k = from; k < to; k++) {
+                positions.computeIfAbsent(key(array.get(k)), key -> new ArrayDeque<>()).add(k);
+            }
+        }
+
+        // The first position of element at or after from, -1 if there is none. from never goes down between calls.
+        int next(JsonValue element, int from) {
+            ArrayDeque<Integer> found = positions.get(key(element));
+            while (found != null && !found.isEmpty()) {
+                if (found.peek() >= from) {
+                    return found.peek();
+                }
+                found.poll();
+            }
+            return -1;
+        }
+
+        private static Object key(JsonValue element) {
+            JsonValue.ValueType type = element.getValueType();
+            return type == JsonValue.ValueType.OBJECT || type == JsonValue.ValueType.ARRAY ? new Identity(element) : element;
+        }
+    }
+
+    private static final class Identity {
+        private final JsonValue value;
+
+        Identity(JsonValue value) {
+            this.value = value;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Identity && ((Identity) other).value == value;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(value);
+        }
+    }
+
+    // Containers are only the same when they are the very same value, finding out whether they are equal would mean walking them.
+    private static boolean same(JsonValue a, JsonValue b) {
+        if (a == b) {
+            return true;
+        }
+        JsonValue.ValueType type = a.getValueType();
+        return type != JsonValue.ValueType.OBJECT && type != JsonValue.ValueType.ARRAY && a.equals(b);
+    }
+
+    private static JsonObject operation(String op, String path, JsonValue value) {
+        JsonObjectBuilder operation = JsonTransformer.BUILDERS.createObjectBuilder().add("op", op).add("path", path);
+        if (value != null) {
+            operation.add("value", value);
+        }
+        return operation.build();
+    }
+
+    private static final class Pair {
+        final String path;
+        final JsonValue from;
+        final JsonValue to;
+
+        Pair(String path, JsonValue from, JsonValue to) {
+            this.path = path;
+            this.from = from;
+            this.to = to;
+        }
+    }
+}
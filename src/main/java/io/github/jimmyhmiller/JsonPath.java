@@ -0,0 +1,252 @@
+package io.github.jimmyhmiller;
+
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonValue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/*
+* A path into a document, used by mapAt and addAt.
+*
+*   $.orders[*].items[0].price
+*   $['key with spaces'].*
+*
+* A path starts at the root ($) and is followed by segments. A segment is a key (.name or ['name']),
+* an array index ([0]) or a wildcard (.* or [*]) that matches every value of an object or every element of an array.
+*
+* Updating only walks down branches the path matches. A container on the way is copied only if something
+* under it actually changed, everything else in the document is shared with the original.
+* Persistent updates change containers a key or index at a time instead of copying them.
+* */
+final class JsonPath {
+
+    private static final int WILDCARD = -1;
+
+    private final String source;
+    // A key for object segments, null for index and wildcard segments.
+    private final String[] keys;
+    // The index for array segments, WILDCARD for wildcards. Unused for keys.
+    private final int[] indexes;
+
+    private JsonPath(String source, String[] keys, int[] indexes) {
+        this.source = source;
+        this.keys = keys;
+        this.indexes = indexes;
+    }
+
+    static JsonPath parse(String path) {
+        if (path == null || !path.startsWith("$")) {
+            throw new IllegalArgumentException("A path has to start at the root, $, was " + path);
+        }
+        List<String> keys = new ArrayList<>();
+        List<Integer> indexes = new ArrayList<>();
+        int i = 1;
+        while (i < path.length()) {
+            char c = path.charAt(i);
+            if (c == '.') {
+                int start = ++i;
+                while (i < path.length() && path.charAt(i) != '.' && path.charAt(i) != '[') {
+                    i++;
+                }
+                String name = path.substring(start, i);
+                if (name.isEmpty()) {
+                    throw invalid(path, start, "a key is missing");
+                }
+                keys.add(name.equals("*") ? null : name);
+                indexes.add(WILDCARD);
+            } else if (c == '[') {
+                int close;
+                if (i + 1 < path.length() && (path.charAt(i + 1) == '\'' || path.charAt(i + 1) == '"')) {
+                    char quote = path.charAt(i + 1);
+                    int end = path.indexOf(quote, i + 2);
+                    if (end < 0 || end + 1 >= path.length() || path.charAt(end + 1) != ']') {
+                        throw invalid(path, i, "unterminated quoted key");
+                    }
+                    keys.add(path.substring(i + 2, end));
+                    indexes.add(WILDCARD);
+                    close = end + 1;
+                } else {
+                    close = path.indexOf(']', i);
+                    if (close < 0) {
+                        throw invalid(path, i, "missing ]");
+                    }
+                    String inside = path.substring(i + 1, close).trim();
+                    keys.add(null);
+                    indexes.add(inside.equals("*") ? WILDCARD : index(path, i, inside));
+                }
+                i = close + 1;
+            } else {
+                throw invalid(path, i, "expected . or [");
+            }
+        }
+        int[] indexArray = new int[indexes.size()];
+        for (int j = 0; j < indexArray.length; j++) {
+            indexArray[j] = indexes.get(j);
+        }
+        return new JsonPath(path, keys.toArray(new String[keys.size()]), indexArray);
+    }
+
+    private static int index(String path, int position, String inside) {
+        try {
+            int index = Integer.parseInt(inside);
+            if (index >= 0) {
+                return index;
+            }
+        } catch (NumberFormatException e) {
+            // Falls through to the error below.
+        }
+        throw invalid(path, position, "expected an array index or *, was " + inside);
+    }
+
+    private static IllegalArgumentException invalid(String path, int position, String message) {
+        return new IllegalArgumentException("Invalid path " + path + " at " + position + ": " + message);
+    }
+
+    // Applies fn to every value the path matches. Values that aren't there are skipped, nothing is created.
+    // counters are only there when the run is recorded for a listener.
+    JsonValue update(JsonValue json, Function<JsonValue, JsonValue> fn, boolean persistent, Interner interner,
+                     Recording.PassCounters counters) {
+        return update(json, 0, fn, persistent, interner, counters);
+    }
+
+    private JsonValue update(JsonValue json, int segment, Function<JsonValue, JsonValue> fn, boolean persistent,
+                             Interner interner, Recording.PassCounters counters) {
+        if (counters != null) {
+            counters.visited.increment();
+        }
+        if (segment == keys.length) {
+            return fn.apply(json);
+        }
+        String key = keys[segment];
+        int index = indexes[segment];
+        if (json.getValueType() == JsonValue.ValueType.OBJECT && (key != null || index == WILDCARD)) {
+            JsonObject object = (JsonObject) json;
+            if (key != null) {
+                JsonValue child = object.get(key);
+                if (child == null) {
+                    return json;
+                }
+                JsonValue updated = update(child, segment + 1, fn, persistent, interner, counters);
+                return updated == child ? json : rebuilt(replace(object, key, updated, persistent, interner), counters);
+            }
+            return updateAll(object, segment, fn, persistent, interner, counters);
+        }
+        if (json.getValueType() == JsonValue.ValueType.ARRAY && key == null) {
+            JsonArray array = (JsonArray) json;
+            if (index != WILDCARD) {
+                if (index >= array.size()) {
+                    return json;
+                }
+                JsonValue child = array.get(index);
+                JsonValue updated = update(child, segment + 1, fn, persistent, interner, counters);
+                return updated == child ? json : rebuilt(replace(array, index, updated, persistent, interner), counters);
+            }
+            return updateAll(array, segment, fn, persistent, interner, counters);
+        }
+        return json;
+    }
+
+    private JsonValue updateAll(JsonObject object, int segment, Function<JsonValue, JsonValue> fn, boolean persistent,
+                                Interner interner, Recording.PassCounters counters) {
+        JsonObjectBuilder builder = null;
+        PersistentJsonObject changed = null;
+        int position = 0;
+        for (Map.Entry<String, JsonValue> entry : object.entrySet()) {
+            JsonValue updated = update(entry.getValue(), segment + 1, fn, persistent, interner, counters);
+            if (persistent) {
+                if (updated != entry.getValue()) {
+                    changed = (changed == null ? PersistentJsonObject.of(object) : changed).with(FusedPass.key(interner, entry.getKey()), FusedPass.value(interner, updated));
+                }
+                continue;
+            }
+            if (builder == null && updated != entry.getValue()) {
+                builder = JsonTransformer.BUILDERS.createObjectBuilder();
+                int copied = 0;
+                for (Map.Entry<String, JsonValue> earlier : object.entrySet()) {
+                    if (copied++ == position) {
+                        break;
+                    }
+                    builder.add(FusedPass.key(interner, earlier.getKey()), FusedPass.value(interner, earlier.getValue()));
+                }
+            }
+            if (builder != null) {
+                builder.add(FusedPass.key(interner, entry.getKey()), FusedPass.value(interner, updated));
+            }
+            position++;
+        }
+        if (changed != null) {
+            return rebuilt(changed, counters);
+        }
+        return builder == null ? object : rebuilt(builder.build(), counters);
+    }
+
+    private JsonValue updateAll(JsonArray array, int segment, Function<JsonValue, JsonValue> fn, boolean persistent,
+                                Interner interner, Recording.PassCounters counters) {
+        JsonArrayBuilder builder = null;
+        PersistentJsonArray changed = null;
+        for (int i = 0; i < array.size(); i++) {
+            JsonValue child = array.get(i);
+            JsonValue updated = update(child, segment + 1, fn, persistent, interner, counters);
+            if (persistent) {
+                if (updated != child) {
+                    changed = (changed == null ? PersistentJsonArray.of(array) : changed).with(i, FusedPass.value(interner, updated));
+                }
+                continue;
+            }
+            if (builder == null && updated != child) {
+                builder = JsonTransformer.BUILDERS.createArrayBuilder();
+                for (int j = 0; j < i; j++) {
+                    builder.add(FusedPass.value(interner, array.get(j)));
+                }
+            }
+            if (builder != null) {
+                builder.add(FusedPass.value(interner, updated));
+            }
+        }
+        if (changed != null) {
+            return rebuilt(changed, counters);
+        }
+        return builder == null ? array : rebuilt(builder.build(), counters);
+    }
+
+    // Like FusedPass frames, only what goes into a rebuilt container is pooled.
+    private static JsonObject replace(JsonObject object, String key, JsonValue value, boolean persistent, Interner interner) {
+        if (persistent) {
+            return PersistentJsonObject.of(object).with(FusedPass.key(interner, key), FusedPass.value(interner, value));
+        }
+        JsonObjectBuilder builder = JsonTransformer.BUILDERS.createObjectBuilder();
+        for (Map.Entry<String, JsonValue> entry : object.entrySet()) {
+            builder.add(FusedPass.key(interner, entry.getKey()),
+                    FusedPass.value(interner, entry.getKey().equals(key) ? value : entry.getValue()));
+        }
+        return builder.build();
+    }
+
+    private static JsonArray replace(JsonArray array, int index, JsonValue value, boolean persistent, Interner interner) {
+        if (persistent) {
+            return PersistentJsonArray.of(array).with(index, FusedPass.value(interner, value));
+        }
+        JsonArrayBuilder builder = JsonTransformer.BUILDERS.createArrayBuilder();
+        for (int i = 0; i < array.size(); i++) {
+            builder.add(FusedPass.value(interner, i == index ? value : array.get(i)));
+        }
+        return builder.build();
+    }
+
+    private static JsonValue rebuilt(JsonValue container, Recording.PassCounters counters) {
+        if (counters != null) {
+            counters.rebuilt.increment();
+        }
+        return container;
+    }
+
+    @Override
+    public String toString() {
+        return source;
+    }
+}
@@ -0,0 +1,92 @@
+package io.github.jimmyhmiller;
+
+import javax.json.JsonValue;
+import javax.json.stream.JsonGenerator;
+import javax.json.stream.JsonParser;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+
+/*
+* A transformation compiled once and then applied to any number of documents.
+* Stages are fused when the pipeline is compiled, so applying it only walks the documents.
+* Pipelines are immutable and can be shared between threads, as long as the lambdas that went into them can be.
+*
+*   JsonPipeline pipeline = new JsonTransformer()
+*       .mapRecursive((String s) -> s.trim())
+*       .add("version", 2)
+*       .compile();
+*
+*   JsonValue result = pipeline.apply(json);
+* */
+public final class JsonPipeline implements Function<JsonValue, JsonValue> {
+
+    private final FusedPass[] passes;
+    private final List<Stage> stages;
+    private final Options options;
+
+    JsonPipeline(List<Stage> stages, Options options) {
+        List<FusedPass> fused = FusedPass.fuse(stages, options, false);
+        this.passes = fused.toArray(new FusedPass[fused.size()]);
+        this.stages = stages;
+        this.options = options;
+    }
+
+    @Override
+    public JsonValue apply(JsonValue json) {
+        if (options.listener != null) {
+            Recording recording = new Recording(stages, options);
+            JsonValue result = recording.apply(json);
+            options.listener.completed(recording.metrics());
+            return result;
+        }
+        JsonValue result = json;
+        for (FusedPass pass : passes) {
+            result = options.lazy ? pass.applyLazily(result) : pass.apply(result);
+        }
+        return result;
+    }
+
+    /*
+    * Applies the pipeline without blocking on async lambdas (mapRecursiveAsync). Each pass runs on executor once the one
+    * before it is done, an async pass starts its lambdas there and completes when the last result is in.
+    * Pipelines without async stages simply run on executor. With a listener the run is recorded as usual,
+    * which waits on async lambdas on one of executor's threads.
+    * */
+    public CompletableFuture<JsonValue> applyAsync(JsonValue json, Executor executor) {
+        if (options.listener != null || passes.length == 0) {
+            return CompletableFuture.supplyAsync(() -> apply(json), executor);
+        }
+        CompletableFuture<JsonValue> result = CompletableFuture.completedFuture(json);
+        for (FusedPass pass : passes) {
+            if (pass.isAsync()) {
+                result = result.thenComposeAsync(value -> pass.applyAsync(value, executor), executor);
+            } else {
+                result = result.thenApplyAsync(value -> options.lazy ? pass.applyLazily(value) : pass.apply(value), executor);
+            }
+        }
+        return result;
+    }
+
+    // On virtual threads where the JVM has them, otherwise on a pool of daemon threads.
+    public CompletableFuture<JsonValue> applyAsync(JsonValue json) {
+        return applyAsync(json, AsyncMap.DEFAULT_EXECUTOR);
+    }
+
+    // Applies the pipeline to input and keeps what it needs to apply it again after a JSON Patch, see IncrementalTransform.
+    public IncrementalTransform incremental(JsonValue input) {
+        return IncrementalTransform.start(passes, options, input);
+    }
+
+    // See JsonTransformer.stream.
+    public void stream(JsonParser parser, JsonGenerator generator) {
+        if (options.listener != null) {
+            Recording recording = new Recording(stages, options);
+            recording.stream(parser, generator);
+            options.listener.completed(recording.metrics());
+            return;
+        }
+        StreamingTransform.transform(parser, passes, generator);
+    }
+}
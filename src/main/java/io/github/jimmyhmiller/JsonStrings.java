@@ -0,0 +1,69 @@
+package io.github.jimmyhmiller;
+
+import javax.json.JsonException;
+import javax.json.JsonString;
+import java.io.IOException;
+import java.io.StringWriter;
+
+/*
+* JsonStrings made directly, instead of putting a string in a throwaway JsonObject and taking it back out,
+* the way JsonNumbers does for numbers.
+*
+* They behave like the ones javax.json makes. Two strings are equal when their contents are, whoever made them,
+* and toString is the quoted and escaped text a JsonGenerator would write.
+* */
+final class JsonStrings {
+
+    private JsonStrings() {}
+
+    static JsonString of(String value) {
+        if (value == null) {
+            throw new NullPointerException("A json string can't be null");
+        }
+        return new StringValue(value);
+    }
+
+    private static final class StringValue implements JsonString {
+        private final String value;
+
+        StringValue(String value) {
+            this.value = value;
+        }
+
+        @Override
+        public String getString() {
+            return value;
+        }
+
+        @Override
+        public CharSequence getChars() {
+            return value;
+        }
+
+        @Override
+        public ValueType getValueType() {
+            return ValueType.STRING;
+        }
+
+        @Override
+        public int hashCode() {
+            return value.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof JsonString && value.equals(((JsonString) other).getString());
+        }
+
+        @Override
+        public String toString() {
+            StringWriter out = new StringWriter(value.length() + 2);
+            try {
+                JsonTape.writeString(out, value.toCharArray(), 0, value.length());
+            } catch (IOException e) {
+                throw new JsonException("Could not write the string", e);
+            }
+            return out.toString();
+        }
+    }
+}
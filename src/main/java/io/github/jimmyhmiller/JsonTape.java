@@ -0,0 +1,1057 @@
+package io.github.jimmyhmiller;
+
+import javax.json.JsonArray;
+import javax.json.JsonException;
+import javax.json.JsonNumber;
+import javax.json.JsonObject;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+import javax.json.stream.JsonLocation;
+import javax.json.stream.JsonParsingException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+
+/*
+* A whole document in two flat arrays instead of a tree of objects.
+*
+*   JsonTape tape = JsonTape.parse(reader);
+*   new JsonTransformer(tape.root())
+*       .mapRecursive((String s) -> s.trim())
+*       .toTape()
+*       .writeTo(out);
+*
+* Every value is a node of three ints on the tape, in document order. Keys are nodes of their own, each right before its value.
+* The characters of keys, strings and numbers go one after the other into a single char array, and their nodes hold
+* where theirs start and end. An object or array node holds where its subtree ends on the tape, so it can be skipped
+* over without looking at it, and how many children it has. Keys and short strings that repeat, like the keys of records
+* and enum-like values, are kept once in a pool instead. A javax.json tree spends a map entry, a key string,
+* a value object and the value's string on every member. Here a member costs 24 bytes plus the characters of what isn't pooled.
+*
+* root() is a JsonValue, so everything that takes one takes a tape as it is. Objects and arrays are views on the tape,
+* values are made from it when read and not kept, so reading the same value twice makes it twice.
+* Looking up a key walks the members of its object. Transforming shares untouched subtrees as views the same way it shares
+* untouched javax.json subtrees. JsonTape.of copies a view of any tape over node for node, without going through JsonValues.
+*
+* Numbers are kept and written as the text they were read as. Offsets are ints, so a tape holds up to 2^31 characters.
+* Tapes are immutable and safe to read from any number of threads.
+* */
+public final class JsonTape {
+
+    // What a node is, the first of its ints.
+    static final int OBJECT = 0;
+    static final int ARRAY = 1;
+    static final int KEY = 2;
+    static final int STRING = 3;
+    static final int NUMBER = 4;
+    // A number written without a fraction or exponent that fits in a long.
+    static final int LONG = 5;
+    static final int TRUE = 6;
+    static final int FALSE = 7;
+    static final int NULL = 8;
+    // Keys and strings that are in the pool of the tape, the second int is where.
+    static final int POOLED_KEY = 9;
+    static final int POOLED_STRING = 10;
+
+    static final int NODE = 3;
+    // The type of what each kind is, as a bit by ValueType ordinal. Keys have none, they aren't values.
+    private static final int[] TYPES = {
+            Shape.bit(JsonValue.ValueType.OBJECT), Shape.bit(JsonValue.ValueType.ARRAY), 0,
+            Shape.bit(JsonValue.ValueType.STRING), Shape.bit(JsonValue.ValueType.NUMBER), Shape.bit(JsonValue.ValueType.NUMBER),
+            Shape.bit(JsonValue.ValueType.TRUE), Shape.bit(JsonValue.ValueType.FALSE), Shape.bit(JsonValue.ValueType.NULL),
+            0, Shape.bit(JsonValue.ValueType.STRING)};
+
+    // Keys and short strings that come up again and again are kept once, as strings, instead of in text every time.
+    // Records mostly have the same keys, so reading a key never makes a string and they take no room in text.
+    private static final int MAX_POOLED = 1 << 14;
+    private static final int MAX_POOLED_LENGTH = 32;
+
+    // For objects and arrays the second int is where the subtree ends and the third how many children it has.
+    // For pooled keys and strings it is where in pool they are. For anything else they are where its characters start and end.
+    final int[] tape;
+    final char[] text;
+    final String[] pool;
+
+    private JsonTape(int[] tape, char[] text, String[] pool) {
+        this.tape = tape;
+        this.text = text;
+        this.pool = pool;
+    }
+
+    public static JsonTape parse(String json) {
+        char[] chars = json.toCharArray();
+        return new Parser(null, chars, chars.length).parse();
+    }
+
+    // Reads in until the document ends, in is not closed.
+    public static JsonTape parse(Reader in) {
+        return new Parser(in, new char[8192], 0).parse();
+    }
+
+    // Read as UTF-8.
+    public static JsonTape parse(InputStream in) {
+        return parse(new InputStreamReader(in, StandardCharsets.UTF_8));
+    }
+
+    public static JsonTape of(JsonValue json) {
+        return new Encoder().encode(json);
+    }
+
+    public JsonValue root() {
+        return value(0);
+    }
+
+    // Nodes on the tape, keys included.
+    public int nodes() {
+        return tape.length / NODE;
+    }
+
+    // The characters of every key, string and number.
+    public int characters() {
+        return text.length;
+    }
+
+    // Compact json, the same as toString without the string in between. out is flushed but not closed.
+    public void writeTo(Writer out) {
+        write(0, out);
+    }
+
+    @Override
+    public String toString() {
+        return toString(0);
+    }
+
+    JsonValue value(int node) {
+        switch (tape[node]) {
+            case OBJECT:
+                return new TapeJsonObject(this, node);
+            case ARRAY:
+                return new TapeJsonArray(this, node);
+            case STRING:
+            case POOLED_STRING:
+                return new TapeJsonString(this, node);
+            case LONG:
+                return JsonNumbers.of(parseLong(text, tape[node + 1], tape[node + 2]));
+            case NUMBER:
+                return JsonNumbers.of(new BigDecimal(text, tape[node + 1], tape[node + 2] - tape[node + 1]));
+            case TRUE:
+                return JsonValue.TRUE;
+            case FALSE:
+                return JsonValue.FALSE;
+            default:
+                return JsonValue.NULL;
+        }
+    }
+
+    // The node after node and everything below it.
+    int next(int node) {
+        int kind = tape[node];
+        return kind == OBJECT || kind == ARRAY ? tape[node + 1] : node + NODE;
+    }
+
+    // value as it is, unless it is a string on a tape, which is copied off so it doesn't keep the whole tape alive.
+    // For anything kept longer than a run, like the pool of an interner or the cache of a memoized stage.
+    static JsonValue detach(JsonValue value) {
+        return value instanceof TapeJsonString ? JsonStrings.of(((TapeJsonString) value).getString()) : value;
+    }
+
+    // Whether nothing in the subtree at node, node included, has one of types, bits by ValueType ordinal.
+    // The subtree is in one run of the tape, so this is a loop over its kinds.
+    boolean none(int node, int types) {
+        int end = next(node);
+        for (int at = node; at < end; at += NODE) {
+            if ((TYPES[tape[at]] & types) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    int count(int node) {
+        return tape[node + 2];
+    }
+
+    String string(int node) {
+        int kind = tape[node];
+        if (kind == POOLED_KEY || kind == POOLED_STRING) {
+            return pool[tape[node + 1]];
+        }
+        return new String(text, tape[node + 1], tape[node + 2] - tape[node + 1]);
+    }
+
+    // Whether the key or string at node is s, without making a string of it.
+    boolean textEquals(int node, String s) {
+        int kind = tape[node];
+        if (kind == POOLED_KEY || kind == POOLED_STRING) {
+            return pool[tape[node + 1]].equals(s);
+        }
+        int start = tape[node + 1];
+        int length = tape[node + 2] - start;
+        if (length != s.length()) {
+            return false;
+        }
+        for (int k = 0; k < length; k++) {
+            if (text[start + k] != s.charAt(k)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    String toString(int node) {
+        StringWriter out = new StringWriter();
+        write(node, out);
+        return out.toString();
+    }
+
+    /*
+    * Writes the subtree at node as compact json. The tape already is in document order, so this is a single walk over it
+    * with a stack of how many children each open container has left.
+    * */
+    void write(int node, Writer destination) {
+        Writer out = new Sink(destination);
+        try {
+            int end = next(node);
+            int[] left = new int[16];
+            boolean[] objects = new boolean[16];
+            int depth = 0;
+            boolean first = true;
+            char[] scratch = new char[MAX_POOLED_LENGTH];
+            for (int p = node; p < end; p += NODE) {
+                int kind = tape[p];
+                boolean key = kind == KEY || kind == POOLED_KEY;
+                if (depth > 0 && (key || !objects[depth - 1])) {
+                    if (!first) {
+                        out.write(',');
+                    }
+                    first = false;
+                }
+                if (key) {
+                    writeString(out, p, scratch);
+                    out.write(':');
+                    continue;
+                }
+                switch (kind) {
+                    case OBJECT:
+                    case ARRAY:
+                        out.write(kind == OBJECT ? '{' : '[');
+                        if (tape[p + 2] > 0) {
+                            if (depth == left.length) {
+                                left = Arrays.copyOf(left, depth * 2);
+                                objects = Arrays.copyOf(objects, depth * 2);
+                            }
+                            left[depth] = tape[p + 2];
+                            objects[depth] = kind == OBJECT;
+                            depth++;
+                            first = true;
+                            continue;
+                        }
+                        out.write(kind == OBJECT ? '}' : ']');
+                        break;
+                    case STRING:
+                    case POOLED_STRING:
+                        writeString(out, p, scratch);
+                        break;
+                    case NUMBER:
+                    case LONG:
+                        out.write(text, tape[p + 1], tape[p + 2] - tape[p + 1]);
+                        break;
+                    case TRUE:
+                        out.write("true");
+                        break;
+                    case FALSE:
+                        out.write("false");
+                        break;
+                    default:
+                        out.write("null");
+                }
+                // A value is done, so are the containers it was the last child of.
+                while (depth > 0 && --left[depth - 1] == 0) {
+                    depth--;
+                    out.write(objects[depth] ? '}' : ']');
+                }
+                first = false;
+            }
+            out.flush();
+        } catch (IOException e) {
+            throw new JsonException("Could not write the tape", e);
+        }
+    }
+
+    // Pooled strings are copied into scratch first, they are never longer than it.
+    private void writeString(Writer out, int node, char[] scratch) throws IOException {
+        int kind = tape[node];
+        if (kind == POOLED_KEY || kind == POOLED_STRING) {
+            String s = pool[tape[node + 1]];
+            s.getChars(0, s.length(), scratch, 0);
+            writeString(out, scratch, 0, s.length());
+        } else {
+            writeString(out, text, tape[node + 1], tape[node + 2]);
+        }
+    }
+
+    // Escaped the way a JsonGenerator escapes strings.
+    static void writeString(Writer out, char[] text, int start, int end) throws IOException {
+        out.write('"');
+        int run = start;
+        for (int k = start; k < end; k++) {
+            char c = text[k];
+            if (c != '"' && c != '\\' && c >= 0x20) {
+                continue;
+            }
+            out.write(text, run, k - run);
+            run = k + 1;
+            switch (c) {
+                case '"':
+                case '\\':
+                    out.write('\\');
+                    out.write(c);
+                    break;
+                case '\b':
+                    out.write("\\b");
+                    break;
+                case '\f':
+                    out.write("\\f");
+                    break;
+                case '\n':
+                    out.write("\\n");
+                    break;
+                case '\r':
+                    out.write("\\r");
+                    break;
+                case '\t':
+                    out.write("\\t");
+                    break;
+                default:
+                    String hex = "000" + Integer.toHexString(c);
+                    out.write("\\u" + hex.substring(hex.length() - 4));
+            }
+        }
+        out.write(text, run, end - run);
+        out.write('"');
+    }
+
+    // A buffer in front of the writer written to. Writing a character at a time to a BufferedWriter or StringWriter takes a lock each time.
+    private static final class Sink extends Writer {
+        private final Writer out;
+        private final char[] buffer = new char[8192];
+        private int size;
+
+        Sink(Writer out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            if (size == buffer.length) {
+                drain();
+            }
+            buffer[size++] = (char) c;
+        }
+
+        @Override
+        public void write(char[] chars, int offset, int length) throws IOException {
+            if (length > buffer.length - size) {
+                drain();
+                if (length > buffer.length) {
+                    out.write(chars, offset, length);
+                    return;
+                }
+            }
+            System.arraycopy(chars, offset, buffer, size, length);
+            size += length;
+        }
+
+        @Override
+        public void write(String s, int offset, int length) throws IOException {
+            if (length > buffer.length - size) {
+                drain();
+                if (length > buffer.length) {
+                    out.write(s, offset, length);
+                    return;
+                }
+            }
+            s.getChars(offset, offset + length, buffer, size);
+            size += length;
+        }
+
+        private void drain() throws IOException {
+            out.write(buffer, 0, size);
+            size = 0;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            drain();
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
+    private static long parseLong(char[] text, int start, int end) {
+        boolean negative = text[start] == '-';
+        long value = 0;
+        for (int k = negative ? start + 1 : start; k < end; k++) {
+            value = value * 10 + (text[k] - '0');
+        }
+        return negative ? -value : value;
+    }
+
+    // Up to 18 digits always fits in a long.
+    private static boolean fitsLong(char[] text, int start, int end) {
+        int digits = end - start - (text[start] == '-' ? 1 : 0);
+        return digits <= 18;
+    }
+
+    // Where the parts of a tape go while it is being filled in, both arrays grow as needed and are cut to size at the end.
+    private abstract static class Builder {
+        int[] tape = new int[NODE * 256];
+        int nodes;
+        char[] text = new char[1024];
+        int length;
+        // An open addressing table from the characters of a pooled string to its place in pool, plus one. 0 is empty.
+        private int[] slots = new int[64];
+        private String[] pool = new String[16];
+        private int pooled;
+
+        final int node(int kind, int a, int b) {
+            if (nodes + NODE > tape.length) {
+                tape = Arrays.copyOf(tape, grow(tape.length));
+            }
+            int node = nodes;
+            tape[node] = kind;
+            tape[node + 1] = a;
+            tape[node + 2] = b;
+            nodes += NODE;
+            return node;
+        }
+
+        final void append(char c) {
+            if (length == text.length) {
+                text = Arrays.copyOf(text, grow(text.length));
+            }
+            text[length++] = c;
+        }
+
+        final void append(char[] chars, int start, int end) {
+            int count = end - start;
+            if (length + count > text.length) {
+                text = Arrays.copyOf(text, Math.max(grow(text.length), length + count));
+            }
+            System.arraycopy(chars, start, text, length, count);
+            length += count;
+        }
+
+        final void append(String s) {
+            int count = s.length();
+            if (length + count > text.length) {
+                text = Arrays.copyOf(text, Math.max(grow(text.length), length + count));
+            }
+            s.getChars(0, count, text, length);
+            length += count;
+        }
+
+        /*
+        * Puts the key or string whose characters were just appended from start on the tape. If it is short enough it goes
+        * into the pool, or is found there, and its characters are taken back off text.
+        * Once the pool is full strings that aren't in it stay in text, so a document of unique strings can't grow it without limit.
+        * */
+        final void string(int kind, int start) {
+            int size = length - start;
+            if (size > MAX_POOLED_LENGTH) {
+                node(kind, start, length);
+                return;
+            }
+            int hash = 0;
+            for (int k = start; k < length; k++) {
+                hash = 31 * hash + text[k];
+            }
+            int mask = slots.length - 1;
+            int slot = (hash ^ (hash >>> 16)) & mask;
+            while (slots[slot] != 0) {
+                String candidate = pool[slots[slot] - 1];
+                if (matches(candidate, start)) {
+                    length = start;
+                    node(kind == KEY ? POOLED_KEY : POOLED_STRING, slots[slot] - 1, 0);
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+            if (pooled == MAX_POOLED) {
+                node(kind, start, length);
+                return;
+            }
+            if (pooled == pool.length) {
+                pool = Arrays.copyOf(pool, pooled * 2);
+            }
+            length = start;
+            add(kind, slot, new String(text, start, size));
+        }
+
+        // The same for a string that is already a String, which keeps its hash. Mostly it is the very one in the pool.
+        final void string(int kind, String s) {
+            if (s.length() <= MAX_POOLED_LENGTH) {
+                int hash = s.hashCode();
+                int mask = slots.length - 1;
+                int slot = (hash ^ (hash >>> 16)) & mask;
+                while (slots[slot] != 0) {
+                    String candidate = pool[slots[slot] - 1];
+                    if (candidate == s || candidate.equals(s)) {
+                        node(kind == KEY ? POOLED_KEY : POOLED_STRING, slots[slot] - 1, 0);
+                        return;
+                    }
+                    slot = (slot + 1) & mask;
+                }
+                if (pooled < MAX_POOLED) {
+                    add(kind, slot, s);
+                    return;
+                }
+            }
+            int start = length;
+            append(s);
+            node(kind, start, length);
+        }
+
+        private void add(int kind, int slot, String s) {
+            if (pooled == pool.length) {
+                pool = Arrays.copyOf(pool, pooled * 2);
+            }
+            pool[pooled] = s;
+            slots[slot] = ++pooled;
+            node(kind == KEY ? POOLED_KEY : POOLED_STRING, pooled - 1, 0);
+            // At most half full, so probes stay short.
+            if (pooled * 2 > slots.length) {
+                rehash();
+            }
+        }
+
+        private boolean matches(String candidate, int start) {
+            if (candidate.length() != length - start) {
+                return false;
+            }
+            for (int k = 0; k < candidate.length(); k++) {
+                if (candidate.charAt(k) != text[start + k]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void rehash() {
+            int[] grown = new int[slots.length * 2];
+            int mask = grown.length - 1;
+            for (int id = 0; id < pooled; id++) {
+                int hash = pool[id].hashCode();
+                int slot = (hash ^ (hash >>> 16)) & mask;
+                while (grown[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                grown[slot] = id + 1;
+            }
+            slots = grown;
+        }
+
+        final JsonTape build() {
+            return new JsonTape(Arrays.copyOf(tape, nodes), Arrays.copyOf(text, length), Arrays.copyOf(pool, pooled));
+        }
+
+        private static int grow(int size) {
+            if (size >= Integer.MAX_VALUE / 2) {
+                throw new JsonException("The document is too big for a tape");
+            }
+            return size * 2;
+        }
+    }
+
+    /*
+    * A json parser that writes straight onto the tape, so nothing but the tape is allocated.
+    * Containers are tracked on a stack of their nodes rather than the Java stack, so nesting is only limited by memory.
+    * Input is checked as strictly as the javax.json parser checks it, anything after the document other than whitespace is an error.
+    * */
+    private static final class Parser extends Builder {
+        private final Reader in;
+        private final char[] buffer;
+        private int position;
+        private int limit;
+        // How many characters came before the buffer, for error messages.
+        private long consumed;
+        // A character a number read one past its end.
+        private int pending = -1;
+        private int[] open = new int[16];
+        private int depth;
+
+        Parser(Reader in, char[] buffer, int limit) {
+            this.in = in;
+            this.buffer = buffer;
+            this.limit = limit;
+        }
+
+        JsonTape parse() {
+            int c = token();
+            while (true) {
+                boolean done;
+                switch (c) {
+                    case '{':
+                        c = token();
+                        if (c == '}') {
+                            node(OBJECT, nodes + NODE, 0);
+                            done = true;
+                        } else {
+                            push(node(OBJECT, 0, 0));
+                            key(c);
+                            c = token();
+                            done = false;
+                        }
+                        break;
+                    case '[':
+                        c = token();
+                        if (c == ']') {
+                            node(ARRAY, nodes + NODE, 0);
+                            done = true;
+                        } else {
+                            push(node(ARRAY, 0, 0));
+                            done = false;
+                        }
+                        break;
+                    default:
+                        primitive(c);
+                        done = true;
+                }
+                if (!done) {
+                    continue;
+                }
+                // A value is done, close every container that ends right after it and find where the next value starts.
+                while (true) {
+                    if (depth == 0) {
+                        if (token() != -1) {
+                            throw error("Expected the end of the document");
+                        }
+                        return build();
+                    }
+                    int container = open[depth - 1];
+                    tape[container + 2]++;
+                    boolean object = tape[container] == OBJECT;
+                    c = token();
+                    if (c == ',') {
+                        if (object) {
+                            key(token());
+                        }
+                        c = token();
+                        break;
+                    }
+                    if (c != (object ? '}' : ']')) {
+                        throw error("Expected , or " + (object ? '}' : ']'));
+                    }
+                    tape[container + 1] = nodes;
+                    depth--;
+                }
+            }
+        }
+
+        private void push(int node) {
+            if (depth == open.length) {
+                open = Arrays.copyOf(open, depth * 2);
+            }
+            open[depth++] = node;
+        }
+
+        private void key(int c) {
+            if (c != '"') {
+                throw error("Expected a key");
+            }
+            string(KEY);
+            if (token() != ':') {
+                throw error("Expected :");
+            }
+        }
+
+        private void primitive(int c) {
+            switch (c) {
+                case '"':
+                    string(STRING);
+                    return;
+                case 't':
+                    literal("rue");
+                    node(TRUE, 0, 0);
+                    return;
+                case 'f':
+                    literal("alse");
+                    node(FALSE, 0, 0);
+                    return;
+                case 'n':
+                    literal("ull");
+                    node(NULL, 0, 0);
+                    return;
+                default:
+                    if (c == '-' || (c >= '0' && c <= '9')) {
+                        number(c);
+                        return;
+                    }
+                    throw error(c == -1 ? "Unexpected end of the document" : "Unexpected character " + (char) c);
+            }
+        }
+
+        private void literal(String rest) {
+            for (int k = 0; k < rest.length(); k++) {
+                if (read() != rest.charAt(k)) {
+                    throw error("Unexpected character in a literal");
+                }
+            }
+        }
+
+        // The opening quote has been read. Escapes are resolved as they are copied onto the tape.
+        private void string(int kind) {
+            int start = length;
+            while (true) {
+                int c = read();
+                if (c == '"') {
+                    break;
+                }
+                if (c == -1) {
+                    throw error("Unexpected end of the document in a string");
+                }
+                if (c < 0x20) {
+                    throw error("Unescaped control character in a string");
+                }
+                if (c == '\\') {
+                    c = escape();
+                }
+                append((char) c);
+            }
+            string(kind, start);
+        }
+
+        private int escape() {
+            int c = read();
+            switch (c) {
+                case '"':
+                case '\\':
+                case '/':
+                    return c;
+                case 'b':
+                    return '\b';
+                case 'f':
+                    return '\f';
+                case 'n':
+                    return '\n';
+                case 'r':
+                    return '\r';
+                case 't':
+                    return '\t';
+                case 'u':
+                    int value = 0;
+                    for (int k = 0; k < 4; k++) {
+                        int digit = hex(read());
+                        if (digit < 0) {
+                            throw error("Invalid \\u escape");
+                        }
+                        value = value * 16 + digit;
+                    }
+                    return value;
+                default:
+                    throw error("Invalid escape");
+            }
+        }
+
+        // Only ASCII hex digits, Character.digit would take any Unicode digit.
+        private static int hex(int c) {
+            if (c >= '0' && c <= '9') {
+                return c - '0';
+            }
+            if (c >= 'a' && c <= 'f') {
+                return c - 'a' + 10;
+            }
+            if (c >= 'A' && c <= 'F') {
+                return c - 'A' + 10;
+            }
+            return -1;
+        }
+
+        // -? (0 | [1-9][0-9]*) (. [0-9]+)? ([eE] [+-]? [0-9]+)?
+        private void number(int c) {
+            int start = length;
+            boolean integral = true;
+            if (c == '-') {
+                append('-');
+                c = read();
+            }
+            if (c == '0') {
+                append('0');
+                c = read();
+            } else {
+                c = digits(c);
+            }
+            if (c == '.') {
+                integral = false;
+                append('.');
+                c = digits(read());
+            }
+            if (c == 'e' || c == 'E') {
+                integral = false;
+                append((char) c);
+                c = read();
+                if (c == '+' || c == '-') {
+                    append((char) c);
+                    c = read();
+                }
+                c = digits(c);
+            }
+            pending = c;
+            node(integral && fitsLong(text, start, length) ? LONG : NUMBER, start, length);
+        }
+
+        // At least one digit, hands back the character after the last.
+        private int digits(int c) {
+            if (c < '0' || c > '9') {
+                throw error("Expected a digit");
+            }
+            while (c >= '0' && c <= '9') {
+                append((char) c);
+                c = read();
+            }
+            return c;
+        }
+
+        // The next character that isn't whitespace, -1 at the end.
+        private int token() {
+            int c = pending >= 0 ? pending : read();
+            pending = -1;
+            while (c == ' ' || c == '\n' || c == '\r' || c == '\t') {
+                c = read();
+            }
+            return c;
+        }
+
+        private int read() {
+            if (position == limit) {
+                if (in == null || !fill()) {
+                    return -1;
+                }
+            }
+            return buffer[position++];
+        }
+
+        private boolean fill() {
+            try {
+                consumed += limit;
+                position = 0;
+                limit = 0;
+                int read;
+                do {
+                    read = in.read(buffer, 0, buffer.length);
+                } while (read == 0);
+                if (read < 0) {
+                    return false;
+                }
+                limit = read;
+                return true;
+            } catch (IOException e) {
+                throw new JsonException("Could not read the document", e);
+            }
+        }
+
+        private JsonParsingException error(String message) {
+            long offset = consumed + position - 1;
+            return new JsonParsingException(message + " at character " + offset, new JsonLocation() {
+                @Override
+                public long getLineNumber() {
+                    return -1;
+                }
+
+                @Override
+                public long getColumnNumber() {
+                    return -1;
+                }
+
+                @Override
+                public long getStreamOffset() {
+                    return offset;
+                }
+            });
+        }
+    }
+
+    /*
+    * Puts any JsonValue on a tape. Objects, arrays and strings that are views of a tape are copied over node for node,
+    * anything else is walked with a stack of the containers it is part way through.
+    * */
+    private static final class Encoder extends Builder {
+
+        JsonTape encode(JsonValue json) {
+            ArrayDeque<Level> stack = new ArrayDeque<>();
+            Level level = value(json);
+            if (level == null) {
+                return build();
+            }
+            stack.push(level);
+            while (!stack.isEmpty()) {
+                Level top = stack.peek();
+                JsonValue child = top.next(this);
+                if (child == null) {
+                    stack.pop();
+                    tape[top.node + 1] = nodes;
+                    continue;
+                }
+                Level opened = value(child);
+                if (opened != null) {
+                    stack.push(opened);
+                }
+            }
+            return build();
+        }
+
+        // Puts value on the tape, hands back a Level for an object or array whose children still have to go on.
+        private Level value(JsonValue value) {
+            if (value instanceof TapeJsonObject) {
+                copy(((TapeJsonObject) value).tape, ((TapeJsonObject) value).node);
+                return null;
+            }
+            if (value instanceof TapeJsonArray) {
+                copy(((TapeJsonArray) value).tape, ((TapeJsonArray) value).node);
+                return null;
+            }
+            if (value instanceof TapeJsonString) {
+                copy(((TapeJsonString) value).tape, ((TapeJsonString) value).node);
+                return null;
+            }
+            switch (value.getValueType()) {
+                case OBJECT:
+                    return new Level(node(OBJECT, 0, ((JsonObject) value).size()), ((JsonObject) value).entrySet().iterator(), null);
+                case ARRAY:
+                    return new Level(node(ARRAY, 0, ((JsonArray) value).size()), null, ((JsonArray) value).iterator());
+                case STRING:
+                    string(STRING, ((JsonString) value).getString());
+                    return null;
+                case NUMBER:
+                    int start = length;
+                    append(((JsonNumber) value).toString());
+                    node(isLong(text, start, length) ? LONG : NUMBER, start, length);
+                    return null;
+                case TRUE:
+                    node(TRUE, 0, 0);
+                    return null;
+                case FALSE:
+                    node(FALSE, 0, 0);
+                    return null;
+                default:
+                    node(NULL, 0, 0);
+                    return null;
+            }
+        }
+
+        // The subtree at node of from, with its ends and characters moved to where they are on this tape.
+        private void copy(JsonTape from, int node) {
+            int end = from.next(node);
+            int shift = nodes - node;
+            for (int p = node; p < end; p += NODE) {
+                int kind = from.tape[p];
+                if (kind == OBJECT || kind == ARRAY) {
+                    node(kind, from.tape[p + 1] + shift, from.tape[p + 2]);
+                } else if (kind == POOLED_KEY || kind == POOLED_STRING) {
+                    string(kind == POOLED_KEY ? KEY : STRING, from.pool[from.tape[p + 1]]);
+                } else if (kind == KEY || kind == STRING) {
+                    int start = length;
+                    append(from.text, from.tape[p + 1], from.tape[p + 2]);
+                    string(kind, start);
+                } else {
+                    int start = length;
+                    append(from.text, from.tape[p + 1], from.tape[p + 2]);
+                    node(kind, start, length);
+                }
+            }
+        }
+
+        private static boolean isLong(char[] text, int start, int end) {
+            for (int k = start; k < end; k++) {
+                char c = text[k];
+                if ((c < '0' || c > '9') && !(c == '-' && k == start)) {
+                    return false;
+                }
+            }
+            return fitsLong(text, start, end);
+        }
+    }
+
+    private static final class Level {
+        final int node;
+        private final Iterator<Map.Entry<String, JsonValue>> entries;
+        private final Iterator<JsonValue> elements;
+
+        Level(int node, Iterator<Map.Entry<String, JsonValue>> entries, Iterator<JsonValue> elements) {
+            this.node = node;
+            this.entries = entries;
+            this.elements = elements;
+        }
+
+        // The next child, with its key already on the tape for objects. null once there are no more.
+        JsonValue next(Encoder encoder) {
+            if (entries != null) {
+                if (!entries.hasNext()) {
+                    return null;
+                }
+                Map.Entry<String, JsonValue> entry = entries.next();
+                encoder.string(KEY, entry.getKey());
+                return entry.getValue();
+            }
+            return elements.hasNext() ? elements.next() : null;
+        }
+    }
+
+    // A string on a tape. Equal to any JsonString with the same characters, like the ones javax.json makes.
+    private static final class TapeJsonString implements JsonString {
+        private final JsonTape tape;
+        private final int node;
+
+        TapeJsonString(JsonTape tape, int node) {
+            this.tape = tape;
+            this.node = node;
+        }
+
+        @Override
+        public String getString() {
+            return tape.string(node);
+        }
+
+        @Override
+        public CharSequence getChars() {
+            return getString();
+        }
+
+        @Override
+        public ValueType getValueType() {
+            return ValueType.STRING;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (other instanceof TapeJsonString) {
+                TapeJsonString string = (TapeJsonString) other;
+                return string.tape == tape && string.node == node || getString().equals(string.getString());
+            }
+            return other instanceof JsonString && tape.textEquals(node, ((JsonString) other).getString());
+        }
+
+        @Override
+        public int hashCode() {
+            return getString().hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return tape.toString(node);
+        }
+    }
+}
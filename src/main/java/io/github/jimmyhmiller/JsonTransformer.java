@@ -3,28 +3,58 @@ package io.github.jimmyhmiller;
 
 import javax.json.*;
 import javax.json.stream.JsonGenerator;
-import java.io.StringReader;
-import java.io.StringWriter;
+import javax.json.stream.JsonGeneratorFactory;
+import javax.json.stream.JsonParser;
+import java.io.FilterOutputStream;
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.BiFunction;
+import java.util.function.Consumer;
 import java.util.function.Function;
 
 public class JsonTransformer {
 
+    // Looking up the provider on every Json.createObjectBuilder() call is expensive, so we share a single factory.
+    static final JsonBuilderFactory BUILDERS = Json.createBuilderFactory(Collections.<String, Object>emptyMap());
+    static final JsonReaderFactory READERS = Json.createReaderFactory(Collections.<String, Object>emptyMap());
+    static final JsonWriterFactory WRITERS = Json.createWriterFactory(Collections.<String, Object>emptyMap());
+    private static final JsonGeneratorFactory GENERATORS = Json.createGeneratorFactory(Collections.<String, Object>emptyMap());
+    private static final JsonGeneratorFactory PRETTY_GENERATORS =
+            Json.createGeneratorFactory(Collections.<String, Object>singletonMap(JsonGenerator.PRETTY_PRINTING, true));
+
     private final JsonValue json;
-    private final List<Function<JsonValue, JsonValue>> fns;
+    private final List<Stage> stages;
+    private final Options options;
+    private JsonPipeline pipeline;
 
     public JsonTransformer(JsonValue json) {
         this.json = json;
-        this.fns = new ArrayList<>();
+        this.stages = Collections.emptyList();
+        this.options = Options.DEFAULT;
+    }
+
+    // For a transformer that is only ever run over other input, see stream.
+    public JsonTransformer() {
+        this(JsonValue.NULL);
     }
 
-    private JsonTransformer(JsonValue json, List<Function<JsonValue, JsonValue>> fns) {
+    private JsonTransformer(JsonValue json, List<Stage> stages, Options options) {
         this.json = json;
-        this.fns = fns;
+        this.stages = stages;
+        this.options = options;
     }
 
 
@@ -44,69 +74,95 @@ public class JsonTransformer {
     public interface BiFunctionFromStringAndJsonArrayToObject extends BiFunction<String, JsonArray, Object> {}
     public interface BiFunctionFromStringAndJsonObjectBuilderToObject extends BiFunction<String, JsonObjectBuilder, Object> {}
 
-    /*
-    * ## The Heart
-    * This is the fundamental method that drives the application.
-    * This is the method that I am astonished doesn't exist in any Java json library.
-    * It recurses the json tree apply our function to element in the tree.
-    * One thing to not is that the function must be from type JsonValue -> JsonValue.
-    * Almost every other part of this library is dedicated to converting other function types
-    * into functions from JsonValue -> JsonValue.
-    * */
-    private static JsonValue mapRecursive(JsonValue json, Function<JsonValue, JsonValue> f) {
-        JsonValue applied = f.apply(json);
-        if (isObject(applied)) {
-            JsonObjectBuilder builder = Json.createObjectBuilder();
-            JsonObject jsonO = (JsonObject) applied;
-            jsonO.forEach((k, v) -> builder.add(k, mapRecursive(v, f)));
-            return builder.build();
-        }
-        else if (isArray(applied)) {
-            JsonArrayBuilder builder = Json.createArrayBuilder();
-            JsonArray jsonA = (JsonArray) applied;
-            jsonA.forEach(v -> builder.add(mapRecursive(v, f)));
-            return builder.build();
-        }
-        else if (isPrimitive(applied)) {
-            return applied;
-        }
-        return applied;
-    }
+    // Numbers at full precision. The long and double versions take and return primitives, so nothing gets boxed.
+    public interface FunctionFromLongToLong { long apply(long value); }
+    public interface FunctionFromDoubleToDouble { double apply(double value); }
+    public interface FunctionFromBigDecimalToObject extends Function<BigDecimal, Object> {}
+    public interface FunctionFromLongToBoolean { boolean apply(long value); }
+    public interface FunctionFromDoubleToBoolean { boolean apply(double value); }
+    public interface BiFunctionFromStringAndLongToLong { long apply(String key, long value); }
+    public interface BiFunctionFromStringAndDoubleToDouble { double apply(String key, double value); }
+    public interface BiFunctionFromStringAndBigDecimalToObject extends BiFunction<String, BigDecimal, Object> {}
+    public interface BiFunctionFromStringAndLongToBoolean { boolean apply(String key, long value); }
+    public interface BiFunctionFromStringAndDoubleToBoolean { boolean apply(String key, double value); }
+
+    // Predicates for filter and filterRecursive.
+    public interface FunctionFromStringToBoolean extends Function<String, Boolean> {}
+    public interface FunctionFromIntegerToBoolean extends Function<Integer, Boolean> {}
+    public interface FunctionFromBooleanToBoolean extends Function<Boolean, Boolean> {}
+    public interface FunctionFromBigDecimalToBoolean extends Function<BigDecimal, Boolean> {}
+    public interface FunctionFromJsonObjectToBoolean extends Function<JsonObject, Boolean> {}
+    public interface FunctionFromJsonArrayToBoolean extends Function<JsonArray, Boolean> {}
+    public interface BiFunctionFromStringAndStringToBoolean extends BiFunction<String, String, Boolean> {}
+    public interface BiFunctionFromStringAndNumberToBoolean extends BiFunction<String, Integer, Boolean> {}
+    public interface BiFunctionFromStringAndBooleanToBoolean extends BiFunction<String, Boolean, Boolean> {}
+    public interface BiFunctionFromStringAndBigDecimalToBoolean extends BiFunction<String, BigDecimal, Boolean> {}
+    public interface BiFunctionFromStringAndJsonObjectToBoolean extends BiFunction<String, JsonObject, Boolean> {}
+    public interface BiFunctionFromStringAndJsonArrayToBoolean extends BiFunction<String, JsonArray, Boolean> {}
+
+    // Accumulators for reduce and reduceRecursive, the first argument is what has been accumulated so far.
+    public interface BiFunctionFromAccumulatorAndStringToAccumulator<A> extends BiFunction<A, String, A> {}
+    public interface BiFunctionFromAccumulatorAndIntegerToAccumulator<A> extends BiFunction<A, Integer, A> {}
+    public interface BiFunctionFromAccumulatorAndBooleanToAccumulator<A> extends BiFunction<A, Boolean, A> {}
+    public interface BiFunctionFromAccumulatorAndBigDecimalToAccumulator<A> extends BiFunction<A, BigDecimal, A> {}
+    public interface BiFunctionFromAccumulatorAndJsonObjectToAccumulator<A> extends BiFunction<A, JsonObject, A> {}
+    public interface BiFunctionFromAccumulatorAndJsonArrayToAccumulator<A> extends BiFunction<A, JsonArray, A> {}
+    public interface BiFunctionFromAccumulatorAndJsonValueToAccumulator<A> extends BiFunction<A, JsonValue, A> {}
+    public interface BiFunctionFromLongAndLongToLong { long apply(long accumulator, long value); }
+    public interface BiFunctionFromDoubleAndDoubleToDouble { double apply(double accumulator, double value); }
+
+    // Lambdas for mapRecursiveAsync and mapAsync, what the future completes with is coerced like anything a map returns.
+    public interface FunctionFromStringToFuture extends Function<String, CompletionStage<?>> {}
+    public interface FunctionFromIntegerToFuture extends Function<Integer, CompletionStage<?>> {}
+    public interface FunctionFromBooleanToFuture extends Function<Boolean, CompletionStage<?>> {}
+    public interface FunctionFromBigDecimalToFuture extends Function<BigDecimal, CompletionStage<?>> {}
 
     public static JsonObject map(JsonObject json, BiFunction<String, JsonValue, JsonValue> f) {
-        JsonObjectBuilder builder = Json.createObjectBuilder();
+        JsonObjectBuilder builder = BUILDERS.createObjectBuilder();
         json.forEach((k, v) -> builder.add(k, f.apply(k, v)));
         return builder.build();
     }
 
     public static JsonArray map(JsonArray json, Function<JsonValue, JsonValue> f) {
-        JsonArrayBuilder builder = Json.createArrayBuilder();
+        JsonArrayBuilder builder = BUILDERS.createArrayBuilder();
         json.forEach((v) -> builder.add(f.apply(v)));
         return builder.build();
     }
 
     public JsonTransformer map(BiFunctionFromStringAndStringToObject f) {
-        return this.addMapObject(convertFunctionType(f, JsonTransformer::isString, JsonTransformer::valueToString));
+        return this.addMapObject(Stage.STRING, convertFunctionType(f, JsonTransformer::valueToString));
     }
 
     public JsonTransformer map(BiFunctionFromStringAndNumberToObject f) {
-        return this.addMapObject(convertFunctionType(f, JsonTransformer::isNumber, JsonTransformer::valueToInteger));
+        return this.addMapObject(Stage.NUMBER, convertFunctionType(f, JsonTransformer::valueToInteger));
     }
 
     public JsonTransformer map(BiFunctionFromStringAndBooleanToObject f) {
-        return this.addMapObject(convertFunctionType(f, JsonTransformer::isBool, JsonTransformer::isTrue));
+        return this.addMapObject(Stage.BOOLEAN, convertFunctionType(f, JsonTransformer::isTrue));
     }
 
     public JsonTransformer map(BiFunctionFromStringAndJsonObjectToObject f) {
-        return this.addMapObject(convertFunctionType(f, JsonTransformer::isObject, JsonTransformer::valueToObject));
+        return this.addMapObject(Stage.OBJECT, convertFunctionType(f, JsonTransformer::valueToObject));
     }
 
     public JsonTransformer map(BiFunctionFromStringAndJsonArrayToObject f) {
-        return this.addMapObject(convertFunctionType(f, JsonTransformer::isArray, JsonTransformer::valueToArray));
+        return this.addMapObject(Stage.ARRAY, convertFunctionType(f, JsonTransformer::valueToArray));
     }
 
     public JsonTransformer map(BiFunctionFromStringAndJsonObjectBuilderToObject f) {
-        return this.addMapObject(convertFunctionType(f, JsonTransformer::isObject, JsonTransformer::valueToObjectBuilder));
+        return this.addMapObject(Stage.OBJECT, convertFunctionType(f, JsonTransformer::valueToObjectBuilder));
+    }
+
+    public JsonTransformer map(BiFunctionFromStringAndLongToLong f) {
+        return this.addMapObject(Stage.NUMBER, fromLong(f));
+    }
+
+    public JsonTransformer map(BiFunctionFromStringAndDoubleToDouble f) {
+        return this.addMapObject(Stage.NUMBER, fromDouble(f));
+    }
+
+    public JsonTransformer map(BiFunctionFromStringAndBigDecimalToObject f) {
+        return this.addMapObject(Stage.NUMBER, convertFunctionType(f, JsonTransformer::valueToBigDecimal));
     }
 
     public JsonTransformer mapIf(BiFunction<String, String, Boolean> pred, BiFunctionFromStringAndStringToObject f, BiFunctionFromStringAndStringToObject e) {
@@ -188,28 +244,69 @@ public class JsonTransformer {
         return this.mapIf(pred, f, (a, b) -> b);
     }
 
+    public JsonTransformer mapIf(BiFunctionFromStringAndLongToBoolean pred, BiFunctionFromStringAndLongToLong f, BiFunctionFromStringAndLongToLong e) {
+        return this.map((String key, long value) -> pred.apply(key, value) ? f.apply(key, value) : e.apply(key, value));
+    }
+
+    public JsonTransformer mapIf(BiFunctionFromStringAndDoubleToBoolean pred, BiFunctionFromStringAndDoubleToDouble f, BiFunctionFromStringAndDoubleToDouble e) {
+        return this.map((String key, double value) -> pred.apply(key, value) ? f.apply(key, value) : e.apply(key, value));
+    }
+
+    public JsonTransformer mapIf(BiFunction<String, BigDecimal, Boolean> pred, BiFunctionFromStringAndBigDecimalToObject f, BiFunctionFromStringAndBigDecimalToObject e) {
+        return this.map((String key, BigDecimal value) -> {
+            if (pred.apply(key, value)) {
+                return f.apply(key, value);
+            }
+            return e.apply(key, value);
+        });
+    }
+
+    public JsonTransformer mapIf(BiFunctionFromStringAndLongToBoolean pred, BiFunctionFromStringAndLongToLong f) {
+        return this.mapIf(pred, f, (a, b) -> b);
+    }
+
+    public JsonTransformer mapIf(BiFunctionFromStringAndDoubleToBoolean pred, BiFunctionFromStringAndDoubleToDouble f) {
+        return this.mapIf(pred, f, (a, b) -> b);
+    }
+
+    public JsonTransformer mapIf(BiFunction<String, BigDecimal, Boolean> pred, BiFunctionFromStringAndBigDecimalToObject f) {
+        return this.mapIf(pred, f, (a, b) -> b);
+    }
+
     public JsonTransformer map(FunctionFromStringToObject f) {
-        return this.addMapArray(convertFunctionType(f, JsonTransformer::isString, JsonTransformer::valueToString));
+        return this.addMapArray(Stage.STRING, convertFunctionType(f, JsonTransformer::valueToString));
     }
 
     public JsonTransformer map(FunctionFromIntegerToObject f) {
-        return this.addMapArray(convertFunctionType(f, JsonTransformer::isNumber, JsonTransformer::valueToInteger));
+        return this.addMapArray(Stage.NUMBER, convertFunctionType(f, JsonTransformer::valueToInteger));
     }
 
     public JsonTransformer map(FunctionFromBooleanToObject f) {
-        return this.addMapArray(convertFunctionType(f, JsonTransformer::isBool, JsonTransformer::isTrue));
+        return this.addMapArray(Stage.BOOLEAN, convertFunctionType(f, JsonTransformer::isTrue));
     }
 
     public JsonTransformer map(FunctionFromJsonObjectToObject f) {
-        return this.addMapArray(convertFunctionType(f, JsonTransformer::isObject, JsonTransformer::valueToObject));
+        return this.addMapArray(Stage.OBJECT, convertFunctionType(f, JsonTransformer::valueToObject));
     }
 
     public JsonTransformer map(FunctionFromJsonArrayToObject f) {
-        return this.addMapArray(convertFunctionType(f, JsonTransformer::isArray, JsonTransformer::valueToArray));
+        return this.addMapArray(Stage.ARRAY, convertFunctionType(f, JsonTransformer::valueToArray));
     }
 
     public JsonTransformer map(FunctionFromJsonObjectBuilderToObject f) {
-        return this.addMapArray(convertFunctionType(f, JsonTransformer::isObject, JsonTransformer::valueToObjectBuilder));
+        return this.addMapArray(Stage.OBJECT, convertFunctionType(f, JsonTransformer::valueToObjectBuilder));
+    }
+
+    public JsonTransformer map(FunctionFromLongToLong f) {
+        return this.addMapArray(Stage.NUMBER, fromLong(f));
+    }
+
+    public JsonTransformer map(FunctionFromDoubleToDouble f) {
+        return this.addMapArray(Stage.NUMBER, fromDouble(f));
+    }
+
+    public JsonTransformer map(FunctionFromBigDecimalToObject f) {
+        return this.addMapArray(Stage.NUMBER, fromBigDecimal(f));
     }
 
     public JsonTransformer mapIf(Function<String, Boolean> pred, FunctionFromStringToObject f, FunctionFromStringToObject e) {
@@ -291,56 +388,130 @@ public class JsonTransformer {
         return this.mapIf(pred, f, a -> a);
     }
 
+    public JsonTransformer mapIf(FunctionFromLongToBoolean pred, FunctionFromLongToLong f, FunctionFromLongToLong e) {
+        return this.map((long value) -> pred.apply(value) ? f.apply(value) : e.apply(value));
+    }
+
+    public JsonTransformer mapIf(FunctionFromDoubleToBoolean pred, FunctionFromDoubleToDouble f, FunctionFromDoubleToDouble e) {
+        return this.map((double value) -> pred.apply(value) ? f.apply(value) : e.apply(value));
+    }
+
+    public JsonTransformer mapIf(Function<BigDecimal, Boolean> pred, FunctionFromBigDecimalToObject f, FunctionFromBigDecimalToObject e) {
+        return this.map((BigDecimal value) -> {
+            if (pred.apply(value)) {
+                return f.apply(value);
+            }
+            return e.apply(value);
+        });
+    }
+
+    public JsonTransformer mapIf(FunctionFromLongToBoolean pred, FunctionFromLongToLong f) {
+        return this.mapIf(pred, f, a -> a);
+    }
+
+    public JsonTransformer mapIf(FunctionFromDoubleToBoolean pred, FunctionFromDoubleToDouble f) {
+        return this.mapIf(pred, f, a -> a);
+    }
+
+    public JsonTransformer mapIf(Function<BigDecimal, Boolean> pred, FunctionFromBigDecimalToObject f) {
+        return this.mapIf(pred, f, a -> a);
+    }
+
 
 
 
     /*
     * This builds up our future transformations so that we can lazily apply them.
-    * TODO: Use immutable lists
+    * Every transformer gets its own copy of the stages, so branching off a transformer never affects the original.
     *
     * */
-    private JsonTransformer addTransformation(Function<JsonValue, JsonValue> f) {
-        fns.add(f);
-        return new JsonTransformer(json, fns);
+    private JsonTransformer addTransformation(Stage stage) {
+        List<Stage> next = new ArrayList<>(stages.size() + 1);
+        next.addAll(stages);
+        next.add(stage);
+        return new JsonTransformer(json, Collections.unmodifiableList(next), options);
     }
-    private JsonTransformer addMapR(Function<JsonValue, JsonValue> f) {
-        return addTransformation((JsonValue j) -> mapRecursive(j, f));
+    private JsonTransformer addMapR(Set<JsonValue.ValueType> types, Function<JsonValue, JsonValue> f) {
+        return addTransformation(Stage.recursive(types, f));
     }
-    private JsonTransformer addMapObject(BiFunction<String, JsonValue, JsonValue> f) {
-        return addTransformation((JsonValue j) -> {
-            if (isObject(j)) {
-                return map(valueToObject(j), f);
-            }
-            return j;
-        });
+    private JsonTransformer addMapObject(Set<JsonValue.ValueType> types, BiFunction<String, JsonValue, JsonValue> f) {
+        return addTransformation(Stage.mapObject(types, f));
     }
 
-    private JsonTransformer addMapArray(Function<JsonValue, JsonValue> f) {
-        return addTransformation((JsonValue j) -> {
-            if (isArray(j)) {
-                return map(valueToArray(j), f);
-            }
-            return j;
-        });
+    private JsonTransformer addMapArray(Set<JsonValue.ValueType> types, Function<JsonValue, JsonValue> f) {
+        return addTransformation(Stage.mapArray(types, f));
     }
 
     public JsonTransformer mapRecursive(FunctionFromIntegerToObject f) {
-        return this.addMapR(fromInteger(f));
+        return this.addMapR(Stage.NUMBER, fromInteger(f));
     }
     public JsonTransformer mapRecursive(FunctionFromStringToObject f) {
-        return this.addMapR(fromString(f));
+        return this.addMapR(Stage.STRING, fromString(f));
     }
     public JsonTransformer mapRecursive(FunctionFromBooleanToObject f) {
-        return this.addMapR(fromBoolean(f));
+        return this.addMapR(Stage.BOOLEAN, fromBoolean(f));
     }
     public JsonTransformer mapRecursive(FunctionFromJsonObjectToObject f) {
-        return this.addMapR(fromJsonObject(f));
+        return this.addMapR(Stage.OBJECT, fromJsonObject(f));
     }
     public JsonTransformer mapRecursive(FunctionFromJsonObjectBuilderToObject f) {
-        return this.addMapR(fromJsonObjectBuilder(f));
+        return this.addMapR(Stage.OBJECT, fromJsonObjectBuilder(f));
     }
     public JsonTransformer mapRecursive(FunctionFromJsonArrayToObject f) {
-        return this.addMapR(fromJsonArray(f));
+        return this.addMapR(Stage.ARRAY, fromJsonArray(f));
+    }
+
+    /*
+    * Unlike the Integer version, which sees every number through intValue(), these see numbers at full precision.
+    * The long version only sees integral numbers that fit in a long, other numbers are left as they are instead of being truncated.
+    * Returning the value unchanged keeps the original number.
+    * */
+    public JsonTransformer mapRecursive(FunctionFromLongToLong f) {
+        return this.addMapR(Stage.NUMBER, fromLong(f));
+    }
+    public JsonTransformer mapRecursive(FunctionFromDoubleToDouble f) {
+        return this.addMapR(Stage.NUMBER, fromDouble(f));
+    }
+    public JsonTransformer mapRecursive(FunctionFromBigDecimalToObject f) {
+        return this.addMapR(Stage.NUMBER, fromBigDecimal(f));
+    }
+
+    /*
+    * For lambdas that wait on something, like a service that resolves ids to names. Instead of calling the lambda
+    * for one value after another, every value of its type is found first and the lambda is started for up to
+    * maxConcurrency of them at once. The results are put back in document order once they are all in.
+    * Lambdas are called on the executor given to toJsonAsync, or on virtual threads where the JVM has them.
+    * Unlike mapRecursive, what a future completes with isn't walked again. The first failure fails the whole run.
+    *
+    *   new JsonTransformer(json)
+    *       .mapRecursiveAsync((String id) -> users.lookupName(id))
+    *       .toJsonAsync(executor)
+    * */
+    public JsonTransformer mapRecursiveAsync(FunctionFromStringToFuture f) {
+        return addTransformation(Stage.async(Stage.STRING, async(f, JsonTransformer::valueToString)));
+    }
+    public JsonTransformer mapRecursiveAsync(FunctionFromIntegerToFuture f) {
+        return addTransformation(Stage.async(Stage.NUMBER, async(f, JsonTransformer::valueToInteger)));
+    }
+    public JsonTransformer mapRecursiveAsync(FunctionFromBooleanToFuture f) {
+        return addTransformation(Stage.async(Stage.BOOLEAN, async(f, JsonTransformer::isTrue)));
+    }
+    public JsonTransformer mapRecursiveAsync(FunctionFromBigDecimalToFuture f) {
+        return addTransformation(Stage.async(Stage.NUMBER, async(f, JsonTransformer::valueToBigDecimal)));
+    }
+
+    // mapRecursiveAsync for the elements of the root array only, the way map with a single argument lambda is.
+    public JsonTransformer mapAsync(FunctionFromStringToFuture f) {
+        return addTransformation(Stage.asyncElements(Stage.STRING, async(f, JsonTransformer::valueToString)));
+    }
+    public JsonTransformer mapAsync(FunctionFromIntegerToFuture f) {
+        return addTransformation(Stage.asyncElements(Stage.NUMBER, async(f, JsonTransformer::valueToInteger)));
+    }
+    public JsonTransformer mapAsync(FunctionFromBooleanToFuture f) {
+        return addTransformation(Stage.asyncElements(Stage.BOOLEAN, async(f, JsonTransformer::isTrue)));
+    }
+    public JsonTransformer mapAsync(FunctionFromBigDecimalToFuture f) {
+        return addTransformation(Stage.asyncElements(Stage.NUMBER, async(f, JsonTransformer::valueToBigDecimal)));
     }
 
     //I would love to find a way to simplify these. But every time I do the types don't match.
@@ -417,129 +588,747 @@ public class JsonTransformer {
         return mapRecursiveIf(pred, f, a -> a);
     }
 
-
-    //Types won't unify if made generic because JsonObjectBuilder::add is not generic.
-    public JsonTransformer add(String key, String value) {
-        return addTransformation((JsonValue j) -> {
-            if(isObject(j)) {
-                JsonObject jO = (JsonObject) j;
-                return jsonObjectToBuilder(jO).add(key, value).build();
+    public JsonTransformer mapRecursiveIf(FunctionFromLongToBoolean pred, FunctionFromLongToLong f, FunctionFromLongToLong e) {
+        return this.mapRecursive((long l) -> pred.apply(l) ? f.apply(l) : e.apply(l));
+    }
+    public JsonTransformer mapRecursiveIf(FunctionFromDoubleToBoolean pred, FunctionFromDoubleToDouble f, FunctionFromDoubleToDouble e) {
+        return this.mapRecursive((double d) -> pred.apply(d) ? f.apply(d) : e.apply(d));
+    }
+    public JsonTransformer mapRecursiveIf(Function<BigDecimal, Boolean> pred, FunctionFromBigDecimalToObject f, FunctionFromBigDecimalToObject e) {
+        return this.mapRecursive((BigDecimal d) -> {
+            if (pred.apply(d)) {
+                return f.apply(d);
             }
-            return j;
+            return e.apply(d);
         });
     }
 
-    public JsonTransformer add(String key, Integer value) {
-        return addTransformation((JsonValue j) -> {
-            if(isObject(j)) {
-                JsonObject jO = (JsonObject) j;
-                return jsonObjectToBuilder(jO).add(key, value).build();
+    public JsonTransformer mapRecursiveIf(FunctionFromLongToBoolean pred, FunctionFromLongToLong f) {
+        return mapRecursiveIf(pred, f, a -> a);
+    }
+    public JsonTransformer mapRecursiveIf(FunctionFromDoubleToBoolean pred, FunctionFromDoubleToDouble f) {
+        return mapRecursiveIf(pred, f, a -> a);
+    }
+    public JsonTransformer mapRecursiveIf(Function<BigDecimal, Boolean> pred, FunctionFromBigDecimalToObject f) {
+        return mapRecursiveIf(pred, f, a -> a);
+    }
+
+
+    /*
+    * Keeps the elements of an array the predicate holds for, and every element of another type.
+    * Like map, filter only looks at the top level, the Bi versions at the entries of an object.
+    * */
+    public JsonTransformer filter(FunctionFromStringToBoolean pred) {
+        return this.addTransformation(Stage.filterArray(Stage.STRING, keepIf(pred, JsonTransformer::valueToString)));
+    }
+    public JsonTransformer filter(FunctionFromIntegerToBoolean pred) {
+        return this.addTransformation(Stage.filterArray(Stage.NUMBER, keepIf(pred, JsonTransformer::valueToInteger)));
+    }
+    public JsonTransformer filter(FunctionFromLongToBoolean pred) {
+        return this.addTransformation(Stage.filterArray(Stage.NUMBER, keepIfLong(pred)));
+    }
+    public JsonTransformer filter(FunctionFromDoubleToBoolean pred) {
+        return this.addTransformation(Stage.filterArray(Stage.NUMBER, keepIfDouble(pred)));
+    }
+    public JsonTransformer filter(FunctionFromBigDecimalToBoolean pred) {
+        return this.addTransformation(Stage.filterArray(Stage.NUMBER, keepIf(pred, JsonTransformer::valueToBigDecimal)));
+    }
+    public JsonTransformer filter(FunctionFromBooleanToBoolean pred) {
+        return this.addTransformation(Stage.filterArray(Stage.BOOLEAN, keepIf(pred, JsonTransformer::isTrue)));
+    }
+    public JsonTransformer filter(FunctionFromJsonObjectToBoolean pred) {
+        return this.addTransformation(Stage.filterArray(Stage.OBJECT, keepIf(pred, JsonTransformer::valueToObject)));
+    }
+    public JsonTransformer filter(FunctionFromJsonArrayToBoolean pred) {
+        return this.addTransformation(Stage.filterArray(Stage.ARRAY, keepIf(pred, JsonTransformer::valueToArray)));
+    }
+
+    public JsonTransformer filter(BiFunctionFromStringAndStringToBoolean pred) {
+        return this.addTransformation(Stage.filterObject(Stage.STRING, keepIf(pred, JsonTransformer::valueToString)));
+    }
+    public JsonTransformer filter(BiFunctionFromStringAndNumberToBoolean pred) {
+        return this.addTransformation(Stage.filterObject(Stage.NUMBER, keepIf(pred, JsonTransformer::valueToInteger)));
+    }
+    public JsonTransformer filter(BiFunctionFromStringAndLongToBoolean pred) {
+        return this.addTransformation(Stage.filterObject(Stage.NUMBER, keepIfLong(pred)));
+    }
+    public JsonTransformer filter(BiFunctionFromStringAndDoubleToBoolean pred) {
+        return this.addTransformation(Stage.filterObject(Stage.NUMBER, keepIfDouble(pred)));
+    }
+    public JsonTransformer filter(BiFunctionFromStringAndBigDecimalToBoolean pred) {
+        return this.addTransformation(Stage.filterObject(Stage.NUMBER, keepIf(pred, JsonTransformer::valueToBigDecimal)));
+    }
+    public JsonTransformer filter(BiFunctionFromStringAndBooleanToBoolean pred) {
+        return this.addTransformation(Stage.filterObject(Stage.BOOLEAN, keepIf(pred, JsonTransformer::isTrue)));
+    }
+    public JsonTransformer filter(BiFunctionFromStringAndJsonObjectToBoolean pred) {
+        return this.addTransformation(Stage.filterObject(Stage.OBJECT, keepIf(pred, JsonTransformer::valueToObject)));
+    }
+    public JsonTransformer filter(BiFunctionFromStringAndJsonArrayToBoolean pred) {
+        return this.addTransformation(Stage.filterObject(Stage.ARRAY, keepIf(pred, JsonTransformer::valueToArray)));
+    }
+
+    /*
+    * Drops every value, at any depth, of the predicate's type that it doesn't hold for. Values of other types are kept.
+    * Predicates run top down: an object or array that is dropped is never walked into or copied,
+    * so filtering away big subtrees costs next to nothing. The root itself is always kept.
+    *
+    *   .filterRecursive((JsonObject o) -> !o.containsKey("debug"))
+    * */
+    public JsonTransformer filterRecursive(FunctionFromStringToBoolean pred) {
+        return this.addTransformation(Stage.filterRecursive(Stage.STRING, keepIf(pred, JsonTransformer::valueToString)));
+    }
+    public JsonTransformer filterRecursive(FunctionFromIntegerToBoolean pred) {
+        return this.addTransformation(Stage.filterRecursive(Stage.NUMBER, keepIf(pred, JsonTransformer::valueToInteger)));
+    }
+    public JsonTransformer filterRecursive(FunctionFromLongToBoolean pred) {
+        return this.addTransformation(Stage.filterRecursive(Stage.NUMBER, keepIfLong(pred)));
+    }
+    public JsonTransformer filterRecursive(FunctionFromDoubleToBoolean pred) {
+        return this.addTransformation(Stage.filterRecursive(Stage.NUMBER, keepIfDouble(pred)));
+    }
+    public JsonTransformer filterRecursive(FunctionFromBigDecimalToBoolean pred) {
+        return this.addTransformation(Stage.filterRecursive(Stage.NUMBER, keepIf(pred, JsonTransformer::valueToBigDecimal)));
+    }
+    public JsonTransformer filterRecursive(FunctionFromBooleanToBoolean pred) {
+        return this.addTransformation(Stage.filterRecursive(Stage.BOOLEAN, keepIf(pred, JsonTransformer::isTrue)));
+    }
+    public JsonTransformer filterRecursive(FunctionFromJsonObjectToBoolean pred) {
+        return this.addTransformation(Stage.filterRecursive(Stage.OBJECT, keepIf(pred, JsonTransformer::valueToObject)));
+    }
+    public JsonTransformer filterRecursive(FunctionFromJsonArrayToBoolean pred) {
+        return this.addTransformation(Stage.filterRecursive(Stage.ARRAY, keepIf(pred, JsonTransformer::valueToArray)));
+    }
+
+    // Removes key from the top level object. When streaming, its value is skipped without being read into memory.
+    public JsonTransformer remove(String key) {
+        return this.addTransformation(Stage.remove(key));
+    }
+
+    // Removes key from every object in the document. The values removed are never walked into.
+    public JsonTransformer removeRecursive(String key) {
+        return this.addMapR(Stage.OBJECT, (JsonValue j) -> without(j, key));
+    }
+
+    /*
+    * Caches what the stage added last hands back for each value, up to maxSize values, least recently used first out.
+    * For expensive pure lambdas, lookups or normalization, on documents where the same values come up over and over,
+    * every repeat then costs a hash lookup. The cache is part of the stage, every run on every thread and every
+    * transformer built on from this one shares it. Hits and misses show up in the StageMetrics of a listener.
+    * Only stages on strings, numbers and booleans can be memoized, and only lambdas without side effects should be.
+    *
+    *   new JsonTransformer(json).mapRecursive((String s) -> dictionary.lookup(s)).memoize(10000)
+    * */
+    public JsonTransformer memoize(int maxSize) {
+        if (stages.isEmpty()) {
+            throw new IllegalArgumentException("There is no stage to memoize yet");
+        }
+        List<Stage> next = new ArrayList<>(stages);
+        next.set(next.size() - 1, next.get(next.size() - 1).memoize(maxSize));
+        return new JsonTransformer(json, Collections.unmodifiableList(next), options);
+    }
+
+
+    /*
+    * Folds the values of the predicate's type at the top level, the elements of an array or the values of an object,
+    * into a single result. The JsonValue version sees every value.
+    * Only reads the document: nothing is copied or rebuilt, so this is a cheap way to count, sum or validate.
+    *
+    *   int strings = new JsonTransformer(json).reduce(0, (Integer count, String s) -> count + 1);
+    * */
+    public <A> A reduce(A identity, BiFunctionFromAccumulatorAndStringToAccumulator<A> f) {
+        return this.fold(false, identity, Stage.STRING, JsonTransformer::valueToString, f);
+    }
+    public <A> A reduce(A identity, BiFunctionFromAccumulatorAndIntegerToAccumulator<A> f) {
+        return this.fold(false, identity, Stage.NUMBER, JsonTransformer::valueToInteger, f);
+    }
+    public <A> A reduce(A identity, BiFunctionFromAccumulatorAndBigDecimalToAccumulator<A> f) {
+        return this.fold(false, identity, Stage.NUMBER, JsonTransformer::valueToBigDecimal, f);
+    }
+    public <A> A reduce(A identity, BiFunctionFromAccumulatorAndBooleanToAccumulator<A> f) {
+        return this.fold(false, identity, Stage.BOOLEAN, JsonTransformer::isTrue, f);
+    }
+    public <A> A reduce(A identity, BiFunctionFromAccumulatorAndJsonObjectToAccumulator<A> f) {
+        return this.fold(false, identity, Stage.OBJECT, JsonTransformer::valueToObject, f);
+    }
+    public <A> A reduce(A identity, BiFunctionFromAccumulatorAndJsonArrayToAccumulator<A> f) {
+        return this.fold(false, identity, Stage.ARRAY, JsonTransformer::valueToArray, f);
+    }
+    public <A> A reduce(A identity, BiFunctionFromAccumulatorAndJsonValueToAccumulator<A> f) {
+        return this.fold(false, identity, Stage.ANY, (JsonValue j) -> j, f);
+    }
+    // Like the long version of map, only integral numbers that fit in a long are seen. Nothing gets boxed.
+    public long reduce(long identity, BiFunctionFromLongAndLongToLong f) {
+        return this.foldLong(false, identity, f);
+    }
+    public double reduce(double identity, BiFunctionFromDoubleAndDoubleToDouble f) {
+        return this.foldDouble(false, identity, f);
+    }
+
+    /*
+    * Like reduce, but folds over every value in the document, the root included, in document order.
+    * Containers come before what is in them.
+    *
+    *   long total = new JsonTransformer(json).reduceRecursive(0L, (long sum, long n) -> sum + n);
+    *   Set<String> keys = new JsonTransformer(json).reduceRecursive(new HashSet<String>(), (Set<String> acc, JsonObject o) -> {
+    *       acc.addAll(o.keySet());
+    *       return acc;
+    *   });
+    * */
+    public <A> A reduceRecursive(A identity, BiFunctionFromAccumulatorAndStringToAccumulator<A> f) {
+        return this.fold(true, identity, Stage.STRING, JsonTransformer::valueToString, f);
+    }
+    public <A> A reduceRecursive(A identity, BiFunctionFromAccumulatorAndIntegerToAccumulator<A> f) {
+        return this.fold(true, identity, Stage.NUMBER, JsonTransformer::valueToInteger, f);
+    }
+    public <A> A reduceRecursive(A identity, BiFunctionFromAccumulatorAndBigDecimalToAccumulator<A> f) {
+        return this.fold(true, identity, Stage.NUMBER, JsonTransformer::valueToBigDecimal, f);
+    }
+    public <A> A reduceRecursive(A identity, BiFunctionFromAccumulatorAndBooleanToAccumulator<A> f) {
+        return this.fold(true, identity, Stage.BOOLEAN, JsonTransformer::isTrue, f);
+    }
+    public <A> A reduceRecursive(A identity, BiFunctionFromAccumulatorAndJsonObjectToAccumulator<A> f) {
+        return this.fold(true, identity, Stage.OBJECT, JsonTransformer::valueToObject, f);
+    }
+    public <A> A reduceRecursive(A identity, BiFunctionFromAccumulatorAndJsonArrayToAccumulator<A> f) {
+        return this.fold(true, identity, Stage.ARRAY, JsonTransformer::valueToArray, f);
+    }
+    public <A> A reduceRecursive(A identity, BiFunctionFromAccumulatorAndJsonValueToAccumulator<A> f) {
+        return this.fold(true, identity, Stage.ANY, (JsonValue j) -> j, f);
+    }
+    public long reduceRecursive(long identity, BiFunctionFromLongAndLongToLong f) {
+        return this.foldLong(true, identity, f);
+    }
+    public double reduceRecursive(double identity, BiFunctionFromDoubleAndDoubleToDouble f) {
+        return this.foldDouble(true, identity, f);
+    }
+
+    // Folds over the result of the transformation. Without any stages that is the json we were given, as is.
+    private void scan(boolean recursive, Consumer<JsonValue> visitor) {
+        JsonValue result = toJson();
+        if (recursive) {
+            Scan.recursive(result, options.maxDepth, visitor);
+        } else {
+            Scan.children(result, visitor);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private <A, T> A fold(boolean recursive, A identity, Set<JsonValue.ValueType> types,
+                          Function<JsonValue, T> converter, BiFunction<A, T, A> f) {
+        Object[] accumulator = {identity};
+        this.scan(recursive, (JsonValue j) -> {
+            if (types.contains(j.getValueType())) {
+                accumulator[0] = f.apply((A) accumulator[0], converter.apply(j));
             }
-            return j;
         });
+        return (A) accumulator[0];
     }
 
-    public JsonTransformer add(String key, Boolean value) {
-        return addTransformation((JsonValue j) -> {
-            if(isObject(j)) {
-                JsonObject jO = (JsonObject) j;
-                return jsonObjectToBuilder(jO).add(key, value).build();
+    private long foldLong(boolean recursive, long identity, BiFunctionFromLongAndLongToLong f) {
+        long[] accumulator = {identity};
+        this.scan(recursive, (JsonValue j) -> {
+            if (isLongNumber(j)) {
+                accumulator[0] = f.apply(accumulator[0], ((JsonNumber) j).longValueExact());
             }
-            return j;
         });
+        return accumulator[0];
     }
 
-    public JsonTransformer add(String key, JsonObjectBuilder value) {
-        return addTransformation((JsonValue j) -> {
-            if(isObject(j)) {
-                JsonObject jO = (JsonObject) j;
-                return jsonObjectToBuilder(jO).add(key, value).build();
+    private double foldDouble(boolean recursive, double identity, BiFunctionFromDoubleAndDoubleToDouble f) {
+        double[] accumulator = {identity};
+        this.scan(recursive, (JsonValue j) -> {
+            if (isNumber(j)) {
+                accumulator[0] = f.apply(accumulator[0], ((JsonNumber) j).doubleValue());
             }
-            return j;
         });
+        return accumulator[0];
     }
 
-    public JsonTransformer add(String key, JsonArray value) {
-        return addTransformation((JsonValue j) -> {
-            if(isObject(j)) {
-                JsonObject jO = (JsonObject) j;
-                return jsonObjectToBuilder(jO).add(key, value).build();
+
+    /*
+    * Applies f only to what the path matches, see JsonPath for the syntax.
+    * Only the branches the path runs down are visited, so the cost depends on how much matches rather than on the size of the document.
+    *
+    *   .mapAt("$.orders[*].items[*].price", (BigDecimal price) -> price.multiply(rate))
+    * */
+    public JsonTransformer mapAt(String path, FunctionFromStringToObject f) {
+        return this.addMapAt(path, Stage.STRING, fromString(f));
+    }
+    public JsonTransformer mapAt(String path, FunctionFromIntegerToObject f) {
+        return this.addMapAt(path, Stage.NUMBER, fromInteger(f));
+    }
+    public JsonTransformer mapAt(String path, FunctionFromLongToLong f) {
+        return this.addMapAt(path, Stage.NUMBER, fromLong(f));
+    }
+    public JsonTransformer mapAt(String path, FunctionFromDoubleToDouble f) {
+        return this.addMapAt(path, Stage.NUMBER, fromDouble(f));
+    }
+    public JsonTransformer mapAt(String path, FunctionFromBigDecimalToObject f) {
+        return this.addMapAt(path, Stage.NUMBER, fromBigDecimal(f));
+    }
+    public JsonTransformer mapAt(String path, FunctionFromBooleanToObject f) {
+        return this.addMapAt(path, Stage.BOOLEAN, fromBoolean(f));
+    }
+    public JsonTransformer mapAt(String path, FunctionFromJsonObjectToObject f) {
+        return this.addMapAt(path, Stage.OBJECT, fromJsonObject(f));
+    }
+    public JsonTransformer mapAt(String path, FunctionFromJsonObjectBuilderToObject f) {
+        return this.addMapAt(path, Stage.OBJECT, fromJsonObjectBuilder(f));
+    }
+    public JsonTransformer mapAt(String path, FunctionFromJsonArrayToObject f) {
+        return this.addMapAt(path, Stage.ARRAY, fromJsonArray(f));
+    }
+
+    // Adds key to every object the path matches, replacing the value if the key is already there.
+    public JsonTransformer addAt(String path, String key, String value) {
+        return this.addAtPath(path, key, createJsonString(value));
+    }
+    public JsonTransformer addAt(String path, String key, Integer value) {
+        return this.addAtPath(path, key, createJsonNumber(value));
+    }
+    public JsonTransformer addAt(String path, String key, Long value) {
+        return this.addAtPath(path, key, createJsonNumber(value));
+    }
+    public JsonTransformer addAt(String path, String key, Double value) {
+        return this.addAtPath(path, key, createJsonNumber(value));
+    }
+    public JsonTransformer addAt(String path, String key, BigDecimal value) {
+        return this.addAtPath(path, key, createJsonNumber(value));
+    }
+    public JsonTransformer addAt(String path, String key, Boolean value) {
+        return this.addAtPath(path, key, createJsonBoolean(value));
+    }
+    public JsonTransformer addAt(String path, String key, JsonObjectBuilder value) {
+        return this.addAtPath(path, key, value.build());
+    }
+    public JsonTransformer addAt(String path, String key, JsonArray value) {
+        return this.addAtPath(path, key, value);
+    }
+
+    private JsonTransformer addMapAt(String path, Set<JsonValue.ValueType> types, Function<JsonValue, JsonValue> f) {
+        return addTransformation(Stage.path(JsonPath.parse(path), types, f));
+    }
+
+    private JsonTransformer addAtPath(String path, String key, JsonValue value) {
+        return this.addMapAt(path, Stage.OBJECT, (JsonValue j) -> {
+            if (j instanceof PersistentJsonObject) {
+                return ((PersistentJsonObject) j).with(key, value);
+            }
+            if (isObject(j)) {
+                JsonObjectBuilder builder = jsonObjectToBuilder((JsonObject) j);
+                return builder.add(key, value).build();
             }
             return j;
         });
     }
 
 
+    public JsonTransformer add(String key, String value) {
+        return addTransformation(Stage.add(key, createJsonString(value)));
+    }
+
+    public JsonTransformer add(String key, Integer value) {
+        return addTransformation(Stage.add(key, createJsonNumber(value)));
+    }
+
+    public JsonTransformer add(String key, Long value) {
+        return addTransformation(Stage.add(key, createJsonNumber(value)));
+    }
+
+    public JsonTransformer add(String key, Double value) {
+        return addTransformation(Stage.add(key, createJsonNumber(value)));
+    }
+
+    public JsonTransformer add(String key, BigDecimal value) {
+        return addTransformation(Stage.add(key, createJsonNumber(value)));
+    }
+
+    public JsonTransformer add(String key, Boolean value) {
+        return addTransformation(Stage.add(key, createJsonBoolean(value)));
+    }
+
+    public JsonTransformer add(String key, JsonObjectBuilder value) {
+        return addTransformation(Stage.add(key, value.build()));
+    }
+
+    public JsonTransformer add(String key, JsonArray value) {
+        return addTransformation(Stage.add(key, value));
+    }
+
+
 
     public JsonTransformer print() {
-        System.out.println(this.toJson());
+        writeTo(System.out, false);
+        System.out.println();
         return this;
     }
 
     public JsonTransformer pprint() {
-        StringWriter sw = new StringWriter();
+        writeTo(System.out, true);
+        System.out.println();
+        return this;
+    }
 
-        JsonReader jr = Json.createReader(new StringReader(this.toJson().toString()));
-        JsonObject jobj = jr.readObject();
+    public void writeTo(Writer out) {
+        writeTo(out, false);
+    }
 
-        Map<String, Object> properties = new HashMap<>(1);
-        properties.put(JsonGenerator.PRETTY_PRINTING, true);
-        JsonWriterFactory writerFactory = Json.createWriterFactory(properties);
-        JsonWriter jsonWriter = writerFactory.createWriter(sw);
-        jsonWriter.writeObject(jobj);
-        jsonWriter.close();
+    /*
+    * Writes the result straight to out, there's no string of the whole document in between.
+    * Objects and arrays go through a JsonGenerator, anything else is written as its json text.
+    * out is flushed but not closed. Failures to write come back as JsonException, like they do from a JsonGenerator.
+    * */
+    public void writeTo(Writer out, boolean pretty) {
+        JsonValue result = toJson();
+        if (result instanceof JsonStructure) {
+            write((pretty ? PRETTY_GENERATORS : GENERATORS).createGenerator(new KeepOpenWriter(out)), (JsonStructure) result);
+            return;
+        }
+        try {
+            out.write(result.toString());
+            out.flush();
+        } catch (IOException e) {
+            throw new JsonException("Could not write " + result.getValueType(), e);
+        }
+    }
 
-        String prettyPrinted = sw.toString();
-        System.out.println(prettyPrinted);
-        return this;
+    // Written as UTF-8.
+    public void writeTo(OutputStream out, boolean pretty) {
+        JsonValue result = toJson();
+        if (result instanceof JsonStructure) {
+            write((pretty ? PRETTY_GENERATORS : GENERATORS).createGenerator(new KeepOpenStream(out), StandardCharsets.UTF_8), (JsonStructure) result);
+            return;
+        }
+        try {
+            out.write(result.toString().getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        } catch (IOException e) {
+            throw new JsonException("Could not write " + result.getValueType(), e);
+        }
     }
-    public JsonValue toJson() {
-        JsonValue result = this.json;
-        for (Function<JsonValue, JsonValue> fn : fns) {
-            result = fn.apply(result);
+
+    // A generator can only write a JsonValue inside of an array, so the top level container is opened by hand.
+    // Closing the generator hands its buffer back to the provider, it is only ever given out over a stream that stays open.
+    private static void write(JsonGenerator generator, JsonStructure json) {
+        try (JsonGenerator open = generator) {
+            if (json.getValueType() == JsonValue.ValueType.OBJECT) {
+                open.writeStartObject();
+                for (Map.Entry<String, JsonValue> entry : ((JsonObject) json).entrySet()) {
+                    open.write(entry.getKey(), entry.getValue());
+                }
+            } else {
+                open.writeStartArray();
+                for (JsonValue element : (JsonArray) json) {
+                    open.write(element);
+                }
+            }
+            open.writeEnd();
+        }
+    }
+
+    // What writeTo hands a generator, closing it only flushes, out belongs to the caller.
+    private static final class KeepOpenWriter extends FilterWriter {
+        KeepOpenWriter(Writer out) {
+            super(out);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
+    private static final class KeepOpenStream extends FilterOutputStream {
+        KeepOpenStream(OutputStream out) {
+            super(out);
+        }
+
+        // FilterOutputStream would write a byte at a time.
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            out.write(bytes, offset, length);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
+    /*
+    * Runs recursive maps in parallel on the common ForkJoinPool.
+    * Big containers near the top of the document have their children transformed concurrently and put back together
+    * in their original order, so the result is the same as running sequentially. Lambdas have to be safe to call from
+    * several threads at once, and will not see the nodes in document order.
+    * */
+    public JsonTransformer parallel() {
+        return parallel(ForkJoinPool.commonPool());
+    }
+
+    public JsonTransformer parallel(ForkJoinPool pool) {
+        return parallel(pool, Options.DEFAULT_PARALLEL_THRESHOLD, Options.DEFAULT_PARALLEL_DEPTH);
+    }
+
+    // Only containers with at least minSize children and grandchildren, at most maxDepth levels down, are split.
+    public JsonTransformer parallel(ForkJoinPool pool, int minSize, int maxDepth) {
+        return new JsonTransformer(json, stages, options.parallel(pool, minSize, maxDepth));
+    }
+
+    /*
+    * Every object and array the transformation rebuilds becomes a PersistentJsonObject or PersistentJsonArray,
+    * updated a key or element at a time instead of copied into a builder. Feed the result (or PersistentJsonObject.of(json))
+    * back in and adding or changing a few keys of a huge object costs O(log n) rather than a copy of the whole object.
+    * */
+    public JsonTransformer persistent() {
+        return new JsonTransformer(json, stages, options.persistent());
+    }
+
+    /*
+    * toJson and compiled pipelines hand back views instead of finished documents. A value of a view is transformed
+    * the first time it is read (get, getJsonObject, iterating, toString) and kept from then on,
+    * so a handler that only reads a small part of a large document only pays for that part.
+    * What a view reads back is exactly what the eager result would have been.
+    * Lambdas run when values are read rather than all at once, and errors like JsonDepthException come up then too.
+    * Runs with a listener are still eager, otherwise the metrics would only count what had been read so far.
+    * Lazy results aren't persistent and aren't transformed in parallel, streaming is unaffected.
+    * */
+    public JsonTransformer lazy() {
+        return new JsonTransformer(json, stages, options.lazy());
+    }
+
+    /*
+    * Documents are expected to look like shape, see Shape.infer and Shape.fromSchema. Subtrees the shape says have nothing
+    * in them the recursive stages take are handed back as they are instead of walked, once a scan of their types has made sure.
+    * Documents that don't have the shape come out exactly the same, they are only walked more.
+    * Only eager runs of a whole document use it. Lazy results, streaming, incremental runs and the children
+    * of containers split up to run in parallel are walked as they would be without.
+    * */
+    public JsonTransformer shape(Shape shape) {
+        return new JsonTransformer(json, stages, options.shape(shape));
+    }
+
+    /*
+    * Keys and short string values that go into rebuilt objects and arrays come from a pool shared by every run,
+    * so a huge array of records with the same keys and the same few values keeps one copy of each instead of one per record.
+    * The pool is bounded and safe to share between threads. Containers that don't change aren't touched, they already are the originals.
+    * */
+    public JsonTransformer intern() {
+        return intern(Interner.DEFAULT_MAX_ENTRIES, Interner.DEFAULT_MAX_LENGTH);
+    }
+
+    // Pools at most maxEntries keys and maxEntries strings, of at most maxLength characters each.
+    public JsonTransformer intern(int maxEntries, int maxLength) {
+        return new JsonTransformer(json, stages, options.intern(maxEntries, maxLength));
+    }
+
+    /*
+    * Hands listener the PipelineMetrics of every run: wall time, nodes visited and containers rebuilt per pass,
+    * time spent in the lambda, nodes visited, nodes replaced and lambda invocations per stage, and totals.
+    * An async lambda is timed from the call until its result completes, and only counts the values of its types as visited.
+    * Timing every lambda call has a cost, so only attach a listener when you want the numbers.
+    * Without one nothing is counted at all.
+    * */
+    public JsonTransformer listener(PipelineListener listener) {
+        return new JsonTransformer(json, stages, options.listener(listener));
+    }
+
+    // At most maxConcurrency async lambdas are waiting on their result at any one time, 64 unless set.
+    public JsonTransformer maxConcurrency(int maxConcurrency) {
+        return new JsonTransformer(json, stages, options.maxConcurrency(maxConcurrency));
+    }
+
+    // Fails with a JsonDepthException on documents nested more than maxDepth objects and arrays deep.
+    public JsonTransformer maxDepth(int maxDepth) {
+        return new JsonTransformer(json, stages, options.maxDepth(maxDepth));
+    }
+
+    /*
+    * Applies the transformation to a document read from parser and writes the result to generator,
+    * without building the whole document in memory. The json this transformer was created with is ignored.
+    * Only subtrees that an object or array lambda has to see whole get buffered.
+    * A JsonGenerator can only write an object or array as the whole document, so if a stage turns the root into
+    * anything else this fails with a JsonException. Use toJson or writeTo for those.
+    * */
+    public void stream(JsonParser parser, JsonGenerator generator) {
+        compile().stream(parser, generator);
+    }
+
+    /*
+    * Compiles the transformation into a JsonPipeline that can be applied to any json, from any thread.
+    * The json this transformer was created with is not part of the pipeline.
+    * */
+    public JsonPipeline compile() {
+        // Racy, but a JsonPipeline is immutable so at worst two threads both compile one.
+        JsonPipeline compiled = pipeline;
+        if (compiled == null) {
+            compiled = new JsonPipeline(stages, options);
+            pipeline = compiled;
         }
-        return result;
+        return compiled;
     }
 
+    public JsonValue toJson() {
+        return compile().apply(this.json);
+    }
+
+    // The result on a JsonTape. Subtrees the transformation left alone are copied from the tape they came from as they are.
+    public JsonTape toTape() {
+        return JsonTape.of(toJson());
+    }
+
+    // See IncrementalTransform, its output is what toJson would hand back.
+    public IncrementalTransform incremental() {
+        return compile().incremental(this.json);
+    }
+
+    // See JsonPipeline.applyAsync. toJson works with async lambdas as well, it waits for them.
+    public CompletableFuture<JsonValue> toJsonAsync(Executor executor) {
+        return compile().applyAsync(this.json, executor);
+    }
+
+    public CompletableFuture<JsonValue> toJsonAsync() {
+        return compile().applyAsync(this.json);
+    }
+
+    // A stage only calls its lambda with values of its types, see Stage.handles. So there is nothing to test here,
+    // the value is converted and handed over.
     private static <T> Function<JsonValue, JsonValue> convertFunctionType(Function<T, Object> f,
-                                                                          Function<JsonValue, Boolean> test,
                                                                           Function<JsonValue, T> converter) {
         return (JsonValue j) -> {
-            if (test.apply(j)) {
-                return coerceTypes(f.apply(converter.apply(j)));
-            }
-            return j;
+            T value = converter.apply(j);
+            return coerceUnlessSame(j, value, f.apply(value));
         };
     }
     private static <T> BiFunction<String, JsonValue, JsonValue> convertFunctionType(BiFunction<String, T, Object> f,
-                                                                          Function<JsonValue, Boolean> test,
                                                                           Function<JsonValue, T> converter) {
         return (String key, JsonValue j) -> {
-            if (test.apply(j)) {
-                return coerceTypes(f.apply(key, converter.apply(j)));
-            }
-            return j;
+            T value = converter.apply(j);
+            return coerceUnlessSame(j, value, f.apply(key, value));
         };
     }
 
+    // Strings and BigDecimals survive the trip out of and back into json unchanged, so if a lambda hands back the
+    // very value it was given we keep the original node. That lets untouched subtrees be shared.
+    // Integers only do when the number was an exact int to begin with, 1.5 and 1.0 still come back as 1.
+    private static JsonValue coerceUnlessSame(JsonValue original, Object value, Object result) {
+        if (result == value && (value instanceof String || value instanceof BigDecimal)) {
+            return original;
+        }
+        if (value instanceof Integer && value.equals(result) && JsonNumbers.isInt((JsonNumber) original)) {
+            return original;
+        }
+        return coerceTypes(result);
+    }
+
+
+    // Async stages only get values of their type too.
+    private static <T> Function<JsonValue, CompletionStage<JsonValue>> async(Function<T, CompletionStage<?>> f,
+                                                                            Function<JsonValue, T> converter) {
+        return (JsonValue j) -> {
+            T value = converter.apply(j);
+            return f.apply(value).thenApply(result -> coerceUnlessSame(j, value, result));
+        };
+    }
 
     private static Function<JsonValue, JsonValue> fromString(FunctionFromStringToObject f) {
-        return convertFunctionType(f, JsonTransformer::isString, JsonTransformer::valueToString);
+        return convertFunctionType(f, JsonTransformer::valueToString);
     }
     private static Function<JsonValue, JsonValue> fromBoolean(FunctionFromBooleanToObject f) {
-        return convertFunctionType(f, JsonTransformer::isBool, JsonTransformer::isTrue);
+        return convertFunctionType(f, JsonTransformer::isTrue);
     }
     private static Function<JsonValue, JsonValue> fromJsonObject(FunctionFromJsonObjectToObject f) {
-        return convertFunctionType(f, JsonTransformer::isObject, JsonTransformer::valueToObject);
+        return convertFunctionType(f, JsonTransformer::valueToObject);
     }
     private static Function<JsonValue, JsonValue> fromJsonObjectBuilder(FunctionFromJsonObjectBuilderToObject f) {
-        return convertFunctionType(f, JsonTransformer::isObject, JsonTransformer::valueToObjectBuilder);
+        return convertFunctionType(f, JsonTransformer::valueToObjectBuilder);
     }
     private static Function<JsonValue, JsonValue> fromInteger(FunctionFromIntegerToObject f) {
-        return convertFunctionType(f, JsonTransformer::isNumber, JsonTransformer::valueToInteger);
+        return convertFunctionType(f, JsonTransformer::valueToInteger);
     }
     private  static Function<JsonValue, JsonValue> fromJsonArray(FunctionFromJsonArrayToObject f) {
-        return convertFunctionType(f, JsonTransformer::isArray, JsonTransformer::valueToArray);
+        return convertFunctionType(f, JsonTransformer::valueToArray);
+    }
+    private static Function<JsonValue, JsonValue> fromBigDecimal(FunctionFromBigDecimalToObject f) {
+        return convertFunctionType(f, JsonTransformer::valueToBigDecimal);
+    }
+
+    // Filters hand back null for the values they drop.
+    private static <T> Function<JsonValue, JsonValue> keepIf(Function<T, Boolean> pred,
+                                                             Function<JsonValue, T> converter) {
+        return (JsonValue j) -> pred.apply(converter.apply(j)) ? j : null;
+    }
+    private static <T> BiFunction<String, JsonValue, JsonValue> keepIf(BiFunction<String, T, Boolean> pred,
+                                                                       Function<JsonValue, T> converter) {
+        return (String key, JsonValue j) -> pred.apply(key, converter.apply(j)) ? j : null;
+    }
+    // Numbers that don't fit in a long are never seen by a long predicate, so they are always kept.
+    private static Function<JsonValue, JsonValue> keepIfLong(FunctionFromLongToBoolean pred) {
+        BiFunction<String, JsonValue, JsonValue> keep = keepIfLong((String key, long value) -> pred.apply(value));
+        return (JsonValue j) -> keep.apply(null, j);
+    }
+    private static BiFunction<String, JsonValue, JsonValue> keepIfLong(BiFunctionFromStringAndLongToBoolean pred) {
+        return (String key, JsonValue j) -> !JsonNumbers.isLong((JsonNumber) j) || pred.apply(key, ((JsonNumber) j).longValueExact()) ? j : null;
+    }
+    private static Function<JsonValue, JsonValue> keepIfDouble(FunctionFromDoubleToBoolean pred) {
+        BiFunction<String, JsonValue, JsonValue> keep = keepIfDouble((String key, double value) -> pred.apply(value));
+        return (JsonValue j) -> keep.apply(null, j);
+    }
+    private static BiFunction<String, JsonValue, JsonValue> keepIfDouble(BiFunctionFromStringAndDoubleToBoolean pred) {
+        return (String key, JsonValue j) -> pred.apply(key, ((JsonNumber) j).doubleValue()) ? j : null;
+    }
+
+    private static JsonValue without(JsonValue j, String key) {
+        if (!isObject(j) || !((JsonObject) j).containsKey(key)) {
+            return j;
+        }
+        if (j instanceof PersistentJsonObject) {
+            return ((PersistentJsonObject) j).without(key);
+        }
+        JsonObjectBuilder builder = BUILDERS.createObjectBuilder();
+        for (Map.Entry<String, JsonValue> entry : ((JsonObject) j).entrySet()) {
+            if (!entry.getKey().equals(key)) {
+                builder.add(entry.getKey(), entry.getValue());
+            }
+        }
+        return builder.build();
+    }
+
+    // The primitive versions can't go through convertFunctionType without boxing, so they get their own.
+    // A number the lambda hands back unchanged stays the original node. Numbers that don't fit a long are left alone.
+    private static Function<JsonValue, JsonValue> fromLong(FunctionFromLongToLong f) {
+        return (JsonValue j) -> {
+            if (!JsonNumbers.isLong((JsonNumber) j)) {
+                return j;
+            }
+            long value = ((JsonNumber) j).longValueExact();
+            long result = f.apply(value);
+            return result == value ? j : createJsonNumber(result);
+        };
+    }
+    private static BiFunction<String, JsonValue, JsonValue> fromLong(BiFunctionFromStringAndLongToLong f) {
+        return (String key, JsonValue j) -> {
+            if (!JsonNumbers.isLong((JsonNumber) j)) {
+                return j;
+            }
+            long value = ((JsonNumber) j).longValueExact();
+            long result = f.apply(key, value);
+            return result == value ? j : createJsonNumber(result);
+        };
+    }
+    private static Function<JsonValue, JsonValue> fromDouble(FunctionFromDoubleToDouble f) {
+        return (JsonValue j) -> {
+            double value = ((JsonNumber) j).doubleValue();
+            double result = f.apply(value);
+            return Double.compare(result, value) == 0 ? j : createJsonNumber(result);
+        };
+    }
+    private static BiFunction<String, JsonValue, JsonValue> fromDouble(BiFunctionFromStringAndDoubleToDouble f) {
+        return (String key, JsonValue j) -> {
+            double value = ((JsonNumber) j).doubleValue();
+            double result = f.apply(key, value);
+            return Double.compare(result, value) == 0 ? j : createJsonNumber(result);
+        };
     }
 
 
@@ -547,6 +1336,10 @@ public class JsonTransformer {
         return ((JsonNumber) json).intValue();
     }
 
+    private static BigDecimal valueToBigDecimal(JsonValue json) {
+        return ((JsonNumber) json).bigDecimalValue();
+    }
+
     private static String valueToString(JsonValue json) {
         return ((JsonString) json).getString();
     }
@@ -567,93 +1360,93 @@ public class JsonTransformer {
         return json.getValueType() == JsonValue.ValueType.OBJECT;
     }
 
-    private static Boolean isArray(JsonValue json) {
-        return json.getValueType() == JsonValue.ValueType.ARRAY;
-    }
-
-    private static Boolean isString(JsonValue json) {
-        return json.getValueType() == JsonValue.ValueType.STRING;
+    private static boolean isLongNumber(JsonValue json) {
+        return json.getValueType() == JsonValue.ValueType.NUMBER && JsonNumbers.isLong((JsonNumber) json);
     }
 
     private static Boolean isNumber(JsonValue json) {
         return json.getValueType() == JsonValue.ValueType.NUMBER;
     }
 
-    private static Boolean isNull(JsonValue json) {
-        return json.getValueType() == JsonValue.ValueType.NULL;
-    }
-
     private static Boolean isTrue(JsonValue json) {
         return json.getValueType() == JsonValue.ValueType.TRUE;
     }
 
-    private static Boolean isFalse(JsonValue json) {
-        return json.getValueType() == JsonValue.ValueType.FALSE;
-    }
-
-    private static Boolean isBool(JsonValue json) {
-        return isTrue(json) || isFalse(json);
-    }
-
-    private static Boolean isPrimitive(JsonValue json) {
-        return isBool(json) || isNull(json) || isString(json) || isNumber(json);
-    }
+    /*
+    * There is some magic here. Because Java lacks union types, we have to coerce the return type of lambdas.
+    * Which conversion applies only depends on the class of the returned value, so we work it out once per class
+    * and cache it. Checks happen in the same order they always have, the first type that matches wins.
+    * */
+    private static final ClassValue<Function<Object, JsonValue>> COERCIONS = new ClassValue<Function<Object, JsonValue>>() {
+        @Override
+        protected Function<Object, JsonValue> computeValue(Class<?> type) {
+            if (JsonObjectBuilder.class.isAssignableFrom(type)) {
+                return o -> ((JsonObjectBuilder) o).build();
+            }
+            if (JsonArrayBuilder.class.isAssignableFrom(type)) {
+                return o -> ((JsonArrayBuilder) o).build();
+            }
+            if (JsonValue.class.isAssignableFrom(type)) {
+                return o -> (JsonValue) o;
+            }
+            if (type == String.class) {
+                return o -> createJsonString((String) o);
+            }
+            if (type == Integer.class) {
+                return o -> createJsonNumber((Integer) o);
+            }
+            if (type == Long.class) {
+                return o -> createJsonNumber((Long) o);
+            }
+            if (type == Double.class) {
+                return o -> createJsonNumber((Double) o);
+            }
+            if (type == BigDecimal.class) {
+                return o -> createJsonNumber((BigDecimal) o);
+            }
+            if (type == Boolean.class) {
+                return o -> createJsonBoolean((Boolean) o);
+            }
+            if (JsonTransformer.class.isAssignableFrom(type)) {
+                return o -> ((JsonTransformer) o).toJson();
+            }
+            return o -> {
+                throw new RuntimeException("There is some magic here. Because Java lacks union types, I have to coerce types." +
+                        "You need to return one of the following types for this to work. String, Boolean, Integer, Long, Double, BigDecimal, JsonTransformer, JsonValue, JsonArrayBuilder, or JsonObjectBuilder");
+            };
+        }
+    };
 
     public static JsonValue coerceTypes(Object o) throws RuntimeException {
         if (o == null) {
             return JsonValue.NULL;
         }
-        try {
-            return ((JsonObjectBuilder) o).build();
-        }
-        catch(ClassCastException ignored) {}
-        try {
-            return ((JsonArrayBuilder) o).build();
-        }
-        catch(ClassCastException ignored) {}
-        try {
-            return (JsonValue) o;
-        }
-        catch(ClassCastException ignored) {}
-        try {
-            return createJsonString((String) o);
-        }
-        catch(ClassCastException ignored) {}
-        try {
-            return createJsonNumber((Integer) o);
-        }
-        catch (ClassCastException ignored) {}
-        try {
-            return createJsonBoolean((Boolean) o);
-        }
-        catch (ClassCastException ignored) {}
-        try {
-            return ((JsonTransformer) o).toJson();
-        }
-        catch (ClassCastException ignored) {}
-        throw new RuntimeException("There is some magic here. Because Java lacks union types, I have to coerce types." +
-                "You need to return one of the following types for this to work. String, Boolean, Integer, JsonTransformer, JsonValue, JsonArrayBuilder, or JsonObjectBuilder");
+        return COERCIONS.get(o.getClass()).apply(o);
     }
 
 
 
     public static JsonObjectBuilder jsonObjectToBuilder(JsonObject jo) {
-        JsonObjectBuilder builder = Json.createObjectBuilder();
+        JsonObjectBuilder builder = BUILDERS.createObjectBuilder();
         jo.forEach(builder::add);
         return builder;
     }
 
 
-    private static JsonNumber createJsonNumber(int n) {
-        return Json.createObjectBuilder()
-                .add("n", n)
-                .build().getJsonNumber("n");
+    static JsonNumber createJsonNumber(long n) {
+        return JsonNumbers.of(n);
+    }
+
+    static JsonNumber createJsonNumber(double n) {
+        return JsonNumbers.of(n);
+    }
+
+    static JsonNumber createJsonNumber(BigDecimal n) {
+        return JsonNumbers.of(n);
     }
 
-    private static JsonString createJsonString(String s) {
-        return Json.createObjectBuilder()
-                .add("s", s)
-                .build().getJsonString("s");
+    static JsonString createJsonString(String s) {
+        return JsonStrings.of(s);
     }
 
     private static JsonValue createJsonBoolean(Boolean s) {
@@ -0,0 +1,76 @@
+package io.github.jimmyhmiller;
+
+import javax.json.JsonArray;
+import javax.json.JsonValue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/*
+* The JsonArray a lazy pass hands back, see FusedPass.applyLazily.
+* An element is transformed the first time it is read and kept from then on.
+*
+* Without a filter in the pass get only transforms the element it is asked for and size transforms nothing.
+* A dropped element shifts every index after it, so with a filter the first read transforms the whole array
+* (though not what is below its elements, those are views of their own).
+* Reads are synchronized, a view can be handed to other threads like any other JsonArray.
+* */
+final class LazyJsonArray extends AbstractJsonArray implements RandomAccess {
+
+    private final FusedPass pass;
+    private final JsonArray json;
+    private final int i;
+    private final List<Stage> stages;
+    private final int depth;
+    // By original index, only when nothing can be dropped.
+    private final JsonValue[] values;
+    // The elements that are left, only when something can be dropped and only once it has been read.
+    private List<JsonValue> kept;
+
+    LazyJsonArray(FusedPass pass, JsonArray json, int i, List<Stage> stages, int depth) {
+        this.pass = pass;
+        this.json = json;
+        this.i = i;
+        this.stages = stages;
+        this.depth = depth;
+        this.values = pass.drops() ? null : new JsonValue[json.size()];
+    }
+
+    @Override
+    public JsonValue get(int index) {
+        return values == null ? kept().get(index) : value(index);
+    }
+
+    @Override
+    public int size() {
+        return values == null ? kept().size() : values.length;
+    }
+
+    private synchronized JsonValue value(int index) {
+        JsonValue value = values[index];
+        if (value == null) {
+            value = transform(index);
+            values[index] = value;
+        }
+        return value;
+    }
+
+    private synchronized List<JsonValue> kept() {
+        if (kept == null) {
+            List<JsonValue> left = new ArrayList<>(json.size());
+            for (int k = 0; k < json.size(); k++) {
+                JsonValue value = transform(k);
+                if (value != null) {
+                    left.add(value);
+                }
+            }
+            kept = left;
+        }
+        return kept;
+    }
+
+    private JsonValue transform(int index) {
+        JsonValue transformed = pass.applyLazily(i, json.get(index), depth + 1);
+        return transformed == null ? null : FusedPass.applyElementStages(stages, transformed);
+    }
+}
@@ -0,0 +1,192 @@
+package io.github.jimmyhmiller;
+
+import javax.json.JsonObject;
+import javax.json.JsonValue;
+import java.util.AbstractSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/*
+* The JsonObject a lazy pass hands back, see FusedPass.applyLazily.
+* A value is transformed the first time it is read and kept from then on, so every read after that is the same value.
+* Keys come in the order the eager result would have them in, dropped keys are left out and added keys come last.
+*
+* Without a filter in the pass get only transforms the value it is asked for and size transforms nothing.
+* A filter only tells us whether a key is still there by transforming its value, so then size
+* and iteration transform every value they pass over.
+* Reads are synchronized, a view can be handed to other threads like any other JsonObject.
+* */
+final class LazyJsonObject extends AbstractJsonObject {
+
+    // Stands in for a value a filter dropped.
+    private static final Object DROPPED = new Object();
+
+    private final FusedPass pass;
+    private final JsonObject json;
+    private final int i;
+    private final List<Stage> stages;
+    private final int depth;
+    private final boolean drops;
+    // Key to its transformed value or DROPPED, for every key read so far.
+    private final Map<String, Object> values = new HashMap<>();
+    private Map<String, JsonValue> additions;
+    private int size = -1;
+
+    LazyJsonObject(FusedPass pass, JsonObject json, int i, List<Stage> stages, int depth) {
+        this.pass = pass;
+        this.json = json;
+        this.i = i;
+        this.stages = stages;
+        this.depth = depth;
+        this.drops = pass.drops();
+    }
+
+    @Override
+    public JsonValue get(Object key) {
+        if (json.containsKey(key)) {
+            return value((String) key);
+        }
+        return additions().get(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public synchronized int size() {
+        if (size < 0) {
+            if (drops) {
+                int count = 0;
+                for (String key : json.keySet()) {
+                    if (value(key) != null) {
+                        count++;
+                    }
+                }
+                size = count + additions().size();
+            } else {
+                size = json.size() + additions().size();
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public Set<Map.Entry<String, JsonValue>> entrySet() {
+        return new AbstractSet<Map.Entry<String, JsonValue>>() {
+            @Override
+            public Iterator<Map.Entry<String, JsonValue>> iterator() {
+                return new Entries();
+            }
+
+            @Override
+            public int size() {
+                return LazyJsonObject.this.size();
+            }
+        };
+    }
+
+    private synchronized JsonValue value(String key) {
+        Object value = values.get(key);
+        if (value == null) {
+            JsonValue transformed = pass.applyLazily(i, json.get(key), depth + 1);
+            JsonValue entry = transformed == null ? null : FusedPass.applyEntryStages(stages, 0, key, transformed);
+            values.put(key, entry == null ? DROPPED : entry);
+            return entry;
+        }
+        return value == DROPPED ? null : (JsonValue) value;
+    }
+
+    private synchronized Map<String, JsonValue> additions() {
+        if (additions == null) {
+            Map<String, JsonValue> added = new LinkedHashMap<>();
+            FusedPass.forEachAddition(stages, json.keySet(), added::put);
+            additions = added;
+        }
+        return additions;
+    }
+
+    // The keys of the original object that survive the pass, then the added ones.
+    private final class Entries implements Iterator<Map.Entry<String, JsonValue>> {
+        private final Iterator<String> keys = json.keySet().iterator();
+        private Iterator<String> added;
+        private String next = advance();
+
+        private String advance() {
+            while (keys.hasNext()) {
+                String key = keys.next();
+                if (!drops || value(key) != null) {
+                    return key;
+                }
+            }
+            if (added == null) {
+                added = additions().keySet().iterator();
+            }
+            return added.hasNext() ? added.next() : null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<String, JsonValue> next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            Entry entry = new Entry(next);
+            next = advance();
+            return entry;
+        }
+    }
+
+    // Reading the key alone, keySet for one, leaves the value untransformed.
+    private final class Entry implements Map.Entry<String, JsonValue> {
+        private final String key;
+
+        Entry(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public String getKey() {
+            return key;
+        }
+
+        @Override
+        public JsonValue getValue() {
+            return get(key);
+        }
+
+        @Override
+        public JsonValue setValue(JsonValue value) {
+            throw new UnsupportedOperationException("A JsonObject is immutable");
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Map.Entry)) {
+                return false;
+            }
+            Map.Entry<?, ?> entry = (Map.Entry<?, ?>) other;
+            return key.equals(entry.getKey()) && getValue().equals(entry.getValue());
+        }
+
+        @Override
+        public int hashCode() {
+            return key.hashCode() ^ getValue().hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return key + "=" + getValue();
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package io.github.jimmyhmiller;
+
+import javax.json.JsonValue;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/*
+* A bounded cache in front of the lambda of a stage, see JsonTransformer.memoize.
+* Primitive values are equal when their contents are, so a lambda that sees the same few thousand strings or numbers
+* millions of times only runs once for each of them, every other time is a hash lookup.
+*
+* The cache is split into segments by hash, each an access ordered LinkedHashMap that evicts its least recently used
+* entry once full. Only a segment is locked for a lookup, so parallel transformers and pipelines shared between threads
+* mostly don't wait on each other. Eviction is least recently used per segment rather than across the whole cache.
+*
+* Only values of the types the stage looks at are cached, the stage never hands the lambda anything else.
+* A lambda that returns the very value it was given keeps doing so on a hit, so untouched subtrees stay shared.
+* Strings on a JsonTape are copied off before they are cached, the cache outlives the document.
+* */
+final class Memo {
+
+    // Stand ins for a lambda that handed back its own argument and one that dropped it.
+    private static final Object SAME = new Object();
+    private static final Object DROPPED = new Object();
+    private static final int MAX_SEGMENTS = 16;
+
+    private final Set<JsonValue.ValueType> types;
+    // The lambdas of the stage, one of them is null.
+    final Function<JsonValue, JsonValue> fn;
+    final BiFunction<String, JsonValue, JsonValue> entryFn;
+    private final Segment[] segments;
+
+    Memo(Set<JsonValue.ValueType> types, Function<JsonValue, JsonValue> fn, BiFunction<String, JsonValue, JsonValue> entryFn,
+         int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("A memoized stage has to cache at least one value, was " + maxSize);
+        }
+        this.types = types;
+        this.fn = fn;
+        this.entryFn = entryFn;
+        int count = Math.min(MAX_SEGMENTS, maxSize);
+        this.segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            // The first maxSize % count segments take one more, so they add up to exactly maxSize.
+            segments[i] = new Segment(maxSize / count + (i < maxSize % count ? 1 : 0));
+        }
+    }
+
+    // hits and misses are only there when the run is recorded for a listener.
+    JsonValue apply(JsonValue value, LongAdder hits, LongAdder misses) {
+        if (!types.contains(value.getValueType())) {
+            return value;
+        }
+        Segment segment = segment(value.hashCode());
+        Object cached = segment.get(value);
+        if (cached == null) {
+            count(misses);
+            JsonValue result = fn.apply(value);
+            segment.put(JsonTape.detach(value), remember(value, result));
+            return result;
+        }
+        count(hits);
+        return recall(value, cached);
+    }
+
+    JsonValue apply(String key, JsonValue value, LongAdder hits, LongAdder misses) {
+        if (!types.contains(value.getValueType())) {
+            return value;
+        }
+        Entry entry = new Entry(key, value);
+        Segment segment = segment(entry.hashCode());
+        Object cached = segment.get(entry);
+        if (cached == null) {
+            count(misses);
+            JsonValue result = entryFn.apply(key, value);
+            segment.put(new Entry(key, JsonTape.detach(value)), remember(value, result));
+            return result;
+        }
+        count(hits);
+        return recall(value, cached);
+    }
+
+    private Segment segment(int hash) {
+        // Spread the high bits, the hashes of short strings differ mostly in the low ones.
+        int h = hash ^ (hash >>> 16);
+        return segments[(h & 0x7fffffff) % segments.length];
+    }
+
+    private static Object remember(JsonValue value, JsonValue result) {
+        if (result == null) {
+            return DROPPED;
+        }
+        return result == value ? SAME : JsonTape.detach(result);
+    }
+
+    private static JsonValue recall(JsonValue value, Object cached) {
+        if (cached == DROPPED) {
+            return null;
+        }
+        return cached == SAME ? value : (JsonValue) cached;
+    }
+
+    private static void count(LongAdder counter) {
+        if (counter != null) {
+            counter.increment();
+        }
+    }
+
+    private static final class Segment extends LinkedHashMap<Object, Object> {
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+
+        Segment(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        public synchronized Object get(Object key) {
+            return super.get(key);
+        }
+
+        @Override
+        public synchronized Object put(Object key, Object value) {
+            return super.put(key, value);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Object, Object> eldest) {
+            return size() > capacity;
+        }
+    }
+
+    // What an entry stage is cached by, its lambda sees the key as well as the value.
+    private static final class Entry {
+        private final String key;
+        private final JsonValue value;
+
+        Entry(String key, JsonValue value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Entry)) {
+                return false;
+            }
+            Entry entry = (Entry) other;
+            return key.equals(entry.key) && value.equals(entry.value);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * key.hashCode() + value.hashCode();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package io.github.jimmyhmiller;
+
+import java.util.concurrent.ForkJoinPool;
+
+/*
+* How a pipeline runs, as opposed to what it does. Immutable, every setter hands back a copy.
+* */
+final class Options {
+
+    // Containers whose children and grandchildren add up to fewer nodes than this aren't worth splitting.
+    static final int DEFAULT_PARALLEL_THRESHOLD = 2048;
+    static final int DEFAULT_PARALLEL_DEPTH = 4;
+    // Async lambdas mostly wait on something else, so a lot more of them are in flight than there are cores.
+    static final int DEFAULT_MAX_CONCURRENCY = 64;
+
+    static final Options DEFAULT = new Options(null, 0, 0, Integer.MAX_VALUE, false, false, null, DEFAULT_MAX_CONCURRENCY, null, null);
+
+    final ForkJoinPool pool;
+    final int parallelThreshold;
+    final int parallelDepth;
+    final int maxDepth;
+    // Rebuilt containers are PersistentJsonObjects and PersistentJsonArrays.
+    final boolean persistent;
+    // Results are views that transform each child the first time it is read.
+    final boolean lazy;
+    // Keys and short strings of rebuilt containers come from its pools when set.
+    final Interner interner;
+    // How many async lambdas may be waiting on their result at once.
+    final int maxConcurrency;
+    // Told about every run when set. Nothing is counted without one.
+    final PipelineListener listener;
+    // What documents are expected to look like, subtrees no stage could change are skipped when set.
+    final Shape shape;
+
+    private Options(ForkJoinPool pool, int parallelThreshold, int parallelDepth, int maxDepth, boolean persistent, boolean lazy,
+                    Interner interner, int maxConcurrency, PipelineListener listener, Shape shape) {
+        this.pool = pool;
+        this.parallelThreshold = parallelThreshold;
+        this.parallelDepth = parallelDepth;
+        this.maxDepth = maxDepth;
+        this.persistent = persistent;
+        this.lazy = lazy;
+        this.interner = interner;
+        this.maxConcurrency = maxConcurrency;
+        this.listener = listener;
+        this.shape = shape;
+    }
+
+    Options parallel(ForkJoinPool pool, int threshold, int depth) {
+        if (pool == null) {
+            throw new IllegalArgumentException("A ForkJoinPool is required to run in parallel");
+        }
+        return new Options(pool, threshold, depth, maxDepth, persistent, lazy, interner, maxConcurrency, listener, shape);
+    }
+
+    Options maxDepth(int maxDepth) {
+        if (maxDepth < 1) {
+            throw new IllegalArgumentException("maxDepth has to be at least 1, was " + maxDepth);
+        }
+        return new Options(pool, parallelThreshold, parallelDepth, maxDepth, persistent, lazy, interner, maxConcurrency, listener, shape);
+    }
+
+    Options persistent() {
+        return new Options(pool, parallelThreshold, parallelDepth, maxDepth, true, lazy, interner, maxConcurrency, listener, shape);
+    }
+
+    Options lazy() {
+        return new Options(pool, parallelThreshold, parallelDepth, maxDepth, persistent, true, interner, maxConcurrency, listener, shape);
+    }
+
+    Options intern(int maxEntries, int maxLength) {
+        return new Options(pool, parallelThreshold, parallelDepth, maxDepth, persistent, lazy, new Interner(maxEntries, maxLength), maxConcurrency, listener, shape);
+    }
+
+    Options maxConcurrency(int maxConcurrency) {
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("maxConcurrency has to be at least 1, was " + maxConcurrency);
+        }
+        return new Options(pool, parallelThreshold, parallelDepth, maxDepth, persistent, lazy, interner, maxConcurrency, listener, shape);
+    }
+
+    Options listener(PipelineListener listener) {
+        if (listener == null) {
+            throw new IllegalArgumentException("A listener is required, leave it off to not record anything");
+        }
+        return new Options(pool, parallelThreshold, parallelDepth, maxDepth, persistent, lazy, interner, maxConcurrency, listener, shape);
+    }
+
+    Options shape(Shape shape) {
+        if (shape == null) {
+            throw new IllegalArgumentException("A shape is required, leave it off to walk everything");
+        }
+        return new Options(pool, parallelThreshold, parallelDepth, maxDepth, persistent, lazy, interner, maxConcurrency, listener, shape);
+    }
+
+    boolean isParallel() {
+        return pool != null;
+    }
+}
@@ -0,0 +1,52 @@
+package io.github.jimmyhmiller;
+
+import java.util.List;
+
+/*
+* What one traversal of the document did during one run. Adjacent stages are fused into a single pass, see FusedPass.
+* */
+public final class PassMetrics {
+
+    private final int index;
+    private final List<StageMetrics> stages;
+    private final long nanos;
+    private final long nodesVisited;
+    private final long containersRebuilt;
+
+    PassMetrics(int index, List<StageMetrics> stages, long nanos, long nodesVisited, long containersRebuilt) {
+        this.index = index;
+        this.stages = stages;
+        this.nanos = nanos;
+        this.nodesVisited = nodesVisited;
+        this.containersRebuilt = containersRebuilt;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    // The stages applied in this pass, in order.
+    public List<StageMetrics> getStages() {
+        return stages;
+    }
+
+    // Wall time of the whole pass. Passes run interleaved when streaming, so there it is always 0.
+    public long getNanos() {
+        return nanos;
+    }
+
+    // Nodes the pass walked to. Path passes only walk the branches their path runs through.
+    public long getNodesVisited() {
+        return nodesVisited;
+    }
+
+    // Objects and arrays that had to be built anew because something in them changed.
+    public long getContainersRebuilt() {
+        return containersRebuilt;
+    }
+
+    @Override
+    public String toString() {
+        return "pass " + index + ": " + nanos / 1000 + "us, " + nodesVisited + " visited, " + containersRebuilt + " rebuilt";
+    }
+}
@@ -0,0 +1,79 @@
+package io.github.jimmyhmiller;
+
+import javax.json.JsonArray;
+import javax.json.JsonValue;
+import java.util.RandomAccess;
+
+/*
+* An immutable JsonArray where replacing an element, appending and removing the last element are O(log n)
+* and share everything else with the array they came from. See PersistentVector.
+* Removing from anywhere else has to shift what comes after it, that is O(n) like it would be for any array.
+*
+* Equality, hashCode and toString match any other JsonArray with the same elements.
+* Transformers produce these for every array they rebuild once persistent() is set.
+* */
+public final class PersistentJsonArray extends AbstractJsonArray implements RandomAccess {
+
+    private static final PersistentJsonArray EMPTY = new PersistentJsonArray(PersistentVector.EMPTY);
+
+    private final PersistentVector elements;
+
+    private PersistentJsonArray(PersistentVector elements) {
+        this.elements = elements;
+    }
+
+    public static PersistentJsonArray empty() {
+        return EMPTY;
+    }
+
+    // O(1) for arrays that already are persistent, a single O(n) copy for anything else.
+    public static PersistentJsonArray of(JsonArray json) {
+        if (json instanceof PersistentJsonArray) {
+            return (PersistentJsonArray) json;
+        }
+        return json.isEmpty() ? EMPTY : new PersistentJsonArray(PersistentVector.of(json.toArray(), json.size()));
+    }
+
+    public PersistentJsonArray plus(JsonValue value) {
+        if (value == null) {
+            throw new NullPointerException("Elements of a json array can't be null");
+        }
+        return new PersistentJsonArray(elements.append(value));
+    }
+
+    public PersistentJsonArray with(int index, JsonValue value) {
+        if (value == null) {
+            throw new NullPointerException("Elements of a json array can't be null");
+        }
+        if (elements.get(index) == value) {
+            return this;
+        }
+        return new PersistentJsonArray(elements.set(index, value));
+    }
+
+    public PersistentJsonArray without(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + size());
+        }
+        if (index == size() - 1) {
+            return size() == 1 ? EMPTY : new PersistentJsonArray(elements.pop());
+        }
+        Object[] remaining = new Object[size() - 1];
+        for (int i = 0, j = 0; i < size(); i++) {
+            if (i != index) {
+                remaining[j++] = elements.get(i);
+            }
+        }
+        return new PersistentJsonArray(PersistentVector.of(remaining, remaining.length));
+    }
+
+    @Override
+    public JsonValue get(int index) {
+        return (JsonValue) elements.get(index);
+    }
+
+    @Override
+    public int size() {
+        return elements.size();
+    }
+}
@@ -0,0 +1,204 @@
+package io.github.jimmyhmiller;
+
+import javax.json.JsonObject;
+import javax.json.JsonValue;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/*
+* An immutable JsonObject where adding, replacing and removing a key is O(log n) and shares everything else
+* with the object it came from, instead of copying every entry into a builder.
+*
+*   PersistentJsonObject config = PersistentJsonObject.of(json);
+*   PersistentJsonObject updated = config.with("version", JsonTransformer.coerceTypes(2)).without("legacy");
+*
+* Keys are found through a hash array mapped trie (Hamt), their order is kept in a PersistentVector.
+* Like the objects javax.json builds, keys keep the order they were first added in and replacing a value keeps its place.
+* Equality, hashCode and toString match any other JsonObject with the same entries.
+*
+* Transformers produce these for every object they rebuild once persistent() is set.
+* */
+public final class PersistentJsonObject extends AbstractJsonObject {
+
+    private static final PersistentJsonObject EMPTY = new PersistentJsonObject(null, PersistentVector.EMPTY, 0);
+
+    // Key to Entry.
+    private final Hamt.Node index;
+    // Entries in key order. Removing a key leaves a null behind, they get compacted away once they pile up.
+    private final PersistentVector order;
+    private final int size;
+
+    private PersistentJsonObject(Hamt.Node index, PersistentVector order, int size) {
+        this.index = index;
+        this.order = order;
+        this.size = size;
+    }
+
+    public static PersistentJsonObject empty() {
+        return EMPTY;
+    }
+
+    // O(1) for objects that already are persistent, a single O(n log n) copy for anything else.
+    public static PersistentJsonObject of(JsonObject json) {
+        if (json instanceof PersistentJsonObject) {
+            return (PersistentJsonObject) json;
+        }
+        return copy(json.entrySet(), json.size());
+    }
+
+    private static PersistentJsonObject copy(Iterable<Map.Entry<String, JsonValue>> entries, int size) {
+        if (size == 0) {
+            return EMPTY;
+        }
+        Object[] ordered = new Object[size];
+        Hamt.Node index = null;
+        int position = 0;
+        for (Map.Entry<String, JsonValue> entry : entries) {
+            Entry copied = new Entry(entry.getKey(), entry.getValue(), position);
+            ordered[position++] = copied;
+            index = Hamt.put(index, copied.key, copied);
+        }
+        return new PersistentJsonObject(index, PersistentVector.of(ordered, position), position);
+    }
+
+    // The same object with key set to value. A key that is already there keeps its place.
+    public PersistentJsonObject with(String key, JsonValue value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("Keys and values of a json object can't be null");
+        }
+        Entry existing = (Entry) Hamt.get(index, key);
+        if (existing != null) {
+            if (existing.value == value) {
+                return this;
+            }
+            Entry replaced = new Entry(key, value, existing.position);
+            return new PersistentJsonObject(Hamt.put(index, key, replaced), order.set(existing.position, replaced), size);
+        }
+        Entry added = new Entry(key, value, order.size());
+        return new PersistentJsonObject(Hamt.put(index, key, added), order.append(added), size + 1);
+    }
+
+    public PersistentJsonObject without(String key) {
+        Entry existing = key == null ? null : (Entry) Hamt.get(index, key);
+        if (existing == null) {
+            return this;
+        }
+        if (size == 1) {
+            return EMPTY;
+        }
+        PersistentVector remaining = existing.position == order.size() - 1 ? order.pop() : order.set(existing.position, null);
+        PersistentJsonObject removed = new PersistentJsonObject(Hamt.remove(index, key), remaining, size - 1);
+        // Once the holes outnumber the entries, iterating pays for more than it should, so we start over without them.
+        if (remaining.size() > 2 * removed.size + 32) {
+            return copy(removed.entrySet(), removed.size);
+        }
+        return removed;
+    }
+
+    @Override
+    public JsonValue get(Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+        Entry entry = (Entry) Hamt.get(index, (String) key);
+        return entry == null ? null : entry.value;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return key instanceof String && Hamt.get(index, (String) key) != null;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Set<Map.Entry<String, JsonValue>> entrySet() {
+        return new AbstractSet<Map.Entry<String, JsonValue>>() {
+            @Override
+            public Iterator<Map.Entry<String, JsonValue>> iterator() {
+                return new Iterator<Map.Entry<String, JsonValue>>() {
+                    private int position = skipHoles(0);
+
+                    @Override
+                    public boolean hasNext() {
+                        return position < order.size();
+                    }
+
+                    @Override
+                    public Map.Entry<String, JsonValue> next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        Entry entry = (Entry) order.get(position);
+                        position = skipHoles(position + 1);
+                        return entry;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    private int skipHoles(int position) {
+        while (position < order.size() && order.get(position) == null) {
+            position++;
+        }
+        return position;
+    }
+
+    private static final class Entry implements Map.Entry<String, JsonValue> {
+        private final String key;
+        private final JsonValue value;
+        private final int position;
+
+        Entry(String key, JsonValue value, int position) {
+            this.key = key;
+            this.value = value;
+            this.position = position;
+        }
+
+        @Override
+        public String getKey() {
+            return key;
+        }
+
+        @Override
+        public JsonValue getValue() {
+            return value;
+        }
+
+        @Override
+        public JsonValue setValue(JsonValue value) {
+            throw new UnsupportedOperationException("PersistentJsonObject is immutable, use with instead");
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Map.Entry)) {
+                return false;
+            }
+            Map.Entry<?, ?> entry = (Map.Entry<?, ?>) other;
+            return key.equals(entry.getKey()) && value.equals(entry.getValue());
+        }
+
+        @Override
+        public int hashCode() {
+            return key.hashCode() ^ value.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return key + "=" + value;
+        }
+    }
+}
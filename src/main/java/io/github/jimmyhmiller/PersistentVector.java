@@ -0,0 +1,191 @@
+package io.github.jimmyhmiller;
+
+import java.util.Arrays;
+
+/*
+* An immutable vector with cheap updates, the storage behind PersistentJsonArray and the key order of PersistentJsonObject.
+*
+* Elements live in a tree of 32 wide arrays, the last (up to) 32 elements in a separate tail.
+* get and set are O(log32 n), appending is amortised O(1), and every update copies only the path down to the
+* element it changes, sharing the rest with the vector it came from. This is the same shape Clojure's vectors have.
+* */
+final class PersistentVector {
+
+    private static final int BITS = 5;
+    private static final int WIDTH = 1 << BITS;
+    private static final int MASK = WIDTH - 1;
+    private static final Object[] EMPTY_NODE = new Object[WIDTH];
+
+    static final PersistentVector EMPTY = new PersistentVector(0, BITS, EMPTY_NODE, new Object[0]);
+
+    private final int size;
+    private final int shift;
+    private final Object[] root;
+    private final Object[] tail;
+
+    private PersistentVector(int size, int shift, Object[] root, Object[] tail) {
+        this.size = size;
+        this.shift = shift;
+        this.root = root;
+        this.tail = tail;
+    }
+
+    // Builds the tree bottom up in one go, rather than appending one element at a time.
+    static PersistentVector of(Object[] items, int count) {
+        if (count == 0) {
+            return EMPTY;
+        }
+        int tailOffset = tailOffset(count);
+        Object[] tail = Arrays.copyOfRange(items, tailOffset, count);
+        if (tailOffset == 0) {
+            return new PersistentVector(count, BITS, EMPTY_NODE, tail);
+        }
+        Object[] nodes = new Object[tailOffset / WIDTH];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = Arrays.copyOfRange(items, i * WIDTH, (i + 1) * WIDTH);
+        }
+        int shift = BITS;
+        while (nodes.length > WIDTH) {
+            Object[] parents = new Object[(nodes.length + MASK) / WIDTH];
+            for (int i = 0; i < parents.length; i++) {
+                parents[i] = Arrays.copyOf(Arrays.copyOfRange(nodes, i * WIDTH, Math.min(nodes.length, (i + 1) * WIDTH)), WIDTH);
+            }
+            nodes = parents;
+            shift += BITS;
+        }
+        return new PersistentVector(count, shift, Arrays.copyOf(nodes, WIDTH), tail);
+    }
+
+    int size() {
+        return size;
+    }
+
+    Object get(int i) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException("Index " + i + " out of bounds for length " + size);
+        }
+        return leafFor(i)[i & MASK];
+    }
+
+    PersistentVector set(int i, Object value) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException("Index " + i + " out of bounds for length " + size);
+        }
+        if (i >= tailOffset(size)) {
+            Object[] newTail = tail.clone();
+            newTail[i & MASK] = value;
+            return new PersistentVector(size, shift, root, newTail);
+        }
+        return new PersistentVector(size, shift, set(shift, root, i, value), tail);
+    }
+
+    PersistentVector append(Object value) {
+        if (size - tailOffset(size) < WIDTH) {
+            Object[] newTail = Arrays.copyOf(tail, tail.length + 1);
+            newTail[tail.length] = value;
+            return new PersistentVector(size + 1, shift, root, newTail);
+        }
+        // The tail is full, it moves into the tree and a new one starts.
+        Object[] newRoot;
+        int newShift = shift;
+        if ((size >>> BITS) > (1 << shift)) {
+            newRoot = new Object[WIDTH];
+            newRoot[0] = root;
+            newRoot[1] = newPath(shift, tail);
+            newShift += BITS;
+        } else {
+            newRoot = pushTail(shift, root, tail);
+        }
+        return new PersistentVector(size + 1, newShift, newRoot, new Object[]{value});
+    }
+
+    PersistentVector pop() {
+        if (size == 0) {
+            throw new IllegalStateException("Can't pop an empty vector");
+        }
+        if (size == 1) {
+            return EMPTY;
+        }
+        if (size - tailOffset(size) > 1) {
+            return new PersistentVector(size - 1, shift, root, Arrays.copyOf(tail, tail.length - 1));
+        }
+        Object[] newTail = leafFor(size - 2);
+        Object[] newRoot = popTail(shift, root);
+        int newShift = shift;
+        if (newRoot == null) {
+            newRoot = EMPTY_NODE;
+        }
+        if (shift > BITS && newRoot[1] == null) {
+            newRoot = (Object[]) newRoot[0];
+            newShift -= BITS;
+        }
+        return new PersistentVector(size - 1, newShift, newRoot, newTail);
+    }
+
+    // The array holding element i, either a leaf of the tree or the tail.
+    Object[] leafFor(int i) {
+        if (i >= tailOffset(size)) {
+            return tail;
+        }
+        Object[] node = root;
+        for (int level = shift; level > 0; level -= BITS) {
+            node = (Object[]) node[(i >>> level) & MASK];
+        }
+        return node;
+    }
+
+    private static int tailOffset(int size) {
+        return size < WIDTH ? 0 : ((size - 1) >>> BITS) << BITS;
+    }
+
+    private static Object[] set(int level, Object[] node, int i, Object value) {
+        Object[] copy = node.clone();
+        if (level == 0) {
+            copy[i & MASK] = value;
+        } else {
+            int child = (i >>> level) & MASK;
+            copy[child] = set(level - BITS, (Object[]) node[child], i, value);
+        }
+        return copy;
+    }
+
+    private Object[] pushTail(int level, Object[] parent, Object[] tailNode) {
+        int child = ((size - 1) >>> level) & MASK;
+        Object[] copy = parent.clone();
+        if (level == BITS) {
+            copy[child] = tailNode;
+        } else {
+            Object[] existing = (Object[]) parent[child];
+            copy[child] = existing != null ? pushTail(level - BITS, existing, tailNode) : newPath(level - BITS, tailNode);
+        }
+        return copy;
+    }
+
+    private static Object[] newPath(int level, Object[] node) {
+        if (level == 0) {
+            return node;
+        }
+        Object[] path = new Object[WIDTH];
+        path[0] = newPath(level - BITS, node);
+        return path;
+    }
+
+    private Object[] popTail(int level, Object[] node) {
+        int child = ((size - 2) >>> level) & MASK;
+        if (level > BITS) {
+            Object[] newChild = popTail(level - BITS, (Object[]) node[child]);
+            if (newChild == null && child == 0) {
+                return null;
+            }
+            Object[] copy = node.clone();
+            copy[child] = newChild;
+            return copy;
+        }
+        if (child == 0) {
+            return null;
+        }
+        Object[] copy = node.clone();
+        copy[child] = null;
+        return copy;
+    }
+}
@@ -0,0 +1,17 @@
+package io.github.jimmyhmiller;
+
+/*
+* Told what a transformation did every time it runs, see JsonTransformer.listener.
+*
+*   new JsonTransformer(json)
+*       .mapRecursive((String s) -> s.trim())
+*       .listener(metrics -> registry.record(metrics.toMap()))
+*       .toJson();
+*
+* Called on the thread that ran the transformation, once it is done. A pipeline shared between threads
+* calls its listener from all of them, so the listener has to be safe to call concurrently.
+* */
+@FunctionalInterface
+public interface PipelineListener {
+    void completed(PipelineMetrics metrics);
+}
@@ -0,0 +1,120 @@
+package io.github.jimmyhmiller;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+* What one run of a transformation did, per pass, per stage and in total. Handed to a PipelineListener.
+*
+* toMap flattens everything into named counters for metrics systems that only take numbers:
+*
+*   nanos, nodesVisited, nodesReplaced, containersRebuilt, lambdaInvocations
+*   pass.0.nanos, pass.0.nodesVisited, pass.0.containersRebuilt, ...
+*   stage.0.nanos, stage.0.nodesVisited, stage.0.nodesReplaced, stage.0.lambdaInvocations,
+*   stage.0.cacheHits, stage.0.cacheMisses, ...
+* */
+public final class PipelineMetrics {
+
+    private final long nanos;
+    private final List<PassMetrics> passes;
+
+    PipelineMetrics(long nanos, List<PassMetrics> passes) {
+        this.nanos = nanos;
+        this.passes = Collections.unmodifiableList(passes);
+    }
+
+    // Wall time of the whole run.
+    public long getNanos() {
+        return nanos;
+    }
+
+    public List<PassMetrics> getPasses() {
+        return passes;
+    }
+
+    // Every stage of every pass, in the order they were added to the transformer.
+    public List<StageMetrics> getStages() {
+        List<StageMetrics> stages = new ArrayList<>();
+        for (PassMetrics pass : passes) {
+            stages.addAll(pass.getStages());
+        }
+        return stages;
+    }
+
+    public long getNodesVisited() {
+        long total = 0;
+        for (PassMetrics pass : passes) {
+            total += pass.getNodesVisited();
+        }
+        return total;
+    }
+
+    public long getNodesReplaced() {
+        long total = 0;
+        for (StageMetrics stage : getStages()) {
+            total += stage.getNodesReplaced();
+        }
+        return total;
+    }
+
+    public long getContainersRebuilt() {
+        long total = 0;
+        for (PassMetrics pass : passes) {
+            total += pass.getContainersRebuilt();
+        }
+        return total;
+    }
+
+    public long getLambdaInvocations() {
+        long total = 0;
+        for (StageMetrics stage : getStages()) {
+            total += stage.getLambdaInvocations();
+        }
+        return total;
+    }
+
+    public Map<String, Long> toMap() {
+        Map<String, Long> map = new LinkedHashMap<>();
+        map.put("nanos", nanos);
+        map.put("nodesVisited", getNodesVisited());
+        map.put("nodesReplaced", getNodesReplaced());
+        map.put("containersRebuilt", getContainersRebuilt());
+        map.put("lambdaInvocations", getLambdaInvocations());
+        for (PassMetrics pass : passes) {
+            String prefix = "pass." + pass.getIndex() + ".";
+            map.put(prefix + "nanos", pass.getNanos());
+            map.put(prefix + "nodesVisited", pass.getNodesVisited());
+            map.put(prefix + "containersRebuilt", pass.getContainersRebuilt());
+        }
+        for (StageMetrics stage : getStages()) {
+            String prefix = "stage." + stage.getIndex() + ".";
+            map.put(prefix + "nanos", stage.getNanos());
+            map.put(prefix + "nodesVisited", stage.getNodesVisited());
+            map.put(prefix + "nodesReplaced", stage.getNodesReplaced());
+            map.put(prefix + "lambdaInvocations", stage.getLambdaInvocations());
+            map.put(prefix + "cacheHits", stage.getCacheHits());
+            map.put(prefix + "cacheMisses", stage.getCacheMisses());
+        }
+        return map;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder()
+                .append(nanos / 1000).append("us, ")
+                .append(getNodesVisited()).append(" visited, ")
+                .append(getNodesReplaced()).append(" replaced, ")
+                .append(getContainersRebuilt()).append(" rebuilt, ")
+                .append(getLambdaInvocations()).append(" invocations");
+        for (PassMetrics pass : passes) {
+            out.append("\n  ").append(pass);
+            for (StageMetrics stage : pass.getStages()) {
+                out.append("\n    ").append(stage);
+            }
+        }
+        return out.toString();
+    }
+}
@@ -0,0 +1,144 @@
+package io.github.jimmyhmiller;
+
+import javax.json.JsonValue;
+import javax.json.stream.JsonGenerator;
+import javax.json.stream.JsonParser;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/*
+* One run of a pipeline that has a listener.
+*
+* Counting happens in copies of the stages whose lambdas are wrapped to time and count themselves, fused into
+* passes of their own for just this run. The copies are handed every value, so they can count the ones of other types
+* that the plain stages are never called with. So runs on different threads never share counters, and a pipeline
+* without a listener runs the plain stages and never touches any of this.
+* Counters are LongAdders since parallel passes update them from several threads at once.
+* */
+final class Recording {
+
+    // Counted by the pass itself, null when nothing is recorded.
+    static final class PassCounters {
+        final LongAdder visited = new LongAdder();
+        final LongAdder rebuilt = new LongAdder();
+    }
+
+    private static final class StageCounters {
+        final LongAdder nanos = new LongAdder();
+        final LongAdder visited = new LongAdder();
+        final LongAdder replaced = new LongAdder();
+        final LongAdder invocations = new LongAdder();
+        final LongAdder hits = new LongAdder();
+        final LongAdder misses = new LongAdder();
+
+        Stage instrument(Stage stage) {
+            if (stage.kind == Stage.Kind.ADD || stage.kind == Stage.Kind.REMOVE) {
+                return stage;
+            }
+            if (stage.kind == Stage.Kind.ASYNC) {
+                // Only called with values of its types, and timed until the result completes rather than until the lambda returns.
+                return stage.withAsyncFunction(value -> {
+                    visited.increment();
+                    long start = System.nanoTime();
+                    return stage.asyncFn.apply(value).thenApply(result -> {
+                        record(start, value, result);
+                        return result;
+                    });
+                });
+            }
+            if (stage.kind == Stage.Kind.MAP_OBJECT) {
+                // A memoized stage shares its cache with every other run, only the hits and misses are counted per run.
+                BiFunction<String, JsonValue, JsonValue> entryFn = stage.memo == null ? stage.entryFn
+                        : (key, value) -> stage.memo.apply(key, value, hits, misses);
+                return stage.withFunctions(null, (key, value) -> {
+                    visited.increment();
+                    if (!stage.types.contains(value.getValueType())) {
+                        return value;
+                    }
+                    long start = System.nanoTime();
+                    JsonValue result = entryFn.apply(key, value);
+                    record(start, value, result);
+                    return result;
+                });
+            }
+            Function<JsonValue, JsonValue> fn = stage.memo == null ? stage.fn : value -> stage.memo.apply(value, hits, misses);
+            return stage.withFunctions(value -> {
+                visited.increment();
+                if (!stage.types.contains(value.getValueType())) {
+                    return value;
+                }
+                long start = System.nanoTime();
+                JsonValue result = fn.apply(value);
+                record(start, value, result);
+                return result;
+            }, null);
+        }
+
+        private void record(long start, JsonValue value, JsonValue result) {
+            nanos.add(System.nanoTime() - start);
+            invocations.increment();
+            if (result != value) {
+                replaced.increment();
+            }
+        }
+    }
+
+    private final List<Stage> stages;
+    private final StageCounters[] stageCounters;
+    private final FusedPass[] passes;
+    private final long[] passNanos;
+    private long nanos;
+
+    Recording(List<Stage> stages, Options options) {
+        this.stages = stages;
+        this.stageCounters = new StageCounters[stages.size()];
+        List<Stage> instrumented = new ArrayList<>(stages.size());
+        for (int i = 0; i < stages.size(); i++) {
+            stageCounters[i] = new StageCounters();
+            instrumented.add(stageCounters[i].instrument(stages.get(i)));
+        }
+        List<FusedPass> fused = FusedPass.fuse(instrumented, options, true);
+        this.passes = fused.toArray(new FusedPass[fused.size()]);
+        this.passNanos = new long[passes.length];
+    }
+
+    JsonValue apply(JsonValue json) {
+        long start = System.nanoTime();
+        JsonValue result = json;
+        for (int i = 0; i < passes.length; i++) {
+            long passStart = System.nanoTime();
+            result = passes[i].apply(result);
+            passNanos[i] = System.nanoTime() - passStart;
+        }
+        nanos = System.nanoTime() - start;
+        return result;
+    }
+
+    void stream(JsonParser parser, JsonGenerator generator) {
+        long start = System.nanoTime();
+        StreamingTransform.transform(parser, passes, generator);
+        nanos = System.nanoTime() - start;
+    }
+
+    PipelineMetrics metrics() {
+        List<PassMetrics> passMetrics = new ArrayList<>(passes.length);
+        int stage = 0;
+        for (int i = 0; i < passes.length; i++) {
+            List<StageMetrics> stageMetrics = new ArrayList<>();
+            for (int end = stage + passes[i].stageCount(); stage < end; stage++) {
+                StageCounters counters = stageCounters[stage];
+                stageMetrics.add(new StageMetrics(stage, stages.get(stage).toString(), counters.nanos.sum(),
+                        counters.visited.sum(), counters.replaced.sum(), counters.invocations.sum(),
+                        counters.hits.sum(), counters.misses.sum()));
+            }
+            PassCounters counters = passes[i].counters();
+            passMetrics.add(new PassMetrics(i, Collections.unmodifiableList(stageMetrics), passNanos[i],
+                    counters.visited.sum(), counters.rebuilt.sum()));
+        }
+        return new PipelineMetrics(nanos, passMetrics);
+    }
+}
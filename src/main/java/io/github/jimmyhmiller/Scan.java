@@ -0,0 +1,120 @@
+package io.github.jimmyhmiller;
+
+import javax.json.JsonArray;
+import javax.json.JsonObject;
+import javax.json.JsonValue;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.function.Consumer;
+
+/*
+* Read-only walks for reduce and reduceRecursive, and for making sure of what is in a subtree before FusedPass skips it.
+* Values are only handed to a visitor, nothing is copied or rebuilt, so folding over a document allocates
+* no more than an iterator per container on the way down.
+* Like The Walk in FusedPass, nesting is kept on an explicit stack instead of the Java stack.
+* */
+final class Scan {
+
+    private Scan() {}
+
+    // Every value of an object or element of an array, the top level only.
+    static void children(JsonValue json, Consumer<JsonValue> visitor) {
+        if (json.getValueType() == JsonValue.ValueType.OBJECT) {
+            for (JsonValue value : ((JsonObject) json).values()) {
+                visitor.accept(value);
+            }
+        } else if (json.getValueType() == JsonValue.ValueType.ARRAY) {
+            for (JsonValue value : (JsonArray) json) {
+                visitor.accept(value);
+            }
+        }
+    }
+
+    // Every value in the document, the root included, in document order. A container is visited before what is in it.
+    static void recursive(JsonValue json, int maxDepth, Consumer<JsonValue> visitor) {
+        visitor.accept(json);
+        Iterator<JsonValue> first = children(json);
+        if (first == null) {
+            return;
+        }
+        ArrayDeque<Iterator<JsonValue>> stack = new ArrayDeque<>();
+        stack.push(first);
+        while (!stack.isEmpty()) {
+            Iterator<JsonValue> top = stack.peek();
+            if (!top.hasNext()) {
+                stack.pop();
+                continue;
+            }
+            JsonValue value = top.next();
+            visitor.accept(value);
+            Iterator<JsonValue> nested = children(value);
+            if (nested != null) {
+                if (stack.size() >= maxDepth) {
+                    throw new JsonDepthException(maxDepth);
+                }
+                stack.push(nested);
+            }
+        }
+    }
+
+    /*
+    * Whether nothing in json, json included, has one of types, bits by ValueType ordinal, and nothing in it would be
+    * too deep for maxDepth with json at depth. Stops at the first value that does. Only types are looked at, strings and
+    * numbers aren't read, and a view of a tape is a loop over the kinds of its nodes.
+    * */
+    static boolean none(JsonValue json, int types, int depth, int maxDepth) {
+        if ((Shape.bit(json.getValueType()) & types) != 0) {
+            return false;
+        }
+        if (maxDepth == Integer.MAX_VALUE && json instanceof TapeJsonObject) {
+            return ((TapeJsonObject) json).tape.none(((TapeJsonObject) json).node, types);
+        }
+        if (maxDepth == Integer.MAX_VALUE && json instanceof TapeJsonArray) {
+            return ((TapeJsonArray) json).tape.none(((TapeJsonArray) json).node, types);
+        }
+        Iterator<JsonValue> first = children(json);
+        if (first == null) {
+            return true;
+        }
+        if (depth >= maxDepth) {
+            return false;
+        }
+        // Mostly there is nothing nested to come back to, the stack is only made for what is.
+        ArrayDeque<Iterator<JsonValue>> stack = null;
+        Iterator<JsonValue> top = first;
+        while (true) {
+            if (!top.hasNext()) {
+                if (stack == null || stack.isEmpty()) {
+                    return true;
+                }
+                top = stack.pop();
+                continue;
+            }
+            JsonValue value = top.next();
+            if ((Shape.bit(value.getValueType()) & types) != 0) {
+                return false;
+            }
+            Iterator<JsonValue> nested = children(value);
+            if (nested != null) {
+                if (stack == null) {
+                    stack = new ArrayDeque<>();
+                }
+                if (depth + stack.size() + 1 >= maxDepth) {
+                    return false;
+                }
+                stack.push(top);
+                top = nested;
+            }
+        }
+    }
+
+    private static Iterator<JsonValue> children(JsonValue json) {
+        if (json.getValueType() == JsonValue.ValueType.OBJECT) {
+            return ((JsonObject) json).values().iterator();
+        }
+        if (json.getValueType() == JsonValue.ValueType.ARRAY) {
+            return ((JsonArray) json).iterator();
+        }
+        return null;
+    }
+}
@@ -0,0 +1,337 @@
+package io.github.jimmyhmiller;
+
+import javax.json.JsonArray;
+import javax.json.JsonObject;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+* What documents look like: which types of value are where. Given to a transformation with shape, it lets the walk
+* hand back subtrees none of the stages could do anything with as they are, instead of visiting them node by node.
+*
+*   Shape shape = Shape.infer(samples);
+*   Shape shape = Shape.fromSchema(schema);
+*
+*   JsonPipeline pipeline = new JsonTransformer()
+*       .mapRecursive((String s) -> s.trim())
+*       .shape(shape)
+*       .compile();
+*
+* For each place in a document a shape knows the types a value there can have, and, worked out once when it is made,
+* the types of everything below it too. An array of numbers below a string stage can't have anything in it the stage
+* takes, so the walk skips it. A shape is only ever a prediction though. A subtree is only handed back as it is once
+* a scan has made sure there is nothing in it of a type any stage takes, which only looks at the type of each value,
+* or the kinds on a JsonTape. A document that doesn't have the shape still comes out exactly as it would without one,
+* what doesn't match is walked like everything else. Keys and elements the shape doesn't expect are predicted
+* not to be there, and when they are, are walked.
+* */
+public final class Shape {
+
+    private static final int ALL = (1 << JsonValue.ValueType.values().length) - 1;
+    // Nothing is known about what is here.
+    static final Shape ANY = new Shape(ALL, Collections.<String, Shape>emptyMap(), null, null);
+
+    // Bits by ValueType ordinal. The types a value here can have, and those of everything below it as well.
+    final int types;
+    final int reach;
+    private final Map<String, Shape> properties;
+    // Keys that aren't one of properties, and the elements of arrays. null where none are expected.
+    private final Shape others;
+    private final Shape items;
+
+    private Shape(int types, Map<String, Shape> properties, Shape others, Shape items) {
+        this.types = types;
+        this.properties = properties;
+        this.others = others;
+        this.items = items;
+        if (types == ALL && others == null && items == null && properties.isEmpty()) {
+            this.reach = ALL;
+            return;
+        }
+        int below = 0;
+        if ((types & bit(JsonValue.ValueType.OBJECT)) != 0) {
+            for (Shape property : properties.values()) {
+                below |= property.reach;
+            }
+            below |= others == null ? 0 : others.reach;
+        }
+        if ((types & bit(JsonValue.ValueType.ARRAY)) != 0) {
+            below |= items == null ? 0 : items.reach;
+        }
+        this.reach = types | below;
+    }
+
+    static int bit(JsonValue.ValueType type) {
+        return 1 << type.ordinal();
+    }
+
+    // What the value of key has, in an object here.
+    Shape property(String key) {
+        Shape property = properties.get(key);
+        if (property != null) {
+            return property;
+        }
+        return others == null ? ANY : others;
+    }
+
+    // What the elements have, in an array here.
+    Shape items() {
+        return items == null ? ANY : items;
+    }
+
+    /*
+    * The shape every one of samples has: the types found at each place, the keys found in objects there and what their
+    * values have, and what the elements of arrays there have. Objects that don't all have the same keys are fine,
+    * a key that only some have gets what those have. An array is a single sample, the shape of arrays of what is in it.
+    * The samples are walked with an explicit stack, however deeply they are nested.
+    * */
+    public static Shape infer(JsonValue... samples) {
+        Inferred root = new Inferred();
+        ArrayDeque<Object[]> work = new ArrayDeque<>();
+        for (JsonValue sample : samples) {
+            work.push(new Object[]{sample, root});
+            while (!work.isEmpty()) {
+                Object[] next = work.pop();
+                JsonValue value = (JsonValue) next[0];
+                Inferred place = (Inferred) next[1];
+                place.types |= bit(value.getValueType());
+                if (value.getValueType() == JsonValue.ValueType.OBJECT) {
+                    for (Map.Entry<String, JsonValue> entry : ((JsonObject) value).entrySet()) {
+                        Inferred property = place.properties.get(entry.getKey());
+                        if (property == null) {
+                            property = new Inferred();
+                            place.properties.put(entry.getKey(), property);
+                        }
+                        work.push(new Object[]{entry.getValue(), property});
+                    }
+                } else if (value.getValueType() == JsonValue.ValueType.ARRAY) {
+                    for (JsonValue element : (JsonArray) value) {
+                        if (place.items == null) {
+                            place.items = new Inferred();
+                        }
+                        work.push(new Object[]{element, place.items});
+                    }
+                }
+            }
+        }
+        return root.shape();
+    }
+
+    /*
+    * The shape of the documents schema, a JSON Schema, describes. What is followed: type (integer is a number),
+    * properties, additionalProperties and patternProperties (for keys that aren't one of properties), items
+    * (a schema or a list of them), prefixItems, additionalItems, enum, const, anyOf and oneOf, and true and false as schemas.
+    * Anything else, $ref, allOf, not and conditionals among them, is left out and what it would allow is predicted
+    * not to be there. That only means fewer subtrees are skipped for documents that have it.
+    * Schemas are followed recursively, they aren't nested as deeply as documents can be.
+    * */
+    public static Shape fromSchema(JsonValue schema) {
+        if (schema.getValueType() == JsonValue.ValueType.TRUE) {
+            return ANY;
+        }
+        if (schema.getValueType() == JsonValue.ValueType.FALSE) {
+            return new Shape(0, Collections.<String, Shape>emptyMap(), null, null);
+        }
+        if (schema.getValueType() != JsonValue.ValueType.OBJECT) {
+            throw new IllegalArgumentException("A schema has to be an object, true or false, was " + schema);
+        }
+        JsonObject object = (JsonObject) schema;
+        int types = ALL;
+        JsonValue type = object.get("type");
+        if (type != null) {
+            types = 0;
+            for (JsonValue name : type.getValueType() == JsonValue.ValueType.ARRAY ? (JsonArray) type : Collections.singletonList(type)) {
+                types |= type(name);
+            }
+        }
+        if (object.containsKey("enum")) {
+            int values = 0;
+            for (JsonValue value : object.getJsonArray("enum")) {
+                values |= bit(value.getValueType());
+            }
+            types &= values;
+        }
+        if (object.containsKey("const")) {
+            types &= bit(object.get("const").getValueType());
+        }
+        Map<String, Shape> properties = new LinkedHashMap<>();
+        if (object.containsKey("properties")) {
+            for (Map.Entry<String, JsonValue> entry : object.getJsonObject("properties").entrySet()) {
+                properties.put(entry.getKey(), fromSchema(entry.getValue()));
+            }
+        }
+        Shape others = null;
+        if (object.containsKey("additionalProperties")) {
+            others = fromSchema(object.get("additionalProperties"));
+        }
+        if (object.containsKey("patternProperties")) {
+            for (JsonValue pattern : object.getJsonObject("patternProperties").values()) {
+                others = merge(others, fromSchema(pattern));
+            }
+        }
+        Shape items = null;
+        JsonValue listed = object.get("items");
+        if (listed != null && listed.getValueType() == JsonValue.ValueType.ARRAY) {
+            for (JsonValue item : (JsonArray) listed) {
+                items = merge(items, fromSchema(item));
+            }
+        } else if (listed != null) {
+            items = fromSchema(listed);
+        }
+        if (object.containsKey("prefixItems")) {
+            for (JsonValue item : object.getJsonArray("prefixItems")) {
+                items = merge(items, fromSchema(item));
+            }
+        }
+        if (object.containsKey("additionalItems")) {
+            items = merge(items, fromSchema(object.get("additionalItems")));
+        }
+        Shape shape = new Shape(types, properties, others, items);
+        for (String union : Arrays.asList("anyOf", "oneOf")) {
+            if (object.containsKey(union)) {
+                Shape alternatives = null;
+                for (JsonValue alternative : object.getJsonArray(union)) {
+                    alternatives = merge(alternatives, fromSchema(alternative));
+                }
+                shape = alternatives == null ? shape : narrow(merge(shape.withoutTypes(), alternatives), shape.types);
+            }
+        }
+        return shape;
+    }
+
+    private static int type(JsonValue name) {
+        String type = name.getValueType() == JsonValue.ValueType.STRING ? ((JsonString) name).getString() : String.valueOf(name);
+        switch (type) {
+            case "object":
+                return bit(JsonValue.ValueType.OBJECT);
+            case "array":
+                return bit(JsonValue.ValueType.ARRAY);
+            case "string":
+                return bit(JsonValue.ValueType.STRING);
+            case "number":
+            case "integer":
+                return bit(JsonValue.ValueType.NUMBER);
+            case "boolean":
+                return bit(JsonValue.ValueType.TRUE) | bit(JsonValue.ValueType.FALSE);
+            case "null":
+                return bit(JsonValue.ValueType.NULL);
+            default:
+                throw new IllegalArgumentException("Unknown type in schema: " + type);
+        }
+    }
+
+    // What either a or b allows, for anyOf and oneOf. null is nothing at all.
+    private static Shape merge(Shape a, Shape b) {
+        if (a == null || b == null) {
+            return a == null ? b : a;
+        }
+        if (a == ANY || b == ANY) {
+            return ANY;
+        }
+        Map<String, Shape> properties = new LinkedHashMap<>();
+        for (Map.Entry<String, Shape> entry : a.properties.entrySet()) {
+            Shape other = b.properties.get(entry.getKey());
+            properties.put(entry.getKey(), merge(entry.getValue(), other != null ? other : b.others));
+        }
+        for (Map.Entry<String, Shape> entry : b.properties.entrySet()) {
+            if (!properties.containsKey(entry.getKey())) {
+                properties.put(entry.getKey(), merge(entry.getValue(), a.others));
+            }
+        }
+        return new Shape(a.types | b.types, properties, merge(a.others, b.others), merge(a.items, b.items));
+    }
+
+    // The same shape, but for values of none of the types, so merging it only adds what is said about objects and arrays.
+    private Shape withoutTypes() {
+        return new Shape(0, properties, others, items);
+    }
+
+    private static Shape narrow(Shape shape, int types) {
+        return new Shape(shape.types & types, shape.properties, shape.others, shape.items);
+    }
+
+    /*
+    * Whether json has this shape: every value in it one of the types for its place, and no keys or elements
+    * where none are expected. Transformations don't need documents to match, see above.
+    * */
+    public boolean matches(JsonValue json) {
+        ArrayDeque<Object[]> work = new ArrayDeque<>();
+        work.push(new Object[]{json, this});
+        while (!work.isEmpty()) {
+            Object[] next = work.pop();
+            JsonValue value = (JsonValue) next[0];
+            Shape shape = (Shape) next[1];
+            if (shape == ANY) {
+                continue;
+            }
+            if ((shape.types & bit(value.getValueType())) == 0) {
+                return false;
+            }
+            if (value.getValueType() == JsonValue.ValueType.OBJECT) {
+                for (Map.Entry<String, JsonValue> entry : ((JsonObject) value).entrySet()) {
+                    Shape property = shape.properties.get(entry.getKey());
+                    if (property == null && shape.others == null) {
+                        return false;
+                    }
+                    work.push(new Object[]{entry.getValue(), property != null ? property : shape.others});
+                }
+            } else if (value.getValueType() == JsonValue.ValueType.ARRAY) {
+                JsonArray array = (JsonArray) value;
+                if (shape.items == null && !array.isEmpty()) {
+                    return false;
+                }
+                for (JsonValue element : array) {
+                    work.push(new Object[]{element, shape.items});
+                }
+            }
+        }
+        return true;
+    }
+
+    // A place in the samples while inferring, made into a Shape once all of them have been seen.
+    private static final class Inferred {
+        int types;
+        final Map<String, Inferred> properties = new LinkedHashMap<>();
+        Inferred items;
+
+        // Children are made before their parents, off a stack, for the same reason the samples are walked off one.
+        Shape shape() {
+            Map<Inferred, Shape> made = new IdentityHashMap<>();
+            ArrayDeque<Inferred> work = new ArrayDeque<>();
+            work.push(this);
+            while (!work.isEmpty()) {
+                Inferred place = work.peek();
+                List<Inferred> pending = new ArrayList<>();
+                for (Inferred property : place.properties.values()) {
+                    if (!made.containsKey(property)) {
+                        pending.add(property);
+                    }
+                }
+                if (place.items != null && !made.containsKey(place.items)) {
+                    pending.add(place.items);
+                }
+                if (!pending.isEmpty()) {
+                    for (Inferred child : pending) {
+                        work.push(child);
+                    }
+                    continue;
+                }
+                work.pop();
+                Map<String, Shape> properties = new LinkedHashMap<>();
+                for (Map.Entry<String, Inferred> entry : place.properties.entrySet()) {
+                    properties.put(entry.getKey(), made.get(entry.getValue()));
+                }
+                made.put(place, new Shape(place.types, properties, null, place.items == null ? null : made.get(place.items)));
+            }
+            return made.get(this);
+        }
+    }
+}
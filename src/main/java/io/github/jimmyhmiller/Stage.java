@@ -0,0 +1,221 @@
+package io.github.jimmyhmiller;
+
+import javax.json.JsonValue;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.CompletionStage;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/*
+* A single transformation registered on a JsonTransformer.
+* Stages keep enough information about what they do (recursive or shallow, which value types
+* they look at) that adjacent stages can be fused into a single traversal. See FusedPass.
+* */
+final class Stage {
+
+    enum Kind {
+        RECURSIVE,
+        MAP_OBJECT,
+        MAP_ARRAY,
+        ADD,
+        REMOVE,
+        PATH,
+        ASYNC
+    }
+
+    static final Set<JsonValue.ValueType> STRING = Collections.unmodifiableSet(EnumSet.of(JsonValue.ValueType.STRING));
+    static final Set<JsonValue.ValueType> NUMBER = Collections.unmodifiableSet(EnumSet.of(JsonValue.ValueType.NUMBER));
+    static final Set<JsonValue.ValueType> BOOLEAN = Collections.unmodifiableSet(EnumSet.of(JsonValue.ValueType.TRUE, JsonValue.ValueType.FALSE));
+    static final Set<JsonValue.ValueType> OBJECT = Collections.unmodifiableSet(EnumSet.of(JsonValue.ValueType.OBJECT));
+    static final Set<JsonValue.ValueType> ARRAY = Collections.unmodifiableSet(EnumSet.of(JsonValue.ValueType.ARRAY));
+    static final Set<JsonValue.ValueType> ANY = Collections.unmodifiableSet(EnumSet.allOf(JsonValue.ValueType.class));
+
+    final Kind kind;
+    final Set<JsonValue.ValueType> types;
+    final Function<JsonValue, JsonValue> fn;
+    final BiFunction<String, JsonValue, JsonValue> entryFn;
+    // Only for ASYNC stages, which have neither fn nor entryFn.
+    final Function<JsonValue, CompletionStage<JsonValue>> asyncFn;
+    // An ASYNC stage for the elements of the root array only, mapAsync rather than mapRecursiveAsync.
+    final boolean elementsOnly;
+    final String key;
+    final JsonValue value;
+    final JsonPath path;
+    // fn or entryFn may hand back null, which drops the value from its container.
+    final boolean drops;
+    // Caches what the lambda hands back, fn or entryFn look it up first. null unless memoized.
+    final Memo memo;
+    // Whether fn or entryFn are called with a value, by the ordinal of its type. They are only ever called with values
+    // of the types here, so the lambdas themselves don't test for them. The types of the stage, except in Recording.
+    private final boolean[] handled;
+
+    private Stage(Kind kind,
+                  Set<JsonValue.ValueType> types,
+                  Function<JsonValue, JsonValue> fn,
+                  BiFunction<String, JsonValue, JsonValue> entryFn,
+                  Function<JsonValue, CompletionStage<JsonValue>> asyncFn,
+                  String key,
+                  JsonValue value,
+                  JsonPath path,
+                  boolean drops,
+                  Memo memo) {
+        this(kind, types, fn, entryFn, asyncFn, key, value, path, drops, memo, table(types), false);
+    }
+
+    private Stage(Kind kind,
+                  Set<JsonValue.ValueType> types,
+                  Function<JsonValue, JsonValue> fn,
+                  BiFunction<String, JsonValue, JsonValue> entryFn,
+                  Function<JsonValue, CompletionStage<JsonValue>> asyncFn,
+                  String key,
+                  JsonValue value,
+                  JsonPath path,
+                  boolean drops,
+                  Memo memo,
+                  boolean[] handled,
+                  boolean elementsOnly) {
+        this.kind = kind;
+        this.types = types;
+        this.fn = fn;
+        this.entryFn = entryFn;
+        this.asyncFn = asyncFn;
+        this.key = key;
+        this.value = value;
+        this.path = path;
+        this.drops = drops;
+        this.memo = memo;
+        this.handled = handled;
+        this.elementsOnly = elementsOnly;
+    }
+
+    private static boolean[] table(Set<JsonValue.ValueType> types) {
+        boolean[] table = new boolean[JsonValue.ValueType.values().length];
+        for (JsonValue.ValueType type : types) {
+            table[type.ordinal()] = true;
+        }
+        return table;
+    }
+
+    // fn is only called with values whose type is in types.
+    static Stage recursive(Set<JsonValue.ValueType> types, Function<JsonValue, JsonValue> fn) {
+        return new Stage(Kind.RECURSIVE, types, fn, null, null, null, null, null, false, null);
+    }
+
+    // Like recursive, but fn hands back null for values to drop. It runs before we descend, so dropped subtrees are never walked.
+    static Stage filterRecursive(Set<JsonValue.ValueType> types, Function<JsonValue, JsonValue> fn) {
+        return new Stage(Kind.RECURSIVE, types, fn, null, null, null, null, null, true, null);
+    }
+
+    static Stage mapObject(Set<JsonValue.ValueType> types, BiFunction<String, JsonValue, JsonValue> entryFn) {
+        return new Stage(Kind.MAP_OBJECT, types, null, entryFn, null, null, null, null, false, null);
+    }
+
+    static Stage filterObject(Set<JsonValue.ValueType> types, BiFunction<String, JsonValue, JsonValue> entryFn) {
+        return new Stage(Kind.MAP_OBJECT, types, null, entryFn, null, null, null, null, true, null);
+    }
+
+    static Stage mapArray(Set<JsonValue.ValueType> types, Function<JsonValue, JsonValue> fn) {
+        return new Stage(Kind.MAP_ARRAY, types, fn, null, null, null, null, null, false, null);
+    }
+
+    static Stage filterArray(Set<JsonValue.ValueType> types, Function<JsonValue, JsonValue> fn) {
+        return new Stage(Kind.MAP_ARRAY, types, fn, null, null, null, null, null, true, null);
+    }
+
+    static Stage add(String key, JsonValue value) {
+        return new Stage(Kind.ADD, Collections.<JsonValue.ValueType>emptySet(), null, null, null, key, value, null, false, null);
+    }
+
+    static Stage remove(String key) {
+        return new Stage(Kind.REMOVE, Collections.<JsonValue.ValueType>emptySet(), null, null, null, key, null, null, true, null);
+    }
+
+    // fn is applied to whatever the path matches, it never sees the rest of the document.
+    static Stage path(JsonPath path, Set<JsonValue.ValueType> types, Function<JsonValue, JsonValue> fn) {
+        return new Stage(Kind.PATH, types, fn, null, null, null, null, path, false, null);
+    }
+
+    // asyncFn is called once for every value of one of the types in the document, what it completes with is final.
+    // It is a pass of its own, see AsyncMap.
+    static Stage async(Set<JsonValue.ValueType> types, Function<JsonValue, CompletionStage<JsonValue>> asyncFn) {
+        return new Stage(Kind.ASYNC, types, null, null, asyncFn, null, null, null, false, null);
+    }
+
+    // Like async, but only for the elements of the root array, when the root is one.
+    static Stage asyncElements(Set<JsonValue.ValueType> types, Function<JsonValue, CompletionStage<JsonValue>> asyncFn) {
+        return new Stage(Kind.ASYNC, types, null, null, asyncFn, null, null, null, false, null, table(types), true);
+    }
+
+    // The same stage with its functions swapped for ones that are called with every value, see Recording.
+    Stage withFunctions(Function<JsonValue, JsonValue> fn, BiFunction<String, JsonValue, JsonValue> entryFn) {
+        return new Stage(kind, types, fn, entryFn, asyncFn, key, value, path, drops, memo, table(ANY),
+                elementsOnly);
+    }
+
+    // The same async stage with asyncFn swapped, it is still only called with values of its types. See Recording.
+    Stage withAsyncFunction(Function<JsonValue, CompletionStage<JsonValue>> asyncFn) {
+        return new Stage(kind, types, fn, entryFn, asyncFn, key, value, path, drops, memo, handled, elementsOnly);
+    }
+
+    // The same stage with a cache of up to maxSize values in front of its lambda.
+    Stage memoize(int maxSize) {
+        if (kind == Kind.ADD || kind == Kind.REMOVE || kind == Kind.ASYNC) {
+            throw new IllegalArgumentException("Only stages with a synchronous lambda can be memoized, was " + this);
+        }
+        if (touchesContainers()) {
+            throw new IllegalArgumentException("Only stages on strings, numbers and booleans can be memoized, was " + this);
+        }
+        // Memoizing again replaces the cache rather than putting a second one in front of it.
+        Memo memo = this.memo == null ? new Memo(types, fn, entryFn, maxSize) : new Memo(types, this.memo.fn, this.memo.entryFn, maxSize);
+        return new Stage(kind, types, fn == null ? null : value -> memo.apply(value, null, null),
+                entryFn == null ? null : (key, value) -> memo.apply(key, value, null, null), null, key, value, path, drops, memo);
+    }
+
+    boolean handles(JsonValue.ValueType type) {
+        return handled[type.ordinal()];
+    }
+
+    // fn for a value it is called with, anything else is handed back as it is.
+    JsonValue apply(JsonValue value) {
+        return handled[value.getValueType().ordinal()] ? fn.apply(value) : value;
+    }
+
+    JsonValue apply(String key, JsonValue value) {
+        return handled[value.getValueType().ordinal()] ? entryFn.apply(key, value) : value;
+    }
+
+    boolean isRecursive() {
+        return kind == Kind.RECURSIVE;
+    }
+
+    boolean touchesContainers() {
+        return types.contains(JsonValue.ValueType.OBJECT) || types.contains(JsonValue.ValueType.ARRAY);
+    }
+
+    // What the stage does, for metrics. The lambdas themselves have no useful name.
+    @Override
+    public String toString() {
+        return memo == null ? describe() : describe() + " memoized";
+    }
+
+    private String describe() {
+        switch (kind) {
+            case RECURSIVE:
+                return (drops ? "filterRecursive " : "mapRecursive ") + types;
+            case MAP_OBJECT:
+                return (drops ? "filter entries " : "map entries ") + types;
+            case MAP_ARRAY:
+                return (drops ? "filter elements " : "map elements ") + types;
+            case ADD:
+                return "add " + key;
+            case REMOVE:
+                return "remove " + key;
+            case ASYNC:
+                return (elementsOnly ? "mapAsync " : "mapRecursiveAsync ") + types;
+            default:
+                return "at " + path + " " + types;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package io.github.jimmyhmiller;
+
+/*
+* What a single map, add, path or async stage did during one run.
+*
+* Stages fused into one pass are applied in the same walk, so a stage can't be timed on its own.
+* Its time is the time spent inside its lambda, summed over all threads for parallel transformers.
+* The walk itself is in the time of its PassMetrics.
+* */
+public final class StageMetrics {
+
+    private final int index;
+    private final String description;
+    private final long nanos;
+    private final long nodesVisited;
+    private final long nodesReplaced;
+    private final long lambdaInvocations;
+    private final long cacheHits;
+    private final long cacheMisses;
+
+    StageMetrics(int index, String description, long nanos, long nodesVisited, long nodesReplaced, long lambdaInvocations,
+                 long cacheHits, long cacheMisses) {
+        this.index = index;
+        this.description = description;
+        this.nanos = nanos;
+        this.nodesVisited = nodesVisited;
+        this.nodesReplaced = nodesReplaced;
+        this.lambdaInvocations = lambdaInvocations;
+        this.cacheHits = cacheHits;
+        this.cacheMisses = cacheMisses;
+    }
+
+    // Position of the stage in the transformer, starting at 0.
+    public int getIndex() {
+        return index;
+    }
+
+    // Which kind of stage this is and what value types it looks at, like "mapRecursive [STRING]".
+    public String getDescription() {
+        return description;
+    }
+
+    public long getNanos() {
+        return nanos;
+    }
+
+    // Values handed to the stage, whether or not they were of a type its lambda takes.
+    public long getNodesVisited() {
+        return nodesVisited;
+    }
+
+    // Values the stage handed back as something else than it was given, or dropped.
+    public long getNodesReplaced() {
+        return nodesReplaced;
+    }
+
+    // Values the lambda was actually called with. Adds and removes by key don't have a lambda, and count nothing.
+    // For a memoized stage this is every value it looked up, the lambda itself only ran for the misses.
+    public long getLambdaInvocations() {
+        return lambdaInvocations;
+    }
+
+    // Values a memoized stage found in its cache. Always 0 for stages that aren't memoized.
+    public long getCacheHits() {
+        return cacheHits;
+    }
+
+    // Values a memoized stage had to run its lambda for.
+    public long getCacheMisses() {
+        return cacheMisses;
+    }
+
+    @Override
+    public String toString() {
+        return "stage " + index + " (" + description + "): " + nanos / 1000 + "us, " + nodesVisited + " visited, "
+                + nodesReplaced + " replaced, " + lambdaInvocations + " invocations"
+                + (cacheHits + cacheMisses == 0 ? "" : ", " + cacheHits + " cache hits, " + cacheMisses + " cache misses");
+    }
+}
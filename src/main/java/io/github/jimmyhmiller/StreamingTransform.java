@@ -0,0 +1,317 @@
+package io.github.jimmyhmiller;
+
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonException;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonValue;
+import javax.json.stream.JsonGenerator;
+import javax.json.stream.JsonParser;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/*
+* Runs passes over a stream of parser events instead of a tree.
+*
+* Every pass becomes a Sink that hands its output on to the next one, the last one writes to a JsonGenerator.
+* Primitives are transformed as they flow by and containers are passed along as start/end events,
+* so memory only grows with how deeply the document is nested.
+* The exception is a container that a function actually needs to see in one piece (a JsonObject or JsonArray lambda).
+* Only that subtree is buffered into a JsonValue, run through the tree version of the pass and sent along as a value.
+* */
+final class StreamingTransform {
+
+    private StreamingTransform() {}
+
+    // Keys are null for array elements and for the top level value.
+    // value may be handed a whole object or array, passes treat those as finished subtrees.
+    interface Sink {
+        void start(JsonValue.ValueType type, String key);
+        void value(String key, JsonValue value);
+        void end();
+    }
+
+    static void transform(JsonParser parser, FusedPass[] passes, JsonGenerator generator) {
+        Sink sink = new GeneratorSink(generator);
+        for (int i = passes.length - 1; i >= 0; i--) {
+            sink = new PassSink(passes[i], sink);
+        }
+        read(parser, sink);
+        generator.flush();
+    }
+
+    private static void read(JsonParser parser, Sink sink) {
+        String key = null;
+        while (parser.hasNext()) {
+            switch (parser.next()) {
+                case KEY_NAME:
+                    key = parser.getString();
+                    continue;
+                case START_OBJECT:
+                    sink.start(JsonValue.ValueType.OBJECT, key);
+                    break;
+                case START_ARRAY:
+                    sink.start(JsonValue.ValueType.ARRAY, key);
+                    break;
+                case END_OBJECT:
+                case END_ARRAY:
+                    sink.end();
+                    break;
+                case VALUE_STRING:
+                    sink.value(key, JsonTransformer.createJsonString(parser.getString()));
+                    break;
+                case VALUE_NUMBER:
+                    sink.value(key, JsonTransformer.createJsonNumber(parser.getBigDecimal()));
+                    break;
+                case VALUE_TRUE:
+                    sink.value(key, JsonValue.TRUE);
+                    break;
+                case VALUE_FALSE:
+                    sink.value(key, JsonValue.FALSE);
+                    break;
+                case VALUE_NULL:
+                    sink.value(key, JsonValue.NULL);
+                    break;
+            }
+            key = null;
+        }
+    }
+
+    private static final class PassSink implements Sink {
+        private final FusedPass pass;
+        private final Sink downstream;
+        private final boolean trackKeys;
+
+        private int depth = 0;
+        private boolean rootIsObject;
+        private Set<String> seen;
+
+        private TreeSink buffer;
+        private String bufferKey;
+        private int buffered = 0;
+        private int skipped = 0;
+
+        PassSink(FusedPass pass, Sink downstream) {
+            this.pass = pass;
+            this.downstream = downstream;
+            this.trackKeys = pass.hasAdditions();
+        }
+
+        @Override
+        public void start(JsonValue.ValueType type, String key) {
+            if (depth + buffered + skipped >= pass.maxDepth()) {
+                throw new JsonDepthException(pass.maxDepth());
+            }
+            if (skipped > 0) {
+                skipped++;
+                return;
+            }
+            if (buffer != null) {
+                buffered++;
+                buffer.start(type, key);
+                return;
+            }
+            if (depth == 1 && rootIsObject && pass.replacesRootKey(key)) {
+                see(key);
+                emit(key, pass.rootReplacement(key));
+                skipped = 1;
+                return;
+            }
+            if (depth == 1 && rootIsObject && pass.removesRootKey(key)) {
+                see(key);
+                skipped = 1;
+                return;
+            }
+            if (pass.needsSubtree(type) || (depth == 1 && pass.rootStagesNeedSubtree(rootIsObject, type))) {
+                buffer = new TreeSink();
+                bufferKey = key;
+                buffered = 1;
+                buffer.start(type, null);
+                return;
+            }
+            if (depth == 0) {
+                rootIsObject = type == JsonValue.ValueType.OBJECT;
+                seen = trackKeys ? new HashSet<>() : null;
+            }
+            if (depth == 1 && rootIsObject) {
+                see(key);
+            }
+            pass.countVisit();
+            depth++;
+            downstream.start(type, key);
+        }
+
+        @Override
+        public void value(String key, JsonValue value) {
+            if (skipped > 0) {
+                return;
+            }
+            if (buffer != null) {
+                buffer.value(key, value);
+                return;
+            }
+            complete(key, value);
+        }
+
+        @Override
+        public void end() {
+            if (skipped > 0) {
+                skipped--;
+                return;
+            }
+            if (buffer != null) {
+                buffer.end();
+                buffered--;
+                if (buffered == 0) {
+                    JsonValue subtree = buffer.result();
+                    buffer = null;
+                    complete(bufferKey, subtree);
+                }
+                return;
+            }
+            depth--;
+            if (depth == 0 && rootIsObject && trackKeys) {
+                pass.forEachAddition(seen, downstream::value);
+            }
+            downstream.end();
+        }
+
+        private void complete(String key, JsonValue value) {
+            if (depth == 0) {
+                downstream.value(key, pass.apply(value));
+                return;
+            }
+            if (depth == 1 && rootIsObject && pass.replacesRootKey(key)) {
+                see(key);
+                emit(key, pass.rootReplacement(key));
+                return;
+            }
+            JsonValue result = pass.applyChild(value, depth);
+            if (depth == 1) {
+                if (rootIsObject) {
+                    see(key);
+                    result = result == null ? null : pass.applyRootEntry(key, result);
+                } else {
+                    result = result == null ? null : pass.applyRootElement(result);
+                }
+            }
+            emit(key, result);
+        }
+
+        // Values a filter dropped are null and go no further.
+        private void emit(String key, JsonValue value) {
+            if (value != null) {
+                downstream.value(key, value);
+            }
+        }
+
+        private void see(String key) {
+            if (seen != null) {
+                seen.add(key);
+            }
+        }
+    }
+
+    // Collects events back into a JsonValue, for the subtrees that have to be seen whole.
+    private static final class TreeSink implements Sink {
+        private final List<Object> builders = new ArrayList<>();
+        private final List<String> keys = new ArrayList<>();
+        private JsonValue result;
+
+        @Override
+        public void start(JsonValue.ValueType type, String key) {
+            builders.add(type == JsonValue.ValueType.OBJECT ? JsonTransformer.BUILDERS.createObjectBuilder() : JsonTransformer.BUILDERS.createArrayBuilder());
+            keys.add(key);
+        }
+
+        @Override
+        public void value(String key, JsonValue value) {
+            Object builder = builders.get(builders.size() - 1);
+            if (builder instanceof JsonObjectBuilder) {
+                ((JsonObjectBuilder) builder).add(key, value);
+            } else {
+                ((JsonArrayBuilder) builder).add(value);
+            }
+        }
+
+        @Override
+        public void end() {
+            Object builder = builders.remove(builders.size() - 1);
+            String key = keys.remove(keys.size() - 1);
+            JsonValue value = builder instanceof JsonObjectBuilder
+                    ? ((JsonObjectBuilder) builder).build()
+                    : ((JsonArrayBuilder) builder).build();
+            if (builders.isEmpty()) {
+                result = value;
+            } else {
+                value(key, value);
+            }
+        }
+
+        JsonValue result() {
+            return result;
+        }
+    }
+
+    private static final class GeneratorSink implements Sink {
+        private final JsonGenerator generator;
+        private int depth = 0;
+
+        GeneratorSink(JsonGenerator generator) {
+            this.generator = generator;
+        }
+
+        @Override
+        public void start(JsonValue.ValueType type, String key) {
+            if (type == JsonValue.ValueType.OBJECT) {
+                if (key == null) {
+                    generator.writeStartObject();
+                } else {
+                    generator.writeStartObject(key);
+                }
+            } else {
+                if (key == null) {
+                    generator.writeStartArray();
+                } else {
+                    generator.writeStartArray(key);
+                }
+            }
+            depth++;
+        }
+
+        @Override
+        public void value(String key, JsonValue value) {
+            // Generators won't take a whole structure at the top level, only once inside one.
+            if (depth == 0 && value.getValueType() == JsonValue.ValueType.OBJECT) {
+                generator.writeStartObject();
+                for (Map.Entry<String, JsonValue> entry : ((JsonObject) value).entrySet()) {
+                    generator.write(entry.getKey(), entry.getValue());
+                }
+                generator.writeEnd();
+            } else if (depth == 0 && value.getValueType() == JsonValue.ValueType.ARRAY) {
+                generator.writeStartArray();
+                for (JsonValue element : (JsonArray) value) {
+                    generator.write(element);
+                }
+                generator.writeEnd();
+            } else if (depth == 0) {
+                // JSON-P 1.0 generators can't write a document that is just a string, number, boolean or null.
+                throw new JsonException("Can't stream a " + value.getValueType() + " as the whole document, only an object or array");
+            } else if (key == null) {
+                generator.write(value);
+            } else {
+                generator.write(key, value);
+            }
+        }
+
+        @Override
+        public void end() {
+            generator.writeEnd();
+            depth--;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package io.github.jimmyhmiller;
+
+import javax.json.JsonValue;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+
+/*
+* An array on a JsonTape, see JsonTape.root.
+* Iterating walks the tape. Elements are only found by index through a table of where each one starts,
+* made the first time get is called, so arrays that are only iterated never pay for it.
+* */
+final class TapeJsonArray extends AbstractJsonArray implements RandomAccess {
+
+    final JsonTape tape;
+    final int node;
+    // Racy, at worst two threads both make the table.
+    private volatile int[] elements;
+
+    TapeJsonArray(JsonTape tape, int node) {
+        this.tape = tape;
+        this.node = node;
+    }
+
+    @Override
+    public JsonValue get(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + size());
+        }
+        return tape.value(elements()[index]);
+    }
+
+    @Override
+    public int size() {
+        return tape.count(node);
+    }
+
+    @Override
+    public Iterator<JsonValue> iterator() {
+        return new Iterator<JsonValue>() {
+            private final int end = tape.tape[node + 1];
+            private int next = node + JsonTape.NODE;
+
+            @Override
+            public boolean hasNext() {
+                return next < end;
+            }
+
+            @Override
+            public JsonValue next() {
+                if (next >= end) {
+                    throw new NoSuchElementException();
+                }
+                int element = next;
+                next = tape.next(element);
+                return tape.value(element);
+            }
+        };
+    }
+
+    private int[] elements() {
+        int[] table = elements;
+        if (table == null) {
+            table = new int[size()];
+            for (int k = 0, p = node + JsonTape.NODE; k < table.length; k++, p = tape.next(p)) {
+                table[k] = p;
+            }
+            elements = table;
+        }
+        return table;
+    }
+
+    @Override
+    public String toString() {
+        return tape.toString(node);
+    }
+}
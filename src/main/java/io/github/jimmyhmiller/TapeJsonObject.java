@@ -0,0 +1,87 @@
+package io.github.jimmyhmiller;
+
+import javax.json.JsonValue;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/*
+* An object on a JsonTape, see JsonTape.root.
+* Nothing is kept but where it is, keys and values are made from the tape as they are read.
+* get walks the members until it finds the key, which for the small objects records are made of is about as fast as hashing it.
+* */
+final class TapeJsonObject extends AbstractJsonObject {
+
+    final JsonTape tape;
+    final int node;
+
+    TapeJsonObject(JsonTape tape, int node) {
+        this.tape = tape;
+        this.node = node;
+    }
+
+    @Override
+    public JsonValue get(Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+        int end = tape.tape[node + 1];
+        for (int p = node + JsonTape.NODE; p < end; p = tape.next(p + JsonTape.NODE)) {
+            if (tape.textEquals(p, (String) key)) {
+                return tape.value(p + JsonTape.NODE);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public int size() {
+        return tape.count(node);
+    }
+
+    @Override
+    public Set<Map.Entry<String, JsonValue>> entrySet() {
+        return new AbstractSet<Map.Entry<String, JsonValue>>() {
+            @Override
+            public Iterator<Map.Entry<String, JsonValue>> iterator() {
+                return new Iterator<Map.Entry<String, JsonValue>>() {
+                    private final int end = tape.tape[node + 1];
+                    private int next = node + JsonTape.NODE;
+
+                    @Override
+                    public boolean hasNext() {
+                        return next < end;
+                    }
+
+                    @Override
+                    public Map.Entry<String, JsonValue> next() {
+                        if (next >= end) {
+                            throw new NoSuchElementException();
+                        }
+                        int key = next;
+                        next = tape.next(key + JsonTape.NODE);
+                        return new AbstractMap.SimpleImmutableEntry<>(tape.string(key), tape.value(key + JsonTape.NODE));
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return TapeJsonObject.this.size();
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        return tape.toString(node);
+    }
+}
@@ -1,14 +1,65 @@
 import com.pholser.junit.quickcheck.ForAll;
 import com.pholser.junit.quickcheck.From;
-import json.JsonTransformer;
+import io.github.jimmyhmiller.IncrementalTransform;
+import io.github.jimmyhmiller.JsonArrayFile;
+import io.github.jimmyhmiller.JsonDepthException;
+import io.github.jimmyhmiller.JsonLines;
+import io.github.jimmyhmiller.JsonPipeline;
+import io.github.jimmyhmiller.JsonTape;
+import io.github.jimmyhmiller.JsonTransformer;
+import io.github.jimmyhmiller.PersistentJsonArray;
+import io.github.jimmyhmiller.PersistentJsonObject;
+import io.github.jimmyhmiller.PipelineMetrics;
+import io.github.jimmyhmiller.Shape;
+import io.github.jimmyhmiller.StageMetrics;
+import org.junit.Test;
 import org.junit.contrib.theories.Theories;
 import org.junit.contrib.theories.Theory;
 import org.junit.runner.RunWith;
 
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonException;
 import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonString;
+import javax.json.JsonStructure;
 import javax.json.JsonValue;
+import javax.json.stream.JsonGenerator;
+import javax.json.stream.JsonParsingException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
 
 
 
@@ -39,4 +90,988 @@ public class JsonTransformerTest {
         JsonTransformer.FunctionFromIntegerToObject g = (Integer i) -> i * 3;
         assert(new JsonTransformer(s1).mapRecursive(f).mapRecursive(g).toJson().equals(new JsonTransformer(s1).mapRecursive((Integer i) -> g.apply((Integer) f.apply(i))).toJson()));
     }
+
+    // Fusing stages into a single traversal must give the same result as running each stage on its own.
+    @Theory public void fusedRecursiveMaps(@ForAll @From(JsonValueGenerator.class) JsonValue s1) {
+        JsonValue unfused = new JsonTransformer(new JsonTransformer(new JsonTransformer(s1)
+                .mapRecursive((JsonObject o) -> JsonTransformer.jsonObjectToBuilder(o).add("seen", true)).toJson())
+                .mapRecursive((String s) -> s.length()).toJson())
+                .mapRecursive((Integer i) -> i % 2 == 0 ? Json.createArrayBuilder().add("even").add(i + 1) : i).toJson();
+        assert(new JsonTransformer(s1)
+                .mapRecursive((JsonObject o) -> JsonTransformer.jsonObjectToBuilder(o).add("seen", true))
+                .mapRecursive((String s) -> s.length())
+                .mapRecursive((Integer i) -> i % 2 == 0 ? Json.createArrayBuilder().add("even").add(i + 1) : i)
+                .toJson().equals(unfused));
+    }
+    @Theory public void fusedShallowStages(@ForAll @From(JsonValueGenerator.class) JsonValue s1) {
+        JsonValue unfused = new JsonTransformer(new JsonTransformer(new JsonTransformer(new JsonTransformer(s1)
+                .mapRecursive((Boolean b) -> !b).toJson())
+                .add("flag", true).toJson())
+                .map((String key, Boolean b) -> key + b).toJson())
+                .map((Integer i) -> i + 1).toJson();
+        assert(new JsonTransformer(s1)
+                .mapRecursive((Boolean b) -> !b)
+                .add("flag", true)
+                .map((String key, Boolean b) -> key + b)
+                .map((Integer i) -> i + 1)
+                .toJson().equals(unfused));
+    }
+    @Theory public void coerceTypesKeepsJsonValues(@ForAll @From(JsonValueGenerator.class) JsonValue s1) {
+        assert(JsonTransformer.coerceTypes(s1) == s1);
+        assert(JsonTransformer.coerceTypes(new JsonTransformer(s1)).equals(s1));
+    }
+
+    // Subtrees a pass leaves alone are handed back as the very same instances.
+    @Theory public void untouchedSubtreesAreShared(@ForAll @From(JsonValueGenerator.class) JsonValue s1) {
+        assert(new JsonTransformer(s1).mapRecursive((String s) -> s).toJson() == s1);
+        assert(new JsonTransformer(s1).mapRecursive((Boolean b) -> b).toJson() == s1);
+        assert(new JsonTransformer(s1).mapRecursive((Integer i) -> i).toJson() == s1);
+        assert(new JsonTransformer(s1).mapRecursive((JsonArray a) -> a).toJson() == s1);
+    }
+
+    // Streaming over parser events has to give the same document as transforming the tree.
+    @Theory public void streamMatchesTree(@ForAll @From(JsonValueGenerator.class) JsonValue s1) {
+        if (!(s1 instanceof JsonStructure)) {
+            return;
+        }
+        JsonTransformer transformer = new JsonTransformer(s1)
+                .mapRecursive((String s) -> s + "!")
+                .mapRecursive((Integer i) -> i % 3 == 0 ? Json.createObjectBuilder().add("three", true) : i)
+                .mapRecursive((JsonArray a) -> Json.createArrayBuilder().add(a.size()))
+                .add("added", true)
+                .map((String key, Boolean b) -> key);
+
+        StringWriter input = new StringWriter();
+        Json.createWriter(input).write((JsonStructure) s1);
+        StringWriter output = new StringWriter();
+        JsonGenerator generator = Json.createGenerator(output);
+        transformer.stream(Json.createParser(new StringReader(input.toString())), generator);
+        generator.close();
+
+        assert(Json.createReader(new StringReader(output.toString())).read().equals(transformer.toJson()));
+    }
+
+    // Branching off a transformer must not change what the original or its siblings do.
+    @Theory public void branchesAreIndependent(@ForAll @From(JsonValueGenerator.class) JsonValue s1) {
+        JsonTransformer base = new JsonTransformer(s1).mapRecursive((Integer i) -> i / 2);
+        JsonValue before = base.toJson();
+        JsonTransformer left = base.mapRecursive((String s) -> "left");
+        JsonTransformer right = base.mapRecursive((Boolean b) -> "right");
+        assert(base.toJson().equals(before));
+        assert(left.toJson().equals(new JsonTransformer(before).mapRecursive((String s) -> "left").toJson()));
+        assert(right.toJson().equals(new JsonTransformer(before).mapRecursive((Boolean b) -> "right").toJson()));
+    }
+    @Theory public void compiledPipelineMatchesToJson(@ForAll @From(JsonValueGenerator.class) JsonValue s1) {
+        JsonPipeline pipeline = new JsonTransformer()
+                .mapRecursive((String s) -> s.toUpperCase())
+                .map((Integer i) -> -i)
+                .compile();
+        assert(pipeline.apply(s1).equals(new JsonTransformer(s1).mapRecursive((String s) -> s.toUpperCase()).map((Integer i) -> -i).toJson()));
+    }
+
+    @Theory public void parallelMatchesSequential(@ForAll @From(JsonValueGenerator.class) JsonValue s1) {
+        JsonTransformer transformer = new JsonTransformer(s1)
+                .mapRecursive((Integer i) -> i + 1)
+                .mapRecursive((JsonObject o) -> JsonTransformer.jsonObjectToBuilder(o).add("size", o.size()).build())
+                .add("done", true);
+        assert(transformer.parallel(ForkJoinPool.commonPool(), 1, 10).toJson().equals(transformer.toJson()));
+    }
+
+    @Test public void deeplyNestedDocumentsDoNotOverflow() {
+        JsonValue json = JsonTransformer.coerceTypes("bottom");
+        for (int i = 0; i < 100000; i++) {
+            json = Json.createArrayBuilder().add(json).build();
+        }
+        JsonValue result = new JsonTransformer(json).mapRecursive((String s) -> s.toUpperCase()).toJson();
+        for (int i = 0; i < 100000; i++) {
+            result = ((JsonArray) result).get(0);
+        }
+        assertEquals("BOTTOM", ((JsonString) result).getString());
+    }
+
+    @Test(expected = JsonDepthException.class)
+    public void maxDepthFailsFast() {
+        JsonValue json = Json.createArrayBuilder().add(Json.createArrayBuilder().add(Json.createArrayBuilder())).build();
+        new JsonTransformer(json).mapRecursive((String s) -> s).maxDepth(2).toJson();
+    }
+
+    // Generators only write objects and arrays at the top level, a stage that turns the root into anything else gets a clear JsonException.
+    @Test public void streamingAScalarRootFails() {
+        JsonTransformer transformer = new JsonTransformer().mapRecursive((JsonArray a) -> a.size() == 1 ? a.get(0) : a);
+        JsonGenerator generator = Json.createGenerator(new StringWriter());
+        try {
+            transformer.stream(Json.createParser(new StringReader("[\"s1\"]")), generator);
+            fail();
+        } catch (JsonException e) {
+            assertEquals(JsonException.class, e.getClass());
+        }
+    }
+
+    @Test public void jsonLinesMatchesToJson() throws IOException {
+        JsonPipeline pipeline = new JsonTransformer().mapRecursive((Integer i) -> i * 2).add("seen", true).compile();
+        StringBuilder input = new StringBuilder();
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            JsonObject line = Json.createObjectBuilder().add("n", i).add("nested", Json.createArrayBuilder().add(i)).build();
+            input.append(line).append(i % 100 == 0 ? "\n\n" : "\n");
+            expected.append(pipeline.apply(line)).append("\n");
+        }
+
+        assertEquals(expected.toString(), runLines(new JsonLines(pipeline).threads(4).batchSize(7), input.toString()));
+
+        String[] unordered = runLines(new JsonLines(pipeline).threads(4).batchSize(7).unordered(), input.toString()).split("\n");
+        String[] sorted = expected.toString().split("\n");
+        Arrays.sort(unordered);
+        Arrays.sort(sorted);
+        assertEquals(Arrays.asList(sorted), Arrays.asList(unordered));
+    }
+
+    @Test(expected = JsonException.class)
+    public void jsonLinesReportsBadLines() throws IOException {
+        runLines(new JsonLines(Function.identity()).threads(2).batchSize(1), "{}\n{\n[]\n");
+    }
+
+    // An Error on the reader thread reaches the caller instead of leaving it waiting for batches that never come.
+    @Test(expected = StackOverflowError.class, timeout = 10000)
+    public void jsonLinesReportsReaderErrors() throws IOException {
+        InputStream in = new InputStream() {
+            @Override
+            public int read() {
+                throw new StackOverflowError();
+            }
+        };
+        new JsonLines(Function.identity()).threads(2).transform(in, new ByteArrayOutputStream());
+    }
+
+    private static String runLines(JsonLines lines, String input) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        lines.transform(new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8)), out);
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Test public void arrayFileMatchesToJson() throws IOException {
+        JsonPipeline pipeline = new JsonTransformer().mapRecursive((String s) -> s + "!").add("seen", true).compile();
+        JsonArrayBuilder input = Json.createArrayBuilder();
+        JsonArrayBuilder expected = Json.createArrayBuilder();
+        for (int i = 0; i < 500; i++) {
+            JsonObject element = Json.createObjectBuilder()
+                    .add("tricky", "],[{\"\\" + i)
+                    .add("nested", Json.createArrayBuilder().add(i).add(Json.createObjectBuilder().add("a", "b")))
+                    .build();
+            input.add(element);
+            expected.add(pipeline.apply(element));
+        }
+        JsonArray expectedArray = expected.build();
+        String text = input.build().toString();
+
+        assertEquals(expectedArray, Json.createReader(new StringReader(runArrayFile(new JsonArrayFile(pipeline).threads(3).chunkSize(100), text))).read());
+        assertEquals(expectedArray, Json.createReader(new StringReader(runArrayFile(new JsonArrayFile(pipeline).chunkSize(1 << 20), " \n" + text + "\n"))).read());
+        assertEquals("[]", runArrayFile(new JsonArrayFile(pipeline), " [ ] "));
+    }
+
+    @Test(expected = JsonException.class)
+    public void arrayFileRejectsTrailingCommas() throws IOException {
+        runArrayFile(new JsonArrayFile(Function.identity()), "[1, 2,]");
+    }
+
+    private static String runArrayFile(JsonArrayFile file, String input) throws IOException {
+        Path path = Files.createTempFile("json-array-file", ".json");
+        try {
+            Files.write(path, input.getBytes(StandardCharsets.UTF_8));
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            file.transform(path, out);
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test public void numbersKeepFullPrecision() {
+        JsonObject json = Json.createObjectBuilder()
+                .add("id", 9007199254740993L)
+                .add("price", new BigDecimal("19.990000000000000000001"))
+                .add("ratio", 0.25)
+                .add("huge", new BigDecimal("123456789012345678901234567890"))
+                .build();
+
+        JsonObject ids = (JsonObject) new JsonTransformer(json).mapRecursive((long l) -> l + 1).toJson();
+        assertEquals(9007199254740994L, ids.getJsonNumber("id").longValueExact());
+        assertSame(json.get("price"), ids.get("price"));
+        assertSame(json.get("huge"), ids.get("huge"));
+
+        JsonObject prices = (JsonObject) new JsonTransformer(json)
+                .map((String key, BigDecimal d) -> key.equals("price") ? d.multiply(BigDecimal.TEN) : d)
+                .toJson();
+        assertEquals(new BigDecimal("199.900000000000000000010"), prices.getJsonNumber("price").bigDecimalValue());
+        assertSame(json.get("id"), prices.get("id"));
+
+        JsonObject halved = (JsonObject) new JsonTransformer(json).mapRecursiveIf((double d) -> d < 1, (double d) -> d / 2).toJson();
+        assertEquals(0.125, halved.getJsonNumber("ratio").doubleValue(), 0);
+        assertEquals(json, new JsonTransformer(halved).mapRecursiveIf((double d) -> d < 1, (double d) -> d * 2).toJson());
+        assertEquals(Json.createObjectBuilder().add("n", 3L).build(), new JsonTransformer(Json.createObjectBuilder().build()).add("n", 3L).toJson());
+    }
+
+    @Test public void stringsFromLambdasBehaveLikeJavaxStrings() {
+        JsonObject json = Json.createObjectBuilder().add("s", "a").add("t", "b").build();
+        JsonObject quoted = (JsonObject) new JsonTransformer(json).mapRecursive((String s) -> s + "\"\\\n\u0001\u00e9").toJson();
+        JsonObject expected = Json.createObjectBuilder().add("s", "a\"\\\n\u0001\u00e9").add("t", "b\"\\\n\u0001\u00e9").build();
+        assertEquals(expected, quoted);
+        assertEquals(quoted, expected);
+        assertEquals(expected.get("s").toString(), quoted.get("s").toString());
+        assertEquals(expected.get("s").hashCode(), quoted.get("s").hashCode());
+        assertEquals(expected.toString(), quoted.toString());
+    }
+
+    @Test public void pathsOnlyTouchWhatTheyMatch() {
+        JsonObject json = Json.createObjectBuilder()
+                .add("orders", Json.createArrayBuilder()
+                        .add(Json.createObjectBuilder().add("items", Json.createArrayBuilder()
+                                .add(Json.createObjectBuilder().add("price", 10).add("name", "a"))
+                                .add(Json.createObjectBuilder().add("price", 20).add("name", "b"))))
+                        .add(Json.createObjectBuilder().add("items", Json.createArrayBuilder())))
+                .add("customer", Json.createObjectBuilder().add("price", 5).add("odd key", "x"))
+                .build();
+
+        JsonObject doubled = (JsonObject) new JsonTransformer(json).mapAt("$.orders[*].items[*].price", (long p) -> p * 2).toJson();
+        assertEquals(40, doubled.getJsonArray("orders").getJsonObject(0).getJsonArray("items").getJsonObject(1).getInt("price"));
+        assertSame(json.get("customer"), doubled.get("customer"));
+        assertSame(json.getJsonArray("orders").get(1), doubled.getJsonArray("orders").get(1));
+
+        JsonObject first = (JsonObject) new JsonTransformer(json)
+                .mapAt("$.orders[0].items[1].name", (String n) -> n.toUpperCase())
+                .mapAt("$['customer']['odd key']", (String n) -> n + "!")
+                .addAt("$.orders[*]", "seen", true)
+                .toJson();
+        JsonObject order = first.getJsonArray("orders").getJsonObject(0);
+        assertEquals("B", order.getJsonArray("items").getJsonObject(1).getString("name"));
+        assertEquals("a", order.getJsonArray("items").getJsonObject(0).getString("name"));
+        assertEquals("x!", first.getJsonObject("customer").getString("odd key"));
+        assertEquals(true, first.getJsonArray("orders").getJsonObject(1).getBoolean("seen"));
+
+        JsonTransformer missing = new JsonTransformer(json).mapAt("$.nothing.here[3]", (String n) -> n + "!");
+        assertSame(json, missing.toJson());
+
+        StringWriter out = new StringWriter();
+        JsonGenerator generator = Json.createGenerator(out);
+        new JsonTransformer().mapAt("$.orders[*].items[*].price", (long p) -> p * 2).stream(Json.createParser(new StringReader(json.toString())), generator);
+        generator.close();
+        assertEquals(doubled, Json.createReader(new StringReader(out.toString())).read());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidPathsFailWhenAdded() {
+        new JsonTransformer().mapAt("$.orders[x]", (String s) -> s);
+    }
+
+    @Theory public void persistentMatchesDefault(@ForAll @From(JsonValueGenerator.class) JsonValue s1) {
+        JsonTransformer transformer = new JsonTransformer(s1)
+                .mapRecursive((String s) -> s.length() > 3 ? s.substring(3) : s)
+                .mapRecursive((JsonObject o) -> o.size() > 1 ? JsonTransformer.jsonObjectToBuilder(o).add("big", true) : o)
+                .add("added", "yes")
+                .map((String key, String value) -> key + value);
+        assertEquals(transformer.toJson(), transformer.persistent().toJson());
+        assertEquals(transformer.toJson().toString(), transformer.persistent().toJson().toString());
+    }
+
+    @Test public void persistentObjectsBehaveLikeMaps() {
+        Random random = new Random(42);
+        // "Aa" and "BB" have the same hashCode, so keys built from them collide.
+        String[] parts = {"Aa", "BB", "x", "key"};
+        Map<String, JsonValue> model = new LinkedHashMap<>();
+        PersistentJsonObject object = PersistentJsonObject.empty();
+        for (int step = 0; step < 20000; step++) {
+            String key = parts[random.nextInt(4)] + parts[random.nextInt(4)] + random.nextInt(step < 10000 ? 600 : 60);
+            if (random.nextInt(4) == 0) {
+                model.remove(key);
+                object = object.without(key);
+            } else {
+                JsonValue value = JsonTransformer.coerceTypes(step);
+                model.put(key, value);
+                object = object.with(key, value);
+            }
+            if (step % 1000 == 0) {
+                JsonObjectBuilder expected = Json.createObjectBuilder();
+                model.forEach(expected::add);
+                JsonObject built = expected.build();
+                assertEquals(built, object);
+                assertEquals(object, built);
+                assertEquals(built.hashCode(), object.hashCode());
+                assertEquals(built.toString(), object.toString());
+                assertEquals(new ArrayList<>(model.keySet()), new ArrayList<>(object.keySet()));
+            }
+            assertEquals(model.get(key), object.get(key));
+            assertEquals(model.size(), object.size());
+        }
+        assertSame(object, PersistentJsonObject.of(object));
+    }
+
+    @Test public void persistentArraysBehaveLikeLists() {
+        Random random = new Random(7);
+        List<JsonValue> model = new ArrayList<>();
+        PersistentJsonArray array = PersistentJsonArray.empty();
+        for (int step = 0; step < 40000; step++) {
+            int choice = random.nextInt(10);
+            JsonValue value = JsonTransformer.coerceTypes("v" + step);
+            if (choice < 7 || model.isEmpty()) {
+                model.add(value);
+                array = array.plus(value);
+            } else if (choice < 9) {
+                int index = random.nextInt(model.size());
+                model.set(index, value);
+                array = array.with(index, value);
+            } else {
+                int index = random.nextInt(4) == 0 ? random.nextInt(model.size()) : model.size() - 1;
+                model.remove(index);
+                array = array.without(index);
+            }
+            if (step % 2000 == 0) {
+                JsonArrayBuilder expected = Json.createArrayBuilder();
+                model.forEach(expected::add);
+                JsonArray built = expected.build();
+                assertEquals(built, array);
+                assertEquals(built.toString(), array.toString());
+                assertEquals(array, PersistentJsonArray.of(built));
+            }
+        }
+        assertEquals(model, array);
+    }
+
+    @Theory public void writeToMatchesToString(@ForAll @From(JsonValueGenerator.class) JsonValue s1) {
+        JsonTransformer transformer = new JsonTransformer(s1).mapRecursive((String s) -> s + "\u00e9");
+        // Whoever hands in out closes it.
+        StringWriter writer = new StringWriter() {
+            @Override
+            public void close() {
+                throw new AssertionError("writeTo closed its writer");
+            }
+        };
+        transformer.writeTo(writer);
+        assertEquals(transformer.toJson().toString(), writer.toString());
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream() {
+            @Override
+            public void close() {
+                throw new AssertionError("writeTo closed its stream");
+            }
+        };
+        transformer.writeTo(bytes, false);
+        assertEquals(writer.toString(), new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test public void pprintAnyValue() {
+        PrintStream stdout = System.out;
+        ByteArrayOutputStream printed = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(printed));
+        try {
+            new JsonTransformer(Json.createArrayBuilder().add(1).add(Json.createObjectBuilder().add("a", "b")).build()).pprint();
+            new JsonTransformer(JsonTransformer.coerceTypes("top")).pprint().print();
+        } finally {
+            System.setOut(stdout);
+        }
+        String output = new String(printed.toByteArray(), StandardCharsets.UTF_8);
+        assertEquals("[1,{\"a\":\"b\"}]", output.substring(0, output.indexOf("\"top\"")).replaceAll("\\s", ""));
+        assertEquals("\"top\"\n\"top\"\n", output.substring(output.indexOf("\"top\"")).replace(System.lineSeparator(), "\n"));
+    }
+
+    @Theory public void listenersDontChangeResults(@ForAll @From(JsonValueGenerator.class) JsonValue s1) {
+        List<PipelineMetrics> runs = new ArrayList<>();
+        JsonTransformer transformer = new JsonTransformer(s1)
+                .mapRecursive((String s) -> s + "!")
+                .mapRecursive((JsonArray a) -> a.isEmpty() ? JsonValue.NULL : a)
+                .add("added", true)
+                .mapAt("$.*", (Integer i) -> i + 1);
+        assertEquals(transformer.toJson(), transformer.listener(runs::add).toJson());
+        assertEquals(1, runs.size());
+        assertEquals(4, runs.get(0).getStages().size());
+    }
+
+    @Test public void listenersCountEveryStage() {
+        JsonValue json = Json.createObjectBuilder()
+                .add("name", "a")
+                .add("tags", Json.createArrayBuilder().add("b").add(1).add(2))
+                .add("nested", Json.createObjectBuilder().add("count", 3))
+                .build();
+        List<PipelineMetrics> runs = new ArrayList<>();
+        new JsonTransformer(json)
+                .mapRecursive((String s) -> s.toUpperCase())
+                .mapRecursive((long l) -> l)
+                .add("version", 2)
+                .mapAt("$.nested.count", (Integer i) -> i * 10)
+                .listener(runs::add)
+                .toJson();
+        PipelineMetrics metrics = runs.get(0);
+        List<StageMetrics> stages = metrics.getStages();
+        // The root, name, tags and its three elements, nested and count.
+        assertEquals(8, stages.get(0).getNodesVisited());
+        assertEquals(2, stages.get(0).getLambdaInvocations());
+        assertEquals(2, stages.get(0).getNodesReplaced());
+        assertEquals(3, stages.get(1).getLambdaInvocations());
+        assertEquals(0, stages.get(1).getNodesReplaced());
+        assertEquals(1, stages.get(3).getLambdaInvocations());
+        assertEquals(2, metrics.getPasses().size());
+        // tags and the root in the first pass, nested and the root for the path.
+        assertEquals(4, metrics.getContainersRebuilt());
+        assertEquals(3, metrics.getNodesReplaced());
+        assertEquals(Long.valueOf(8 + 3), metrics.toMap().get("nodesVisited"));
+        assertEquals("add version", stages.get(2).getDescription());
+
+        // Async stages are counted too, they only ever see values of their type.
+        runs.clear();
+        new JsonTransformer(json)
+                .mapRecursiveAsync((Integer i) -> CompletableFuture.completedFuture(i == 1 ? 10 : i))
+                .listener(runs::add)
+                .toJson();
+        StageMetrics async = runs.get(0).getStages().get(0);
+        assertEquals(3, async.getNodesVisited());
+        assertEquals(3, async.getLambdaInvocations());
+        assertEquals(1, async.getNodesReplaced());
+    }
+
+    // Filters fused with maps and adds have to give what running them one at a time would, tree, persistent or streamed.
+    @Theory public void fusedFilters(@ForAll @From(JsonValueGenerator.class) JsonValue s1) {
+        JsonValue unfused = s1;
+        unfused = new JsonTransformer(unfused).mapRecursive((String s) -> s.length() > 2 ? s : Json.createObjectBuilder().add("short", s)).toJson();
+        unfused = new JsonTransformer(unfused).filterRecursive((Integer i) -> i % 3 != 0).toJson();
+        unfused = new JsonTransformer(unfused).add("x", 3).toJson();
+        unfused = new JsonTransformer(unfused).filter((String key, Boolean b) -> b).toJson();
+        unfused = new JsonTransformer(unfused).add("x", 4).toJson();
+        unfused = new JsonTransformer(unfused).filter((JsonObject o) -> o.size() > 1).toJson();
+        unfused = new JsonTransformer(unfused).remove("short").toJson();
+        unfused = new JsonTransformer(unfused).filterRecursive((JsonArray a) -> !a.isEmpty()).toJson();
+        unfused = new JsonTransformer(unfused).removeRecursive("short").toJson();
+
+        JsonTransformer fused = new JsonTransformer(s1)
+                .mapRecursive((String s) -> s.length() > 2 ? s : Json.createObjectBuilder().add("short", s))
+                .filterRecursive((Integer i) -> i % 3 != 0)
+                .add("x", 3)
+                .filter((String key, Boolean b) -> b)
+                .add("x", 4)
+                .filter((JsonObject o) -> o.size() > 1)
+                .remove("short")
+                .filterRecursive((JsonArray a) -> !a.isEmpty())
+                .removeRecursive("short");
+        assertEquals(unfused.toString(), fused.toJson().toString());
+        assertEquals(unfused.toString(), fused.persistent().toJson().toString());
+        assertEquals(unfused, fused.lazy().toJson());
+        assertEquals(unfused, fused.intern(4, 3).toJson());
+        if (s1 instanceof JsonStructure) {
+            StringWriter output = new StringWriter();
+            JsonGenerator generator = Json.createGenerator(output);
+            fused.stream(Json.createParser(new StringReader(s1.toString())), generator);
+            generator.close();
+            assertEquals(unfused, Json.createReader(new StringReader(output.toString())).read());
+        }
+    }
+
+    @Test public void filtersPruneBeforeDescending() {
+        JsonObject debug = Json.createObjectBuilder().add("trace", Json.createArrayBuilder().add("a").add("b")).build();
+        JsonObject kept = Json.createObjectBuilder().add("name", "kept").build();
+        JsonValue json = Json.createArrayBuilder()
+                .add(Json.createObjectBuilder().add("debug", debug).add("data", kept))
+                .add(debug)
+                .add(kept)
+                .build();
+        List<String> seen = new ArrayList<>();
+        JsonArray result = (JsonArray) new JsonTransformer(json)
+                .filterRecursive((JsonObject o) -> !o.containsKey("trace"))
+                .mapRecursive((String s) -> { seen.add(s); return s; })
+                .toJson();
+        assertEquals(Arrays.asList("kept", "kept"), seen);
+        assertEquals(2, result.size());
+        assertSame(kept, result.getJsonObject(0).get("data"));
+        assertSame(kept, result.get(1));
+
+        JsonObject removed = (JsonObject) new JsonTransformer(((JsonArray) json).get(0)).remove("debug").toJson();
+        assertEquals(Json.createObjectBuilder().add("data", kept).build(), removed);
+        assertEquals(Json.createArrayBuilder().add(Json.createObjectBuilder().add("data", kept)).add(debug).add(kept).build(),
+                new JsonTransformer(json).removeRecursive("debug").toJson());
+    }
+
+    // Folding over the document has to see exactly what a recursive map would, in the same order.
+    @Theory public void reduceSeesWhatMapSees(@ForAll @From(JsonValueGenerator.class) JsonValue s1) {
+        List<String> mapped = new ArrayList<>();
+        new JsonTransformer(s1).mapRecursive((String s) -> { mapped.add(s); return s; }).toJson();
+        List<String> reduced = new JsonTransformer(s1).reduceRecursive(new ArrayList<String>(), (List<String> acc, String s) -> {
+            acc.add(s);
+            return acc;
+        });
+        assertEquals(mapped, reduced);
+        long nodes = new JsonTransformer(s1).reduceRecursive(0L, (Long count, JsonValue j) -> count + 1);
+        long containers = new JsonTransformer(s1).reduceRecursive(0L, (Long count, JsonObject o) -> count + 1)
+                + new JsonTransformer(s1).reduceRecursive(0L, (Long count, JsonArray a) -> count + 1);
+        long children = new JsonTransformer(s1).reduceRecursive(0L, (Long count, JsonObject o) -> count + o.size())
+                + new JsonTransformer(s1).reduceRecursive(0L, (Long count, JsonArray a) -> count + a.size());
+        assert(containers <= nodes);
+        assertEquals(nodes, children + 1);
+    }
+
+    @Test public void reduceFoldsWithoutRebuilding() {
+        JsonValue json = Json.createObjectBuilder()
+                .add("a", 1)
+                .add("b", Json.createArrayBuilder().add(2).add(new BigDecimal("2.5")).add("x"))
+                .add("c", Json.createObjectBuilder().add("d", 4).add("e", true))
+                .build();
+        assertEquals(7L, new JsonTransformer(json).reduceRecursive(0L, (long sum, long n) -> sum + n));
+        assertEquals(9.5, new JsonTransformer(json).reduceRecursive(0.0, (double sum, double n) -> sum + n), 0);
+        assertEquals(1L, new JsonTransformer(json).reduce(0L, (long sum, long n) -> sum + n));
+        assertEquals(new HashSet<>(Arrays.asList("a", "b", "c", "d", "e")),
+                new JsonTransformer(json).reduceRecursive(new HashSet<String>(), (Set<String> keys, JsonObject o) -> {
+                    keys.addAll(o.keySet());
+                    return keys;
+                }));
+        assertEquals(Integer.valueOf(3), new JsonTransformer(json).reduce(0, (Integer count, JsonValue j) -> count + 1));
+        // Stages run first, the fold sees their result.
+        assertEquals(Integer.valueOf(2), new JsonTransformer(json).mapRecursive((Integer i) -> i * 2).reduce(0, (Integer sum, Integer i) -> sum + i));
+    }
+
+    @Theory public void lazyMatchesEager(@ForAll @From(JsonValueGenerator.class) JsonValue s1) {
+        JsonTransformer transformer = new JsonTransformer(s1)
+                .mapRecursive((String s) -> s.length() > 3 ? Json.createArrayBuilder().add(s.length()).add(true).build() : s)
+                .mapRecursive((Integer i) -> i + 1)
+                .map((String key, Integer i) -> i * 2)
+                .add("added", "value")
+                .mapRecursive((JsonObject o) -> o.size() > 2 ? Json.createObjectBuilder().add("big", o.size()).build() : o)
+                .mapAt("$.*", (Boolean b) -> !b)
+                .map((JsonArray a) -> a.size());
+        JsonValue eager = transformer.toJson();
+        JsonValue lazy = transformer.lazy().toJson();
+        assertEquals(eager, lazy);
+        assertEquals(eager.toString(), lazy.toString());
+        assertEquals(eager.hashCode(), lazy.hashCode());
+    }
+
+    @Test public void lazyViewsOnlyTransformWhatIsRead() {
+        JsonArrayBuilder users = Json.createArrayBuilder();
+        for (int i = 0; i < 100; i++) {
+            users.add(Json.createObjectBuilder().add("name", "user" + i).add("tags", Json.createArrayBuilder().add("a").add("b")));
+        }
+        JsonObject json = Json.createObjectBuilder().add("users", users).add("count", 100).build();
+        List<String> seen = new ArrayList<>();
+        JsonTransformer transformer = new JsonTransformer(json)
+                .mapRecursive((String s) -> { seen.add(s); return s.toUpperCase(); })
+                .add("version", 2)
+                .lazy();
+        JsonObject result = (JsonObject) transformer.toJson();
+        assertEquals(0, seen.size());
+        assertEquals(3, result.size());
+        assertEquals(2, result.getInt("version"));
+        JsonObject user = result.getJsonArray("users").getJsonObject(42);
+        assertEquals("USER42", user.getString("name"));
+        assertEquals(Arrays.asList("user42"), seen);
+        // Read values are kept, reading them again transforms nothing.
+        assertSame(user, result.getJsonArray("users").get(42));
+        assertEquals(Arrays.asList("user42"), seen);
+        assertEquals(transformer.toJson(), new JsonTransformer(json).mapRecursive((String s) -> s.toUpperCase()).add("version", 2).toJson());
+
+        seen.clear();
+        JsonArray filtered = (JsonArray) new JsonTransformer(json.getJsonArray("users"))
+                .filterRecursive((String s) -> !s.equals("a"))
+                .mapRecursive((String s) -> { seen.add(s); return s; })
+                .lazy()
+                .toJson();
+        assertEquals(100, filtered.size());
+        assertEquals(0, seen.size());
+        assertEquals(Json.createArrayBuilder().add("b").build(), filtered.getJsonObject(7).getJsonArray("tags"));
+        assertEquals(Arrays.asList("b"), seen);
+    }
+
+    @Test public void internedKeysAndStringsAreShared() {
+        JsonArrayBuilder records = Json.createArrayBuilder();
+        for (int i = 0; i < 50; i++) {
+            records.add(Json.createObjectBuilder()
+                    .add(new String("id"), i)
+                    .add(new String("status"), new String(i % 2 == 0 ? "active" : "closed"))
+                    .add(new String("description"), "a description that is too long to be worth pooling " + (i % 2)));
+        }
+        JsonArray json = records.build();
+        JsonTransformer transformer = new JsonTransformer(json)
+                .mapRecursive((Integer i) -> i + 1)
+                .mapRecursive((String s) -> s.equals("closed") ? "CLOSED" : s)
+                .intern(100, 12);
+        JsonArray result = (JsonArray) transformer.toJson();
+        JsonObject first = result.getJsonObject(0);
+        JsonObject second = result.getJsonObject(1);
+        for (int i = 2; i < result.size(); i++) {
+            JsonObject record = result.getJsonObject(i);
+            assertEquals(i + 1, record.getInt("id"));
+            Iterator<String> keys = record.keySet().iterator();
+            for (String key : first.keySet()) {
+                assertSame(key, keys.next());
+            }
+            JsonObject same = i % 2 == 0 ? first : second;
+            assertSame(same.get("status"), record.get("status"));
+            assertEquals(same.get("description"), record.get("description"));
+            assert(same.get("description") != record.get("description"));
+        }
+        assertEquals(new JsonTransformer(json).mapRecursive((String s) -> s + "!").toJson(),
+                new JsonTransformer(json).mapRecursive((String s) -> s + "!").intern().toJson());
+
+        // Path passes pool what goes into the containers they rebuild too.
+        JsonArray pathed = (JsonArray) new JsonTransformer(json).mapAt("$[*].id", (Integer i) -> i + 1).intern(100, 12).toJson();
+        for (int i = 2; i < pathed.size(); i++) {
+            JsonObject record = pathed.getJsonObject(i);
+            Iterator<String> keys = record.keySet().iterator();
+            for (String key : pathed.getJsonObject(0).keySet()) {
+                assertSame(key, keys.next());
+            }
+            assertSame(pathed.getJsonObject(i % 2).get("status"), record.get("status"));
+        }
+    }
+
+    // The pool outlives every document run through it, a string it kept off a tape would keep the whole tape.
+    @Test public void internedStringsDontKeepTapes() {
+        JsonArrayBuilder records = Json.createArrayBuilder();
+        for (int i = 0; i < 10; i++) {
+            records.add(Json.createObjectBuilder().add("id", i).add("status", i % 2 == 0 ? "active" : "closed"));
+        }
+        JsonArray json = records.build();
+        JsonPipeline pipeline = new JsonTransformer().mapRecursive((Integer i) -> i + 1).intern().compile();
+        JsonArray first = (JsonArray) pipeline.apply(JsonTape.parse(json.toString()).root());
+        JsonArray second = (JsonArray) pipeline.apply(JsonTape.parse(json.toString()).root());
+        for (int i = 0; i < json.size(); i++) {
+            JsonValue status = second.getJsonObject(i).get("status");
+            assertEquals(json.getJsonObject(i).get("status"), status);
+            assertSame(first.getJsonObject(i).get("status"), status);
+            assert(!status.getClass().getName().contains("Tape")) : status.getClass().getName();
+        }
+    }
+
+    @Theory public void memoizedMatchesPlain(@ForAll @From(JsonValueGenerator.class) JsonValue s1) {
+        JsonTransformer plain = new JsonTransformer(s1)
+                .mapRecursive((String s) -> s.length() > 3 ? s.substring(1) : s)
+                .filterRecursive((Integer i) -> i % 2 == 0)
+                .map((String key, Boolean b) -> key.length() > 2 && b);
+        JsonTransformer memoized = new JsonTransformer(s1)
+                .mapRecursive((String s) -> s.length() > 3 ? s.substring(1) : s).memoize(3)
+                .filterRecursive((Integer i) -> i % 2 == 0).memoize(100)
+                .map((String key, Boolean b) -> key.length() > 2 && b).memoize(1);
+        assertEquals(plain.toJson(), memoized.toJson());
+        assertEquals(plain.toJson(), memoized.parallel(ForkJoinPool.commonPool(), 1, 8).toJson());
+    }
+
+    // A document on a tape reads back as the tree it was parsed from, and transforms and writes the same.
+    @Theory public void tapeMatchesTree(@ForAll @From(JsonValueGenerator.class) JsonValue s1) {
+        JsonTape tape = JsonTape.parse(s1.toString());
+        assertEquals(s1, tape.root());
+        assertEquals(s1.toString(), tape.toString());
+        JsonTransformer transformer = new JsonTransformer(s1)
+                .mapRecursive((String s) -> s.length() > 3 ? s.substring(1) : s)
+                .filterRecursive((Integer i) -> i % 2 == 0)
+                .add("x", 3);
+        JsonValue expected = transformer.toJson();
+        JsonTape transformed = new JsonTransformer(tape.root())
+                .mapRecursive((String s) -> s.length() > 3 ? s.substring(1) : s)
+                .filterRecursive((Integer i) -> i % 2 == 0)
+                .add("x", 3)
+                .toTape();
+        assertEquals(expected, transformed.root());
+        assertEquals(expected, JsonTape.of(expected).root());
+        assertEquals(expected, JsonTape.parse(transformed.toString()).root());
+    }
+
+    @Test public void tapesParseLikeJavaxJson() {
+        String json = "{\"s\":\"a\\\"b\\\\c\\u00e9\\n\\u0001\",\"n\":[0,-12,1.50,2e3,-0.5E-2,123456789012345678901234],"
+                + "\"o\":{},\"a\":[],\"b\":[true,false,null]}";
+        JsonTape tape = JsonTape.parse(new StringReader(" \n" + json + "\t"));
+        JsonObject root = (JsonObject) tape.root();
+        assertEquals(Json.createReader(new StringReader(json)).read(), root);
+        assertEquals("a\"b\\c\u00e9\n\u0001", root.getString("s"));
+        assertEquals(new BigDecimal("123456789012345678901234"), root.getJsonArray("n").getJsonNumber(5).bigDecimalValue());
+        assertEquals(-12, root.getJsonArray("n").getInt(1));
+        assertEquals(root.get("s").toString(), Json.createObjectBuilder().add("s", root.getString("s")).build().get("s").toString());
+        assertEquals(JsonValue.NULL, root.getJsonArray("b").get(2));
+        for (String invalid : Arrays.asList("", "{", "[1,]", "{\"a\" 1}", "[01]", "[1.]", "[\"\t\"]", "[tru]", "[1] 2", "{\"a\":1,}", "[\"\\x\"]",
+                "[\"\\u\uff10\uff10\uff14\uff11\"]")) {
+            try {
+                JsonTape.parse(invalid);
+                throw new AssertionError("Parsed " + invalid);
+            } catch (JsonParsingException e) {
+                // Expected.
+            }
+        }
+        StringBuilder deep = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            deep.append('[');
+        }
+        for (int i = 0; i < 100000; i++) {
+            deep.append(']');
+        }
+        assertEquals(deep.toString(), JsonTape.parse(deep.toString()).toString());
+    }
+
+    @Test public void memoizedLambdasRunOncePerValue() {
+        JsonArrayBuilder builder = Json.createArrayBuilder();
+        for (int i = 0; i < 1000; i++) {
+            builder.add(Json.createObjectBuilder().add("status", new String(i % 3 == 0 ? "open" : "closed")).add("id", i % 10));
+        }
+        JsonArray json = builder.build();
+        List<String> seen = new ArrayList<>();
+        List<PipelineMetrics> runs = new ArrayList<>();
+        JsonPipeline pipeline = new JsonTransformer()
+                .mapRecursive((String s) -> { seen.add(s); return s.toUpperCase(); })
+                .memoize(10)
+                .mapRecursive((long n) -> n)
+                .memoize(10)
+                .listener(runs::add)
+                .compile();
+        JsonArray result = (JsonArray) pipeline.apply(json);
+        assertEquals("OPEN", result.getJsonObject(999).getString("status"));
+        assertEquals(Arrays.asList("open", "closed"), seen);
+        pipeline.apply(json);
+        assertEquals(Arrays.asList("open", "closed"), seen);
+
+        StageMetrics strings = runs.get(0).getStages().get(0);
+        assertEquals(998, strings.getCacheHits());
+        assertEquals(2, strings.getCacheMisses());
+        assertEquals(1000, runs.get(1).getStages().get(0).getCacheHits());
+        assertEquals(Long.valueOf(10), runs.get(0).toMap().get("stage.1.cacheMisses"));
+        // The lambda hands back what it was given, so nothing is replaced however often the cache answers.
+        assertEquals(0, runs.get(1).getStages().get(1).getNodesReplaced());
+        assertSame(json, new JsonTransformer(json).mapRecursive((String s) -> s).memoize(1).toJson());
+
+        // Too small to hold both values, so every open evicts closed and the other way around. Only a repeat right after is a hit.
+        seen.clear();
+        new JsonTransformer(json).mapRecursive((String s) -> { seen.add(s); return s; }).memoize(1).toJson();
+        assertEquals(334 + 333, seen.size());
+    }
+
+    @Theory public void asyncMatchesSync(@ForAll @From(JsonValueGenerator.class) JsonValue s1) {
+        JsonValue sync = new JsonTransformer(s1)
+                .mapRecursive((String s) -> s + "!")
+                .mapRecursive((Integer i) -> i * 2)
+                .map((String s) -> s + "?")
+                .add("after", true)
+                .toJson();
+        JsonTransformer async = new JsonTransformer(s1)
+                .mapRecursiveAsync((String s) -> CompletableFuture.completedFuture(s + "!"))
+                .mapRecursiveAsync((Integer i) -> CompletableFuture.supplyAsync(() -> i * 2))
+                .mapAsync((String s) -> CompletableFuture.completedFuture(s + "?"))
+                .add("after", true)
+                .maxConcurrency(3);
+        assertEquals(sync, async.toJson());
+        assertEquals(sync, async.toJsonAsync(Runnable::run).join());
+        assertEquals(sync, async.lazy().toJsonAsync(ForkJoinPool.commonPool()).join());
+    }
+
+    // Containers an async pass rebuilds are persistent and pooled like the ones every other pass rebuilds.
+    @Test public void asyncPassesKeepPersistentAndInterned() {
+        JsonValue json = Json.createObjectBuilder()
+                .add("a", Json.createObjectBuilder().add("name", "x").add("n", 1))
+                .add("list", Json.createArrayBuilder().add("y").add(2))
+                .build();
+        JsonObject result = (JsonObject) new JsonTransformer(json)
+                .mapRecursiveAsync((String s) -> CompletableFuture.completedFuture(s + "!"))
+                .mapAsync((Integer i) -> CompletableFuture.completedFuture(i))
+                .persistent()
+                .toJson();
+        assert(result instanceof PersistentJsonObject);
+        assert(result.get("a") instanceof PersistentJsonObject);
+        assert(result.get("list") instanceof PersistentJsonArray);
+        assertEquals("x!", result.getJsonObject("a").getString("name"));
+
+        JsonTransformer interned = new JsonTransformer().mapRecursiveAsync((String s) -> CompletableFuture.completedFuture("same")).intern();
+        JsonObject first = (JsonObject) interned.compile().apply(json);
+        JsonObject second = (JsonObject) interned.compile().apply(json);
+        assertSame(first.getJsonObject("a").get("name"), first.getJsonArray("list").get(0));
+        assertSame(first.getJsonObject("a").get("name"), second.getJsonObject("a").get("name"));
+    }
+
+    @Test public void asyncLambdasOverlapUpToTheLimit() throws Exception {
+        JsonArrayBuilder ids = Json.createArrayBuilder();
+        for (int i = 0; i < 40; i++) {
+            ids.add(Json.createObjectBuilder().add("user", "id" + i).add("group", Json.createArrayBuilder().add("id" + (i % 3))));
+        }
+        JsonArray json = ids.build();
+        // Stands in for a remote service, answers every lookup 20ms later.
+        ScheduledExecutorService service = Executors.newScheduledThreadPool(2);
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger mostInFlight = new AtomicInteger();
+        try {
+            JsonTransformer transformer = new JsonTransformer(json)
+                    .mapRecursiveAsync((String id) -> {
+                        mostInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                        CompletableFuture<String> name = new CompletableFuture<>();
+                        service.schedule(() -> {
+                            inFlight.decrementAndGet();
+                            name.complete("name of " + id);
+                        }, 20, TimeUnit.MILLISECONDS);
+                        return name;
+                    })
+                    .maxConcurrency(8);
+            JsonArray result = (JsonArray) transformer.toJsonAsync().get(10, TimeUnit.SECONDS);
+            assertEquals(new JsonTransformer(json).mapRecursive((String id) -> "name of " + id).toJson(), result);
+            assertEquals(8, mostInFlight.get());
+
+            JsonTransformer failing = new JsonTransformer(json).mapRecursiveAsync((String id) -> {
+                CompletableFuture<String> name = new CompletableFuture<>();
+                name.completeExceptionally(new IllegalStateException("no such user " + id));
+                return name;
+            });
+            try {
+                failing.toJson();
+                assert(false);
+            } catch (IllegalStateException e) {
+                assert(e.getMessage().startsWith("no such user"));
+            }
+            assert(failing.toJsonAsync(Runnable::run).isCompletedExceptionally());
+        } finally {
+            service.shutdown();
+        }
+    }
+
+    @Theory public void incrementalMatchesFull(@ForAll @From(JsonValueGenerator.class) JsonValue s1) {
+        JsonTransformer transformer = new JsonTransformer()
+                .mapRecursive((String s) -> s.length() > 3 ? s.substring(1) : s)
+                .filterRecursive((Integer i) -> i % 2 == 0)
+                .add("x", 3)
+                .mapRecursive((JsonArray a) -> a.size() > 2 ? Json.createArrayBuilder().add(a.get(0)).add(a.get(1)) : a)
+                .mapRecursive((long n) -> n + 1);
+        incrementalMatchesFull(s1, transformer.compile());
+        incrementalMatchesFull(s1, transformer.persistent().compile());
+    }
+
+    private static void incrementalMatchesFull(JsonValue s1, JsonPipeline pipeline) {
+        JsonValue json = Json.createObjectBuilder().add("a", s1).add("b", Json.createArrayBuilder().add(s1).add(1).add("two")).build();
+        List<JsonArray> patches = Arrays.asList(
+                patch(op("add", "/c", s1)),
+                patch(op("replace", "/b/1", s1), op("test", "/b/1", s1)),
+                patch(op("move", "/a", "/b/0")),
+                patch(op("copy", "/c", "/b/-"), op("remove", "/b/1")),
+                patch(op("add", "/d", Json.createObjectBuilder().add("x", s1).build()), op("add", "/d/~1k~0", Json.createArrayBuilder().add(s1).build()),
+                        op("add", "/b/0", s1), op("test", "/d/~1k~0/0", s1)),
+                patch(op("replace", "", json)));
+        IncrementalTransform state = pipeline.incremental(json);
+        assertEquals(pipeline.apply(json), state.output());
+        assertEquals(0, state.outputPatch().size());
+        for (JsonArray patch : patches) {
+            IncrementalTransform next = state.apply(patch);
+            assertEquals(pipeline.apply(next.input()), next.output());
+            assertEquals(next.output(), new JsonTransformer(state.output()).incremental().apply(next.outputPatch()).output());
+            state = next;
+        }
+    }
+
+    @Test public void incrementalRunsOnlyWalkWhatChanged() {
+        JsonArrayBuilder products = Json.createArrayBuilder();
+        for (int i = 0; i < 1000; i++) {
+            products.add(Json.createObjectBuilder().add("name", "product " + i).add("price", i).add("tags", Json.createArrayBuilder().add("new")));
+        }
+        JsonObject catalogue = Json.createObjectBuilder().add("products", products).add("version", 1).build();
+        List<Long> seen = new ArrayList<>();
+        IncrementalTransform state = new JsonTransformer(catalogue)
+                .mapRecursive((long n) -> { seen.add(n); return n * 2; })
+                .incremental();
+        assertEquals(1001, seen.size());
+
+        seen.clear();
+        IncrementalTransform updated = state.apply(patch(op("replace", "/products/500/price", JsonTransformer.coerceTypes(7))));
+        assertEquals(Arrays.asList(7L), seen);
+        assertEquals(14, ((JsonObject) updated.output()).getJsonArray("products").getJsonObject(500).getInt("price"));
+        assertSame(((JsonObject) state.output()).getJsonArray("products").get(499), ((JsonObject) updated.output()).getJsonArray("products").get(499));
+        assertEquals(patch(op("replace", "/products/500/price", JsonTransformer.coerceTypes(14))), updated.outputPatch());
+
+        // Added and removed elements come out as such, not as changes to every element after them.
+        seen.clear();
+        IncrementalTransform shorter = updated.apply(patch(op("remove", "/products/0"), op("add", "/products/-", JsonTransformer.coerceTypes(3))));
+        // Every product moved up one place, but is still the one it was.
+        assertEquals(Arrays.asList(3L), seen);
+        assertEquals(patch(op("remove", "/products/0"), op("add", "/products/999", JsonTransformer.coerceTypes(6))), shorter.outputPatch());
+
+        for (JsonArray invalid : Arrays.asList(patch(op("remove", "/products/1000")), patch(op("replace", "/missing", JsonValue.NULL)),
+                patch(op("test", "/version", JsonTransformer.coerceTypes(2))), patch(op("add", "/products/01", JsonValue.NULL)),
+                patch(op("move", "/products", "/products/0")), patch(op("remove", "products")), patch(op("remove", "")))) {
+            try {
+                updated.apply(invalid);
+                throw new AssertionError("Applied " + invalid);
+            } catch (JsonException e) {
+                // Expected.
+            }
+        }
+        assertEquals(14, ((JsonObject) updated.output()).getJsonArray("products").getJsonObject(500).getInt("price"));
+        // Numbers are equal for test when their values are.
+        updated.apply(patch(op("test", "/version", JsonTransformer.coerceTypes(new BigDecimal("1.0")))));
+    }
+
+    // Shapes only decide what is walked, documents with the shape and without come out the same.
+    @Theory public void shapedMatchesPlain(@ForAll @From(JsonValueGenerator.class) JsonValue s1) {
+        JsonTransformer transformer = new JsonTransformer(s1)
+                .mapRecursive((String s) -> s.length() > 3 ? s.substring(1) : s)
+                .filterRecursive((Integer i) -> i % 2 == 0)
+                .add("x", 3);
+        JsonValue expected = transformer.toJson();
+        JsonObject numbers = Json.createObjectBuilder().add("type", "array").add("items", Json.createObjectBuilder().add("type", "number")).build();
+        for (Shape shape : Arrays.asList(Shape.infer(s1), Shape.infer(JsonValue.NULL), Shape.fromSchema(numbers),
+                Shape.infer(Json.createArrayBuilder().add(Json.createArrayBuilder().add(true)).build()))) {
+            assertEquals(expected, transformer.shape(shape).toJson());
+            assertEquals(expected, transformer.shape(shape).compile().apply(JsonTape.parse(s1.toString()).root()));
+            assertEquals(expected, transformer.shape(shape).persistent().toJson());
+        }
+        assert(Shape.infer(s1).matches(s1));
+    }
+
+    @Test public void shapesComeFromSchemasAndSamples() {
+        JsonObject schema = Json.createReader(new StringReader("{\"type\":\"object\",\"properties\":{\"name\":{\"type\":\"string\"},"
+                + "\"scores\":{\"type\":\"array\",\"items\":{\"type\":\"integer\"}},\"tag\":{\"anyOf\":[{\"type\":\"null\"},"
+                + "{\"enum\":[\"a\",\"b\"]}]}},\"additionalProperties\":false}")).readObject();
+        Shape shape = Shape.fromSchema(schema);
+        JsonObject record = Json.createObjectBuilder().add("name", " a ").add("scores", Json.createArrayBuilder().add(1).add(2)).add("tag", "a").build();
+        assert(shape.matches(record));
+        assert(shape.matches(Json.createObjectBuilder().add("tag", JsonValue.NULL).build()));
+        assert(!shape.matches(Json.createObjectBuilder().add("tag", 1).build()));
+        assert(!shape.matches(Json.createObjectBuilder().add("other", 1).build()));
+        assert(!shape.matches(Json.createObjectBuilder().add("scores", Json.createArrayBuilder().add(" b ")).build()));
+        assert(!shape.matches(Json.createArrayBuilder().build()));
+        assert(Shape.fromSchema(JsonValue.TRUE).matches(record));
+        assert(!Shape.fromSchema(JsonValue.FALSE).matches(record));
+
+        Shape inferred = Shape.infer(record, Json.createObjectBuilder().add("name", "b").add("extra", JsonValue.TRUE).build());
+        assert(inferred.matches(record));
+        assert(inferred.matches(Json.createObjectBuilder().add("extra", JsonValue.TRUE).build()));
+        assert(!inferred.matches(Json.createObjectBuilder().add("extra", "yes").build()));
+        assert(!inferred.matches(Json.createObjectBuilder().add("scores", Json.createArrayBuilder().add(1.5)).add("missing", 1).build()));
+
+        // A string where the shape says there are only numbers is still trimmed, the shape is wrong about this document.
+        JsonObject unexpected = Json.createObjectBuilder().add("name", " a ").add("scores", Json.createArrayBuilder().add(1).add(" b ")).build();
+        JsonTransformer trim = new JsonTransformer(unexpected).mapRecursive((String s) -> s.trim()).shape(shape);
+        assertEquals(Json.createObjectBuilder().add("name", "a").add("scores", Json.createArrayBuilder().add(1).add("b")).build(), trim.toJson());
+        JsonTransformer numbers = new JsonTransformer(record).mapRecursive((long n) -> n + 1).shape(shape);
+        assertSame(record.get("name"), ((JsonObject) numbers.toJson()).get("name"));
+        assertEquals(Json.createArrayBuilder().add(2).add(3).build(), ((JsonObject) numbers.toJson()).get("scores"));
+
+        // Subtrees are only skipped if they aren't too deep either.
+        JsonValue deep = Json.createObjectBuilder().add("scores", Json.createArrayBuilder().add(Json.createArrayBuilder().add(Json.createArrayBuilder()))).build();
+        try {
+            new JsonTransformer(deep).mapRecursive((String s) -> s.trim()).shape(Shape.infer(deep)).maxDepth(2).toJson();
+            throw new AssertionError("Walked past maxDepth");
+        } catch (JsonDepthException e) {
+            // Expected.
+        }
+        for (String invalid : Arrays.asList("{\"type\":\"text\"}", "[]", "{\"type\":1}")) {
+            try {
+                Shape.fromSchema(Json.createReader(new StringReader(invalid)).read());
+                throw new AssertionError("Read " + invalid);
+            } catch (IllegalArgumentException e) {
+                // Expected.
+            }
+        }
+    }
+
+    private static JsonObject op(String op, String path, JsonValue value) {
+        return Json.createObjectBuilder().add("op", op).add("path", path).add("value", value).build();
+    }
+
+    private static JsonObject op(String op, String from, String path) {
+        return Json.createObjectBuilder().add("op", op).add("from", from).add("path", path).build();
+    }
+
+    private static JsonObject op(String op, String path) {
+        return Json.createObjectBuilder().add("op", op).add("path", path).build();
+    }
+
+    private static JsonArray patch(JsonObject... operations) {
+        JsonArrayBuilder patch = Json.createArrayBuilder();
+        for (JsonObject operation : operations) {
+            patch.add(operation);
+        }
+        return patch.build();
+    }
 }